@@ -0,0 +1,472 @@
+package org.phoebus.olog;
+
+import org.phoebus.olog.entity.Attachment;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Local disk cache of attachment content, in front of {@link AttachmentRepository#findById(String)}. Frequently
+ * downloaded attachments are then served from a local file (see {@link FileChannelResourceHttpMessageConverter})
+ * rather than read from the attachment store.
+ * <p>
+ * Content is cached by its SHA-256 hash, so it never needs to be invalidated: attachments never change, and the
+ * cache is only consulted for attachments found in the store. The cache is filled while an attachment is
+ * downloaded from start to end; range requests do not fill the cache. When the cache exceeds its maximum size,
+ * the least recently used content is evicted. Content returned by a lookup shortly before is only deleted from disk
+ * once its lease has expired, as the file may be opened by path when the response is written (Tomcat's sendfile).
+ * <p>
+ * Content stored compressed (see {@link CompressedResource}) may still be sent as is when not cached: the cache is
+ * then filled by downloads of the decoded content only.
+ * <p>
+ * The cache is disabled if its maximum size is 0, and not used for attachments already stored in local files.
+ */
+@Component
+public class AttachmentCache {
+
+    private static final Logger logger = Logger.getLogger(AttachmentCache.class.getName());
+
+    /**
+     * Time after a lookup during which the cached file is not deleted, such that the response can open it.
+     */
+    private static final long LEASE_MILLIS = 60000;
+
+    @Value("${attachment.disk.cache.directory:${java.io.tmpdir}/olog-attachment-cache}")
+    private String directory;
+    @Value("${attachment.disk.cache.max.size:0}")
+    private DataSize maxSize;
+    @Value("${attachment.disk.cache.max.file.size:100MB}")
+    private DataSize maxFileSize;
+
+    private Path root;
+    private Path tmp;
+
+    /**
+     * Size of cached content by content hash, least recently used first.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    /**
+     * Time of the last lookup by content hash.
+     */
+    private final Map<String, Long> leases = new HashMap<>();
+    /**
+     * Time of the last lookup of content evicted while leased, to be deleted from disk once the lease has expired,
+     * by content hash.
+     */
+    private final Map<String, Long> pendingDeletions = new HashMap<>();
+    long leaseMillis = LEASE_MILLIS;
+    /**
+     * Content hashes of content being written to the cache.
+     */
+    private final Set<String> filling = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    public AttachmentCache() {
+    }
+
+    AttachmentCache(String directory, DataSize maxSize, DataSize maxFileSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Indexes content cached before a restart, using the time a file was last modified as its last access.
+     */
+    @PostConstruct
+    public void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        root = Paths.get(directory);
+        tmp = root.resolve("tmp");
+        try {
+            Files.createDirectories(tmp);
+            try (Stream<Path> files = Files.list(tmp)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            try (Stream<Path> files = Files.walk(root)) {
+                files.filter(path -> Files.isRegularFile(path) && !path.startsWith(tmp))
+                        .sorted(Comparator.comparingLong(path -> path.toFile().lastModified()))
+                        .forEach(path -> add(path.getFileName().toString(), path.toFile().length()));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create attachment cache directory " + root, e);
+        }
+        logger.log(Level.INFO, String.format("Attachment cache in %s holds %d bytes", root.toAbsolutePath(), size));
+    }
+
+    public boolean isEnabled() {
+        return maxSize.toBytes() > 0;
+    }
+
+    /**
+     * @param attachment An attachment found in the attachment store
+     * @return The attachment with content served from the cache, or filling the cache when read.
+     */
+    public Attachment readThrough(Attachment attachment) {
+        if (!isEnabled() || !(attachment.getAttachment() instanceof HashedResource) ||
+                attachment.getAttachment() instanceof FileAttachmentResource ||
+                (attachment.getAttachment() instanceof DirectDownloadResource &&
+                        ((DirectDownloadResource) attachment.getAttachment()).isDirectDownload())) {
+            return attachment;
+        }
+        HashedResource content = (HashedResource) attachment.getAttachment();
+        String contentHash = content.getContentHash();
+        if (contentHash == null) {
+            return attachment;
+        }
+        try {
+            Path cached = lookup(contentHash);
+            if (cached != null) {
+                hits.incrementAndGet();
+                bytesSaved.addAndGet(content.contentLength());
+                return withContent(attachment, new CachedFileResource(cached, contentHash, content.lastModified()));
+            }
+            misses.incrementAndGet();
+            if (content.contentLength() > maxFileSize.toBytes()) {
+                return attachment;
+            }
+        } catch (IOException e) {
+            return attachment;
+        }
+        return withContent(attachment, content instanceof CompressedResource ?
+                new CompressedCachingResource(content) : new CachingResource(content));
+    }
+
+    private static Attachment withContent(Attachment attachment, InputStreamSource content) {
+        Attachment substituted = new Attachment(attachment.getId(), content, attachment.getFilename(), attachment.getFileMetadataDescription());
+        substituted.setContentType(attachment.getContentType());
+        return substituted;
+    }
+
+    /**
+     * @param source Content of an attachment
+     * @return <code>true</code> if the content was substituted by the cache.
+     */
+    public static boolean isCacheResource(InputStreamSource source) {
+        return source instanceof CachedFileResource || source instanceof CachingResource;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of bytes not read from the attachment store thanks to the cache. Conditional and range
+     * requests served from the cache are counted as full downloads.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    private Path path(String contentHash) {
+        return FileSystemAttachmentStore.shard(root, contentHash);
+    }
+
+    private synchronized Path lookup(String contentHash) {
+        long now = System.currentTimeMillis();
+        deleteExpired(now);
+        if (entries.get(contentHash) == null) {
+            return null;
+        }
+        Path path = path(contentHash);
+        if (!Files.exists(path)) {
+            size -= entries.remove(contentHash);
+            leases.remove(contentHash);
+            return null;
+        }
+        leases.put(contentHash, now);
+        return path;
+    }
+
+    private synchronized void add(String contentHash, long length) {
+        long now = System.currentTimeMillis();
+        deleteExpired(now);
+        Long previous = entries.put(contentHash, length);
+        size += length - (previous == null ? 0 : previous);
+        pendingDeletions.remove(contentHash);
+        Iterator<Map.Entry<String, Long>> leastRecentlyUsed = entries.entrySet().iterator();
+        while (size > maxSize.toBytes() && leastRecentlyUsed.hasNext()) {
+            Map.Entry<String, Long> entry = leastRecentlyUsed.next();
+            if (entry.getKey().equals(contentHash)) {
+                continue;
+            }
+            Long leased = leases.remove(entry.getKey());
+            if (leased != null && leased + leaseMillis > now) {
+                pendingDeletions.put(entry.getKey(), leased);
+            } else {
+                try {
+                    Files.deleteIfExists(path(entry.getKey()));
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Unable to evict cached attachment " + entry.getKey(), e);
+                    continue;
+                }
+            }
+            size -= entry.getValue();
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    /**
+     * Deletes evicted content whose lease has expired, unless it was cached again meanwhile.
+     */
+    private void deleteExpired(long now) {
+        Iterator<Map.Entry<String, Long>> pending = pendingDeletions.entrySet().iterator();
+        while (pending.hasNext()) {
+            Map.Entry<String, Long> entry = pending.next();
+            if (entry.getValue() + leaseMillis > now) {
+                continue;
+            }
+            pending.remove();
+            if (entries.containsKey(entry.getKey())) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(path(entry.getKey()));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to evict cached attachment " + entry.getKey(), e);
+            }
+        }
+        leases.values().removeIf(leased -> leased + leaseMillis <= now);
+    }
+
+    /**
+     * Cached content.
+     */
+    private static class CachedFileResource extends FileAttachmentResource {
+        CachedFileResource(Path path, String contentHash, long lastModified) {
+            super(path, contentHash, lastModified);
+        }
+    }
+
+    /**
+     * Content not yet cached. It is copied to the cache while read from start to end.
+     */
+    private class CachingResource extends AbstractResource implements HashedResource {
+
+        private final HashedResource source;
+
+        CachingResource(HashedResource source) {
+            this.source = source;
+        }
+
+        @Override
+        public String getContentHash() {
+            return source.getContentHash();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return source.contentLength();
+        }
+
+        @Override
+        public long lastModified() throws IOException {
+            return source.lastModified();
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public String getDescription() {
+            return source.getDescription();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            String contentHash = getContentHash();
+            if (!filling.add(contentHash)) {
+                // Another download fills the cache
+                return source.getInputStream();
+            }
+            try {
+                Path tmpFile = Files.createTempFile(tmp, contentHash, null);
+                return new CacheFillingInputStream(source.getInputStream(), contentHash, tmpFile);
+            } catch (IOException | RuntimeException e) {
+                filling.remove(contentHash);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Compressed content not yet cached. The stored content may be sent as is, in which case it is not cached.
+     */
+    private class CompressedCachingResource extends CachingResource implements CompressedResource {
+
+        private final CompressedResource compressedSource;
+
+        CompressedCachingResource(HashedResource source) {
+            super(source);
+            this.compressedSource = (CompressedResource) source;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return compressedSource.getContentEncoding();
+        }
+
+        @Override
+        public InputStream getEncodedInputStream() throws IOException {
+            return compressedSource.getEncodedInputStream();
+        }
+
+        @Override
+        public long encodedLength() {
+            return compressedSource.encodedLength();
+        }
+    }
+
+    /**
+     * Copies the content read to a temporary file, which is moved into the cache once the end of the content
+     * is reached. Skipping (e.g. for a byte range) or closing before the end cancels caching.
+     */
+    private class CacheFillingInputStream extends FilterInputStream {
+
+        private final String contentHash;
+        private final Path tmpFile;
+        private OutputStream cacheStream;
+        private long length;
+
+        CacheFillingInputStream(InputStream inputStream, String contentHash, Path tmpFile) throws IOException {
+            super(inputStream);
+            this.contentHash = contentHash;
+            this.tmpFile = tmpFile;
+            this.cacheStream = Files.newOutputStream(tmpFile);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                complete();
+            } else if (cacheStream != null) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1) {
+                complete();
+            } else if (cacheStream != null) {
+                write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            cancel();
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                cancel();
+            }
+        }
+
+        private void write(byte[] b, int off, int len) {
+            try {
+                cacheStream.write(b, off, len);
+                length += len;
+            } catch (IOException e) {
+                // E.g. disk full, the download continues
+                logger.log(Level.WARNING, "Unable to cache attachment " + contentHash, e);
+                cancel();
+            }
+        }
+
+        private void complete() {
+            if (cacheStream == null) {
+                return;
+            }
+            try {
+                cacheStream.close();
+                cacheStream = null;
+                Path path = path(contentHash);
+                Files.createDirectories(path.getParent());
+                Files.move(tmpFile, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                add(contentHash, length);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to cache attachment " + contentHash, e);
+            } finally {
+                cancel();
+            }
+        }
+
+        private void cancel() {
+            if (cacheStream != null) {
+                try {
+                    cacheStream.close();
+                } catch (IOException e) {
+                    // Ignore, file is deleted
+                }
+                cacheStream = null;
+            }
+            try {
+                Files.deleteIfExists(tmpFile);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to delete " + tmpFile, e);
+            }
+            filling.remove(contentHash);
+        }
+    }
+}
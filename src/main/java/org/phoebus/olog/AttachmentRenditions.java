@@ -0,0 +1,301 @@
+package org.phoebus.olog;
+
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates downscaled renditions of image attachments, e.g. thumbnails shown in log entry lists, in
+ * the background. Renditions are stored as GridFS files linked to the original GridFS file through their
+ * metadata, so attachments sharing content (see {@link AttachmentRepository#save(org.phoebus.olog.entity.Attachment)})
+ * share renditions as well.
+ * <p>
+ * Work is done by a bounded pool of threads with a bounded queue. Renditions are a convenience only: when the
+ * queue is full the request is dropped, and the rendition is requested again the next time it is downloaded.
+ */
+@Component
+public class AttachmentRenditions {
+
+    /**
+     * GridFS metadata key of a rendition holding the id of the original GridFS file.
+     */
+    public static final String METADATA_RENDITION_OF = "renditionOf";
+    /**
+     * GridFS metadata key of a rendition holding its name, e.g. <code>thumb</code>.
+     */
+    public static final String METADATA_RENDITION = "rendition";
+
+    private static final Logger logger = Logger.getLogger(AttachmentRenditions.class.getName());
+
+    /**
+     * Comma separated list of renditions as name:size, where size is the maximum width and height in pixels.
+     */
+    @Value("${attachment.renditions:thumb:128,preview:512}")
+    private String renditionsDefinition;
+    @Value("${attachment.renditions.threads:2}")
+    private int threads;
+    @Value("${attachment.renditions.queue.capacity:100}")
+    private int queueCapacity;
+
+    @Autowired
+    private GridFSBucket gridFSBucket;
+
+    private Map<String, Integer> renditions;
+    private ThreadPoolExecutor executor;
+    /**
+     * Originals queued or being processed, such that each is processed once even if requested repeatedly.
+     */
+    private final Set<BsonValue> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicLong rejected = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        renditions = parseRenditions(renditionsDefinition);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param definition Comma separated list of name:size
+     * @return The renditions mapped to their maximum width and height, in order of definition.
+     */
+    static Map<String, Integer> parseRenditions(String definition) {
+        Map<String, Integer> parsed = new LinkedHashMap<>();
+        for (String rendition : definition.split(",")) {
+            if (rendition.isBlank()) {
+                continue;
+            }
+            String[] nameAndSize = rendition.strip().split(":");
+            if (nameAndSize.length != 2) {
+                throw new IllegalArgumentException("Invalid rendition definition " + rendition + ", expected name:size");
+            }
+            parsed.put(nameAndSize[0].strip(), Integer.parseInt(nameAndSize[1].strip()));
+        }
+        return parsed;
+    }
+
+    /**
+     * @param rendition Name of a rendition
+     * @return <code>true</code> if the rendition is defined.
+     */
+    public boolean isDefined(String rendition) {
+        return renditions.containsKey(rendition);
+    }
+
+    /**
+     * @param filename Name of the original file
+     * @return <code>true</code> if renditions are generated for the file, i.e. if it is an image readable by {@link ImageIO}.
+     */
+    public static boolean isSupported(String filename) {
+        return isSupported(ContentTypeResolver.determineMediaType(filename));
+    }
+
+    /**
+     * @param contentType The content type detected at upload, may be <code>null</code>
+     * @param filename    Name of the original file
+     * @return <code>true</code> if renditions are generated for the file, by the content type or else by the file name.
+     */
+    public static boolean isSupported(String contentType, String filename) {
+        MediaType mediaType = ContentTypeResolver.parseContentType(contentType);
+        return mediaType != null ? isSupported(mediaType) : isSupported(filename);
+    }
+
+    private static boolean isSupported(MediaType mediaType) {
+        return mediaType != null && "image".equals(mediaType.getType()) &&
+                ImageIO.getImageReadersByMIMEType(mediaType.getType() + "/" + mediaType.getSubtype()).hasNext();
+    }
+
+    /**
+     * @return <code>true</code> if renditions are generated for the file, by the content type detected at upload
+     * or else by the file name.
+     */
+    private static boolean isSupported(GridFSFile original) {
+        return isSupported(original.getMetadata() == null ? null :
+                original.getMetadata().getString(GridFsAttachmentStore.METADATA_CONTENT_TYPE), original.getFilename());
+    }
+
+    /**
+     * Queues generation of the renditions of an image, unless already queued. Does nothing if the
+     * file is not a supported image.
+     *
+     * @param original The original GridFS file
+     */
+    public void submit(GridFSFile original) {
+        if (renditions.isEmpty() || !isSupported(original) || !pending.add(original.getId())) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    render(original);
+                } finally {
+                    pending.remove(original.getId());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(original.getId());
+            rejected.incrementAndGet();
+            logger.log(Level.FINE, "Rendition queue full, skipping " + original.getId());
+        }
+    }
+
+    /**
+     * @param originalId Id of the original GridFS file
+     * @param rendition  Name of the rendition
+     * @return The GridFS file of the rendition, or {@link Optional#empty()} if not (yet) generated.
+     */
+    public Optional<GridFSFile> find(BsonValue originalId, String rendition) {
+        return Optional.ofNullable(gridFSBucket.find(Filters.and(
+                Filters.eq("metadata." + METADATA_RENDITION_OF, originalId),
+                Filters.eq("metadata." + METADATA_RENDITION, rendition))).first());
+    }
+
+    /**
+     * Deletes all renditions of a GridFS file.
+     *
+     * @param originalId Id of the original GridFS file
+     */
+    public void delete(BsonValue originalId) {
+        for (GridFSFile rendition : gridFSBucket.find(Filters.eq("metadata." + METADATA_RENDITION_OF, originalId))) {
+            gridFSBucket.delete(rendition.getId());
+        }
+    }
+
+    /**
+     * @return Number of images waiting for a worker thread.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return Number of images being processed.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return Number of images skipped since startup because the queue was full.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    private void render(GridFSFile original) {
+        for (Map.Entry<String, Integer> rendition : renditions.entrySet()) {
+            if (find(original.getId(), rendition.getKey()).isPresent()) {
+                continue;
+            }
+            try {
+                BufferedImage image = read(original, rendition.getValue());
+                if (image == null) {
+                    logger.log(Level.FINE, "No image reader for " + original.getFilename());
+                    return;
+                }
+                BufferedImage scaled = scale(image, rendition.getValue());
+                // Photos are much smaller as JPEG, which does not support transparency
+                String format = scaled.getColorModel().hasAlpha() ? "png" : "jpg";
+                Document metadata = new Document(GridFsAttachmentStore.METADATA_DESCRIPTION, "image/" + (format.equals("png") ? "png" : "jpeg"))
+                        .append(METADATA_RENDITION_OF, original.getId())
+                        .append(METADATA_RENDITION, rendition.getKey());
+                String filename = stripExtension(original.getFilename()) + "_" + rendition.getKey() + "." + format;
+                try (OutputStream uploadStream = gridFSBucket.openUploadStream(filename, new GridFSUploadOptions().metadata(metadata))) {
+                    ImageIO.write(scaled, format, uploadStream);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Unable to create rendition " + rendition.getKey() + " of " + original.getId(), e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decodes the image, skipping rows and columns not needed for the target size. This keeps the memory
+     * used for large images close to that of the rendition.
+     */
+    private BufferedImage read(GridFSFile original, int maxSize) throws IOException {
+        try (InputStream inputStream = gridFSBucket.openDownloadStream(original.getId());
+             ImageInputStream imageInputStream = ImageIO.createImageInputStream(inputStream)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInputStream, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / (2 * maxSize));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * @param image   An image
+     * @param maxSize Maximum width and height
+     * @return The image scaled to fit maxSize, keeping the aspect ratio. Smaller images are not enlarged.
+     */
+    static BufferedImage scale(BufferedImage image, int maxSize) {
+        double factor = Math.min(1.0, (double) maxSize / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+        BufferedImage scaled = new BufferedImage(width, height,
+                image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private static String stripExtension(String filename) {
+        int dot = filename.lastIndexOf('.');
+        return dot > 0 ? filename.substring(0, dot) : filename;
+    }
+}
@@ -5,35 +5,58 @@
  */
 package org.phoebus.olog;
 
-import com.mongodb.client.gridfs.GridFSBucket;
-import com.mongodb.client.gridfs.model.GridFSFile;
-import com.mongodb.client.gridfs.model.GridFSUploadOptions;
-import org.bson.BsonString;
-import org.bson.Document;
-import org.bson.types.ObjectId;
 import org.phoebus.olog.entity.Attachment;
+import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 
-import java.io.IOException;
+import javax.annotation.PostConstruct;
+import java.time.Instant;
 import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static org.springframework.data.mongodb.core.query.Criteria.where;
-
+/**
+ * Repository of attachments, delegating to the {@link AttachmentStore} selected by the <code>attachment.store</code>
+ * property: <code>gridfs</code> (default, see {@link GridFsAttachmentStore}), <code>filesystem</code>
+ * (see {@link FileSystemAttachmentStore}) or <code>s3</code> (see {@link S3AttachmentStore}). Content found in the store may be served from the local disk
+ * cache, see {@link AttachmentCache}.
+ */
 @Repository
 public class AttachmentRepository implements CrudRepository<Attachment, String> {
 
-    @SuppressWarnings("unused")
+    @Value("${attachment.store:" + GridFsAttachmentStore.NAME + "}")
+    private String storeName;
+
     @Autowired
-    private GridFsTemplate gridFsTemplate;
-    @SuppressWarnings("unused")
+    private ApplicationContext applicationContext;
+
     @Autowired
-    private GridFSBucket gridFSBucket;
+    private AttachmentCache attachmentCache;
+
+    private AttachmentStore attachmentStore;
+
+    @PostConstruct
+    public void init() {
+        try {
+            attachmentStore = applicationContext.getBean(storeName + AttachmentStore.BEAN_NAME_SUFFIX, AttachmentStore.class);
+        } catch (BeansException e) {
+            throw new IllegalStateException("Unknown attachment store " + storeName, e);
+        }
+        Logger.getLogger(AttachmentRepository.class.getName()).log(Level.INFO, "Using attachment store " + storeName);
+    }
+
+    /**
+     * @return The name of the attachment store in use.
+     */
+    public String getStoreName() {
+        return storeName;
+    }
 
     /**
      * Saves an attachment.
@@ -42,30 +65,14 @@ public class AttachmentRepository implements CrudRepository<Attachment, String>
      * may pre-define a search path or URL to the persisted entity.
      * <p>
      * If the client does not set the id of the entity (or if it is an empty string), the id of the persisted
-     * entity will  be set by GridFs and then on the entity before it is returned.
+     * entity will  be set by the store and then on the entity before it is returned.
      *
      * @param entity The entity to persist.
      * @return The persisted entity with non-null and non-empty id.
      */
-
     @Override
     public <S extends Attachment> S save(S entity) {
-        try {
-            GridFSUploadOptions options = new GridFSUploadOptions()
-                    .metadata(new Document("meta-data", entity.getFileMetadataDescription()));
-            if (entity.getId() != null && !entity.getId().isEmpty()) {
-                BsonString id = new BsonString(entity.getId());
-                gridFSBucket.uploadFromStream(id, entity.getFilename(), entity.getAttachment().getInputStream(), options);
-            } else {
-                ObjectId objectId = gridFSBucket.uploadFromStream(entity.getFilename(), entity.getAttachment().getInputStream(), options);
-                entity.setId(objectId.toString());
-            }
-            return entity;
-        } catch (IOException e) {
-            Logger.getLogger(AttachmentRepository.class.getName())
-                    .log(Level.WARNING, String.format("Unable to persist attachment %s", entity.getFilename()), e);
-        }
-        return null;
+        return attachmentStore.save(entity) == null ? null : entity;
     }
 
     @Override
@@ -75,22 +82,59 @@ public class AttachmentRepository implements CrudRepository<Attachment, String>
     }
 
     /**
-     * @param id The unique GridFS id of an attachment.
+     * @param id The unique id of an attachment.
      * @return {@link Optional} or - if the specified id is invalid - {@link Optional#empty()}.
      */
-
     @Override
     public Optional<Attachment> findById(String id) {
-        GridFSFile gridFsFile = gridFsTemplate.find(new Query(where("_id").is(id))).first();
-        if (gridFsFile == null) {
-            return Optional.empty();
+        return attachmentStore.findById(id).map(attachmentCache::readThrough);
+    }
+
+    /**
+     * Finds a downscaled rendition of an image attachment, see {@link AttachmentRenditions}. If the rendition
+     * has not been generated (yet), its generation is requested.
+     *
+     * @param original  An attachment as returned by {@link #findById(String)}.
+     * @param rendition The name of the rendition.
+     * @return {@link Optional} holding the rendition, or {@link Optional#empty()} if the attachment is not an image,
+     * or if the rendition is not available yet.
+     */
+    public Optional<Attachment> findRendition(Attachment original, String rendition) {
+        if (AttachmentCache.isCacheResource(original.getAttachment())) {
+            // Renditions are found by the stored original
+            Optional<Attachment> stored = attachmentStore.findById(original.getId());
+            if (stored.isEmpty()) {
+                return Optional.empty();
+            }
+            original = stored.get();
         }
-        Attachment attachment = new Attachment();
-        attachment.setId(id);
-        attachment.setAttachment(gridFsTemplate.getResource(gridFsFile));
-        attachment.setFilename(gridFsFile.getFilename());
-        attachment.setFileMetadataDescription(gridFsFile.getMetadata().getString("meta-data"));
-        return Optional.of(attachment);
+        return attachmentStore.findRendition(original, rendition);
+    }
+
+    /**
+     * @param original An attachment as returned by {@link #findById(String)}.
+     * @return <code>true</code> if renditions of the attachment are generated, i.e. if the store supports renditions
+     * and the attachment is a supported image. Otherwise no rendition will ever be found for the attachment.
+     */
+    public boolean hasRenditions(Attachment original) {
+        return attachmentStore.supportsRenditions() &&
+                AttachmentRenditions.isSupported(original.getContentType(), original.getFilename());
+    }
+
+    /**
+     * @param consumer Called with the id of each stored attachment.
+     */
+    public void forEachId(Consumer<String> consumer) {
+        attachmentStore.forEachId(consumer);
+    }
+
+    /**
+     * @param storedBefore Attachments stored at or after this time are skipped.
+     * @param consumer     Called with the id and the stored content length of each attachment stored before the
+     *                     given time.
+     */
+    public void forEachIdStoredBefore(Instant storedBefore, BiConsumer<String, Long> consumer) {
+        attachmentStore.forEachIdStoredBefore(storedBefore, consumer);
     }
 
     @Override
@@ -117,16 +161,19 @@ public class AttachmentRepository implements CrudRepository<Attachment, String>
         return 0;
     }
 
+    /**
+     * Deletes an attachment. The content is deleted once no other attachment references it.
+     *
+     * @param id The unique id of an attachment.
+     */
     @Override
     public void deleteById(String id) {
-        // TODO Auto-generated method stub
-
+        attachmentStore.deleteById(id);
     }
 
     @Override
     public void delete(Attachment entity) {
-        // TODO Auto-generated method stub
-
+        deleteById(entity.getId());
     }
 
     @Override
@@ -7,26 +7,28 @@ package org.phoebus.olog;
 
 import org.phoebus.olog.entity.Attachment;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
-import org.springframework.http.ContentDisposition;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.util.MultiValueMap;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import static org.phoebus.olog.OlogResourceDescriptors.ATTACHMENT_URI;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * Resource for handling the requests to ../attachment
@@ -40,34 +42,66 @@ public class AttachmentResource
     @Autowired
     AttachmentRepository attachmentRepository;
 
+    @Autowired
+    AttachmentRenditions attachmentRenditions;
+
+    @Autowired
+    NonBlockingAttachmentWriter nonBlockingAttachmentWriter;
+
+    /**
+     * Time for which clients and proxies may cache attachments. Attachments never change once stored, so
+     * this may be long.
+     */
+    @Value("${attachment.cache.max.age:31536000}")
+    private long cacheMaxAge;
+
     private Logger log = Logger.getLogger(AttachmentResource.class.getName());
 
     /**
      *
      * @param attachmentId The unique GridFS id set by client or by GridFS during upload.
-     * @return A {@link ResponseEntity} if found, otherwise client will get HTTP 404 response. If
+     * @param rendition Optional name of a downscaled rendition of an image attachment, e.g. <code>thumb</code>.
+     *                  The original is returned until the rendition has been generated, and for attachments
+     *                  that have no renditions (not an image, or a store not supporting renditions).
+     * @param requestHeaders The request headers, may contain <code>Range</code> and <code>If-Range</code>.
+     * @param request The request
+     * @param response The response, written with non-blocking output for large attachments
+     * @return <code>null</code> if the attachment is written with non-blocking output (see
+     * {@link NonBlockingAttachmentWriter}). Otherwise a {@link ResponseEntity} if found, otherwise client will get HTTP 404 response. If
      * an {@link IOException} is thrown when the input stream of the GridFS resource is requested,
-     * a HTTP 500 response is returned.
+     * a HTTP 500 response is returned. If client requests byte ranges, a HTTP 206 response holding
+     * the requested ranges is returned. If the attachment held by client is still current, a HTTP 304
+     * response is returned. An undefined rendition results in a HTTP 400 response.
      */
     @GetMapping("{attachmentId}")
-    public ResponseEntity<Resource> getAttachment(@PathVariable String attachmentId) {
+    public ResponseEntity<Resource> getAttachment(@PathVariable String attachmentId,
+                                                  @RequestParam(required = false) String rendition,
+                                                  @RequestHeader HttpHeaders requestHeaders,
+                                                  HttpServletRequest request,
+                                                  HttpServletResponse response) {
         log.log(Level.INFO, "Requesting attachment " + attachmentId);
+        if (rendition != null && !attachmentRenditions.isDefined(rendition)) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
         Optional<Attachment> attachment = attachmentRepository.findById(attachmentId);
         if(attachment.isPresent()){
-            InputStreamResource resource;
             try
             {
-                resource = new InputStreamResource(attachment.get().getAttachment().getInputStream());
-                ContentDisposition contentDisposition = ContentDisposition.builder("attachment")
-                        .filename(attachment.get().getFilename())
-                        .build();
-                HttpHeaders httpHeaders = new HttpHeaders();
-                httpHeaders.setContentDisposition(contentDisposition);
-                MediaType mediaType = ContentTypeResolver.determineMediaType(attachment.get().getFilename());
-                if(mediaType != null){
-                    httpHeaders.setContentType(mediaType);
+                // Spring's CacheControl does not support the immutable directive
+                String cacheControl = CacheControl.maxAge(cacheMaxAge, TimeUnit.SECONDS).cachePublic().getHeaderValue() + ", immutable";
+                if (rendition != null) {
+                    Optional<Attachment> renditionAttachment = attachmentRepository.findRendition(attachment.get(), rendition);
+                    if (renditionAttachment.isPresent()) {
+                        return write(AttachmentResponses.download(renditionAttachment.get(), renditionAttachment.get().getFilename(), requestHeaders, cacheControl),
+                                request, response);
+                    }
+                    if (attachmentRepository.hasRenditions(attachment.get())) {
+                        // Response changes once the rendition is available
+                        cacheControl = CacheControl.noCache().getHeaderValue();
+                    }
                 }
-                return new ResponseEntity<>(resource, httpHeaders, HttpStatus.OK);
+                return write(AttachmentResponses.download(attachment.get(), attachment.get().getFilename(), requestHeaders, cacheControl),
+                        request, response);
             }
             catch (IOException e) {
                 Logger.getLogger(LogResource.class.getName())
@@ -81,4 +115,12 @@ public class AttachmentResource
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         }
     }
+
+    /**
+     * @return <code>null</code> if the download is written with non-blocking output, otherwise the download.
+     */
+    private ResponseEntity<Resource> write(ResponseEntity<Resource> download, HttpServletRequest request,
+                                           HttpServletResponse response) throws IOException {
+        return nonBlockingAttachmentWriter.write(download, request, response) ? null : download;
+    }
 }
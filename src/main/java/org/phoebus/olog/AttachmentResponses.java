@@ -0,0 +1,170 @@
+package org.phoebus.olog;
+
+import org.phoebus.olog.entity.Attachment;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Builds the responses of the attachment download endpoints.
+ * <p>
+ * Byte range requests are served by Spring MVC for any {@link Resource} body (except plain {@link InputStreamResource}s)
+ * with a known length: a single range results in a <code>206 Partial Content</code> response, multiple ranges in
+ * a <code>multipart/byteranges</code> response, and unsatisfiable ranges in a <code>416</code> response. This class
+ * decides whether the <code>Range</code> header applies at all, based on the <code>If-Range</code> header.
+ * <p>
+ * Responses carry a strong <code>ETag</code> derived from the content hash computed at upload, and a
+ * <code>Last-Modified</code> header. Conditional requests (<code>If-None-Match</code>, <code>If-Modified-Since</code>)
+ * are then answered with <code>304 Not Modified</code> by Spring MVC, without reading the content. Streams that
+ * would bypass range handling are hence only opened when read, see {@link LazyInputStream}.
+ * <p>
+ * Content stored compressed (see {@link CompressedResource}) is sent as is, with a <code>Content-Encoding</code>
+ * header, to clients accepting its encoding. It is decompressed for other clients and for range requests.
+ * <p>
+ * Content that clients may download directly from where it is stored (see {@link DirectDownloadResource}) is
+ * answered with a <code>307 Temporary Redirect</code>. Range and conditional requests are then evaluated by the
+ * object store.
+ */
+public class AttachmentResponses {
+
+    private AttachmentResponses() {
+    }
+
+    /**
+     * @param attachment     An attachment as found in the {@link AttachmentRepository}.
+     * @param filename       The file name put in the <code>Content-Disposition</code> header.
+     * @param requestHeaders The headers of the download request.
+     * @param cacheControl   The <code>Cache-Control</code> header value, i.e. the caching policy of the download URL.
+     * @return A {@link ResponseEntity} streaming the attachment, or part of it if requested, or redirecting to
+     * where the client downloads it directly.
+     * @throws IOException If the attachment content cannot be accessed.
+     */
+    public static ResponseEntity<Resource> download(Attachment attachment, String filename, HttpHeaders requestHeaders,
+                                                    String cacheControl) throws IOException {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setCacheControl(cacheControl);
+        httpHeaders.setContentDisposition(ContentDisposition.builder("attachment").filename(filename).build());
+        // Detected from the content when stored, by file name for attachments stored before
+        MediaType mediaType = ContentTypeResolver.parseContentType(attachment.getContentType());
+        if (mediaType == null) {
+            mediaType = ContentTypeResolver.determineMediaType(filename);
+        }
+        if (mediaType != null) {
+            httpHeaders.setContentType(mediaType);
+        }
+
+        InputStreamSource source = attachment.getAttachment();
+        if (source instanceof DirectDownloadResource && ((DirectDownloadResource) source).isDirectDownload()) {
+            // The presigned URL expires, the redirect must not be reused. The download itself has the caching policy.
+            URI location = ((DirectDownloadResource) source).getDirectDownloadUri(httpHeaders.getFirst(HttpHeaders.CONTENT_DISPOSITION),
+                    mediaType == null ? null : mediaType.toString(), cacheControl);
+            return ResponseEntity.status(HttpStatus.TEMPORARY_REDIRECT)
+                    .location(location)
+                    .cacheControl(CacheControl.noStore())
+                    .build();
+        }
+        if (!(source instanceof Resource) || source instanceof InputStreamResource) {
+            // Unknown length, ranges are not supported
+            return new ResponseEntity<>(new InputStreamResource(source.getInputStream()), httpHeaders, HttpStatus.OK);
+        }
+        Resource resource = (Resource) source;
+        try {
+            httpHeaders.setLastModified(resource.lastModified());
+        } catch (IOException e) {
+            // Not known for this kind of resource
+        }
+        if (resource instanceof HashedResource && ((HashedResource) resource).getContentHash() != null) {
+            httpHeaders.setETag("\"" + ((HashedResource) resource).getContentHash() + "\"");
+        }
+        String contentEncoding = resource instanceof CompressedResource ? ((CompressedResource) resource).getContentEncoding() : null;
+        if (contentEncoding != null) {
+            httpHeaders.setVary(List.of(HttpHeaders.ACCEPT_ENCODING));
+            if (!requestHeaders.containsKey(HttpHeaders.RANGE) && acceptsEncoding(requestHeaders, contentEncoding)) {
+                // Distinct entity tag for the encoded representation
+                if (httpHeaders.getETag() != null) {
+                    httpHeaders.setETag("\"" + ((HashedResource) resource).getContentHash() + "-" + contentEncoding + "\"");
+                }
+                httpHeaders.set(HttpHeaders.CONTENT_ENCODING, contentEncoding);
+                httpHeaders.setContentLength(((CompressedResource) resource).encodedLength());
+                return new ResponseEntity<>(new InputStreamResource(new LazyInputStream(((CompressedResource) resource)::getEncodedInputStream)),
+                        httpHeaders, HttpStatus.OK);
+            }
+        }
+        if (!ifRangeMatches(requestHeaders, httpHeaders)) {
+            // Representation has changed (or validator is unknown): send all of it. An InputStreamResource is
+            // never split into ranges.
+            httpHeaders.setContentLength(resource.contentLength());
+            return new ResponseEntity<>(new InputStreamResource(new LazyInputStream(resource)), httpHeaders, HttpStatus.OK);
+        }
+        return new ResponseEntity<>(resource, httpHeaders, HttpStatus.OK);
+    }
+
+    /**
+     * @param requestHeaders The request headers
+     * @param contentEncoding A content coding, e.g. <code>gzip</code>
+     * @return <code>true</code> if the <code>Accept-Encoding</code> request header accepts the content coding
+     * with a non-zero quality value.
+     */
+    static boolean acceptsEncoding(HttpHeaders requestHeaders, String contentEncoding) {
+        Boolean wildcard = null;
+        for (String acceptEncoding : requestHeaders.getValuesAsList(HttpHeaders.ACCEPT_ENCODING)) {
+            String[] parameters = acceptEncoding.split(";");
+            String coding = parameters[0].strip();
+            boolean accepted = true;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].strip();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (coding.equalsIgnoreCase(contentEncoding)) {
+                return accepted;
+            }
+            if (coding.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+        // An explicitly listed coding takes precedence over the wildcard
+        return Boolean.TRUE.equals(wildcard);
+    }
+
+    /**
+     * Evaluates the <code>If-Range</code> request header according to RFC 7233: a range request is honored
+     * only if the validator in <code>If-Range</code> is an exact match of the current validator.
+     *
+     * @param requestHeaders  The request headers
+     * @param responseHeaders The response headers, holding the validators of the attachment
+     * @return <code>true</code> if the request does not specify <code>If-Range</code> or if it matches.
+     */
+    static boolean ifRangeMatches(HttpHeaders requestHeaders, HttpHeaders responseHeaders) {
+        String ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+        if (ifRange == null || ifRange.isBlank()) {
+            return true;
+        }
+        ifRange = ifRange.strip();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // Weak entity tags never match
+            return !ifRange.startsWith("W/") && ifRange.equals(responseHeaders.getETag());
+        }
+        try {
+            long date = requestHeaders.getFirstDate(HttpHeaders.IF_RANGE);
+            return date != -1 && date == responseHeaders.getLastModified();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
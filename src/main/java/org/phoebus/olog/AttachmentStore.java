@@ -0,0 +1,113 @@
+package org.phoebus.olog;
+
+import org.phoebus.olog.entity.Attachment;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.Resource;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Storage of attachment content and of the attachment file name and description. The store used by
+ * {@link AttachmentRepository} is selected with the <code>attachment.store</code> property, which names a bean
+ * <code>&lt;name&gt;AttachmentStore</code>. Implementations should be {@link org.springframework.context.annotation.Lazy}
+ * such that backends not selected are not initialized.
+ */
+public interface AttachmentStore {
+
+    String BEAN_NAME_SUFFIX = "AttachmentStore";
+
+    /**
+     * Saves an attachment.
+     * <p>
+     * Client code may set an id on the entity to store, and it must be unique. In this manner a client
+     * may pre-define a search path or URL to the persisted entity. If not set (or if it is an empty string),
+     * the id is set by the store.
+     *
+     * @param entity The entity to persist.
+     * @return The persisted entity with non-null and non-empty id, or <code>null</code> if it could not be stored.
+     */
+    Attachment save(Attachment entity);
+
+    /**
+     * @param id The unique id of an attachment.
+     * @return {@link Optional} holding the attachment with content that may be read more than once, or
+     * {@link Optional#empty()} if not found.
+     */
+    Optional<Attachment> findById(String id);
+
+    /**
+     * @param original  An attachment as returned by {@link #findById(String)}.
+     * @param rendition The name of a rendition, see {@link AttachmentRenditions}.
+     * @return {@link Optional} holding the rendition, or {@link Optional#empty()} if the attachment is not an image,
+     * if the rendition is not available yet, or if the store does not support renditions.
+     */
+    default Optional<Attachment> findRendition(Attachment original, String rendition) {
+        return Optional.empty();
+    }
+
+    /**
+     * @return <code>true</code> if the store generates renditions of image attachments, i.e. if a rendition not
+     * found by {@link #findRendition(Attachment, String)} becomes available later.
+     */
+    default boolean supportsRenditions() {
+        return false;
+    }
+
+    /**
+     * Deletes an attachment. Does nothing if not found.
+     *
+     * @param id The unique id of an attachment.
+     */
+    void deleteById(String id);
+
+    /**
+     * @param consumer Called with the id of each attachment in the store.
+     */
+    void forEachId(Consumer<String> consumer);
+
+    /**
+     * Like {@link #forEachId(Consumer)}, but only for attachments stored before a point in time.
+     *
+     * @param storedBefore Attachments stored at or after this time are skipped.
+     * @param consumer     Called with the id and the stored content length of each attachment. Content shared by
+     *                     several attachments is reported for each of them. The consumer may be slow and may
+     *                     delete the attachments reported to it.
+     */
+    void forEachIdStoredBefore(Instant storedBefore, BiConsumer<String, Long> consumer);
+
+    /**
+     * Sources backed by a file or by memory may be read twice, which allows hashing before storing.
+     * Plain {@link InputStreamResource}s are one-shot.
+     */
+    static boolean isRereadable(InputStreamSource source) {
+        return source instanceof MultipartFile || (source instanceof Resource && !(source instanceof InputStreamResource));
+    }
+
+    /**
+     * @return The hex encoded SHA-256 hash of the content.
+     */
+    static String computeContentHash(InputStreamSource source) throws IOException, NoSuchAlgorithmException {
+        try (DigestInputStream inputStream = new DigestInputStream(source.getInputStream(), MessageDigest.getInstance("SHA-256"))) {
+            inputStream.transferTo(OutputStream.nullOutputStream());
+            return toHex(inputStream.getMessageDigest().digest());
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,81 @@
+package org.phoebus.olog;
+
+import org.phoebus.olog.entity.Attachment;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies attachments from another {@link AttachmentStore}, e.g. GridFS, into the store in use, keeping their ids.
+ * Enabled by naming the source store in <code>attachment.store.migrate.from</code>. The migration runs in the
+ * background after startup. Attachments already present in the store in use are skipped, so an interrupted
+ * migration may be restarted. The source store is not modified.
+ */
+@Component
+public class AttachmentStoreMigration {
+
+    private static final Logger logger = Logger.getLogger(AttachmentStoreMigration.class.getName());
+
+    @Value("${attachment.store.migrate.from:}")
+    private String sourceStoreName;
+
+    @Autowired
+    private AttachmentRepository attachmentRepository;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Autowired
+    private ExecutorService executorService;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrate() {
+        if (sourceStoreName.isEmpty()) {
+            return;
+        }
+        if (sourceStoreName.equals(attachmentRepository.getStoreName())) {
+            logger.log(Level.WARNING, "Attachment store " + sourceStoreName + " is already in use, not migrating");
+            return;
+        }
+        AttachmentStore source = applicationContext.getBean(sourceStoreName + AttachmentStore.BEAN_NAME_SUFFIX, AttachmentStore.class);
+        executorService.submit(() -> migrate(source));
+    }
+
+    void migrate(AttachmentStore source) {
+        logger.log(Level.INFO, "Migrating attachments from " + sourceStoreName + " to " + attachmentRepository.getStoreName());
+        AtomicLong copied = new AtomicLong();
+        AtomicLong skipped = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        try {
+            source.forEachId(id -> {
+                if (attachmentRepository.findById(id).isPresent()) {
+                    skipped.incrementAndGet();
+                    return;
+                }
+                Optional<Attachment> attachment = source.findById(id);
+                if (attachment.isEmpty() || attachmentRepository.save(new Attachment(id, attachment.get().getAttachment(),
+                        attachment.get().getFilename(), attachment.get().getFileMetadataDescription())) == null) {
+                    logger.log(Level.WARNING, "Failed to migrate attachment " + id);
+                    failed.incrementAndGet();
+                    return;
+                }
+                if (copied.incrementAndGet() % 1000 == 0) {
+                    logger.log(Level.INFO, copied.get() + " attachments migrated");
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Attachment migration aborted", e);
+        }
+        logger.log(Level.INFO, String.format("Attachment migration done: %d copied, %d already present, %d failed",
+                copied.get(), skipped.get(), failed.get()));
+    }
+}
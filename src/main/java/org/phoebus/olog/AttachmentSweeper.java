@@ -0,0 +1,370 @@
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.ShardStatistics;
+import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch._types.query_dsl.TermsQuery;
+import co.elastic.clients.elasticsearch.core.ScrollResponse;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import org.phoebus.olog.entity.Attachment;
+import org.phoebus.olog.entity.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Finds attachments in the {@link AttachmentRepository} that no log entry references, e.g. because the client
+ * uploading them failed before creating the log entry, or because a log entry failed to index. Such orphans are
+ * reported, moved to a quarantine directory, or deleted, depending on <code>attachment.sweeper.action</code>.
+ * <p>
+ * The sweep runs in the background, periodically. Attachments are streamed from the store and checked against
+ * the log index in batches, so neither the attachment ids nor the referenced ids are ever held in memory. Batches
+ * are separated by a pause such that the sweep does not compete with clients. Attachments stored within the
+ * grace period are not considered, as they may belong to a log entry still being created.
+ */
+@Component
+public class AttachmentSweeper {
+
+    private static final Logger logger = Logger.getLogger(AttachmentSweeper.class.getName());
+
+    /**
+     * Fields holding the ids of the attachments of a log entry. The attachments are not part of the explicit log
+     * entry mapping, so the id is a text field with a keyword sub-field, unless mapped as keyword.
+     */
+    private static final List<String> ATTACHMENT_ID_FIELDS = List.of("attachments.id", "attachments.id.keyword");
+    private static final String SCROLL_KEEP_ALIVE = "1m";
+
+    public enum Action {
+        /**
+         * Only log orphans
+         */
+        REPORT,
+        /**
+         * Copy orphans to the quarantine directory, then delete them from the store
+         */
+        QUARANTINE,
+        DELETE
+    }
+
+    @Value("${attachment.sweeper.enabled:false}")
+    private boolean enabled;
+    @Value("${attachment.sweeper.action:report}")
+    private String action;
+    @Value("${attachment.sweeper.interval:24h}")
+    private Duration interval;
+    @Value("${attachment.sweeper.grace.period:7d}")
+    private Duration gracePeriod;
+    @Value("${attachment.sweeper.batch.size:500}")
+    private int batchSize;
+    @Value("${attachment.sweeper.batch.pause:1s}")
+    private Duration batchPause;
+    @Value("${attachment.sweeper.quarantine.directory:${user.home}/olog/quarantine}")
+    private String quarantineDirectory;
+
+    @Autowired
+    private AttachmentRepository attachmentRepository;
+
+    @Autowired
+    @Qualifier("client")
+    private ElasticsearchClient client;
+
+    @Autowired
+    private LogIndexPartitioning logIndexPartitioning;
+
+    @Autowired
+    private ExecutorService executorService;
+
+    private Future<?> sweeper;
+
+    private final AtomicLong sweeps = new AtomicLong();
+    private final AtomicLong orphans = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private volatile Instant lastSweep;
+
+    public AttachmentSweeper() {
+    }
+
+    AttachmentSweeper(AttachmentRepository attachmentRepository, Action action, String quarantineDirectory) {
+        this.attachmentRepository = attachmentRepository;
+        this.action = action.name();
+        this.quarantineDirectory = quarantineDirectory;
+        this.gracePeriod = Duration.ZERO;
+        this.batchSize = 2;
+        this.batchPause = Duration.ZERO;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        Action sweepAction = getAction();
+        logger.log(Level.INFO, String.format("Sweeping orphaned attachments every %s, action %s", interval, sweepAction));
+        sweeper = executorService.submit(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        sweep(Instant.now().minus(gracePeriod));
+                    } catch (IOException | RuntimeException e) {
+                        logger.log(Level.WARNING, "Attachment sweep aborted", e);
+                    }
+                    Thread.sleep(interval.toMillis());
+                }
+            } catch (InterruptedException e) {
+                // Shut down
+            }
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (sweeper != null) {
+            sweeper.cancel(true);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Action getAction() {
+        return Action.valueOf(action.trim().toUpperCase());
+    }
+
+    /**
+     * @return Number of sweeps completed since startup.
+     */
+    public long getSweeps() {
+        return sweeps.get();
+    }
+
+    /**
+     * @return Number of orphans found since startup.
+     */
+    public long getOrphans() {
+        return orphans.get();
+    }
+
+    /**
+     * @return Number of bytes of orphans removed from the store since startup. Content shared with other
+     * attachments is counted, but only deleted with its last attachment.
+     */
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+
+    public Instant getLastSweep() {
+        return lastSweep;
+    }
+
+    /**
+     * Checks the attachments stored before a point in time.
+     *
+     * @param storedBefore Attachments stored at or after this time are not checked.
+     * @throws IOException          If the log index cannot be searched.
+     * @throws InterruptedException If interrupted while pausing between batches.
+     */
+    void sweep(Instant storedBefore) throws IOException, InterruptedException {
+        Action sweepAction = getAction();
+        long start = System.currentTimeMillis();
+        Batch batch = new Batch(sweepAction);
+        try {
+            attachmentRepository.forEachIdStoredBefore(storedBefore, (id, length) -> {
+                batch.add(id, length);
+                if (batch.size() >= batchSize) {
+                    batch.process();
+                }
+            });
+            batch.process();
+        } catch (BatchException e) {
+            if (e.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) e.getCause();
+            }
+            throw (IOException) e.getCause();
+        }
+        sweeps.incrementAndGet();
+        lastSweep = Instant.now();
+        logger.log(Level.INFO, String.format("Attachment sweep done in %d ms: %d attachments checked, %d orphans (%d bytes) %s",
+                System.currentTimeMillis() - start, batch.checked, batch.orphans, batch.orphanBytes,
+                sweepAction == Action.REPORT ? "found" : "removed"));
+    }
+
+    /**
+     * @param ids Attachment ids
+     * @return The ids referenced by log entries.
+     * @throws IOException If the log index cannot be searched. Elasticsearch errors, e.g. because the log index
+     *                     does not exist, are thrown as {@link co.elastic.clients.elasticsearch._types.ElasticsearchException}.
+     */
+    Set<String> findReferenced(Collection<String> ids) throws IOException {
+        List<FieldValue> values = ids.stream().map(FieldValue::of).collect(Collectors.toList());
+        BoolQuery.Builder query = new BoolQuery.Builder();
+        ATTACHMENT_ID_FIELDS.forEach(field ->
+                query.should(TermsQuery.of(t -> t.field(field).terms(v -> v.value(values)))._toQuery()));
+        Query referencing = query.build()._toQuery();
+        Set<String> referenced = new HashSet<>();
+        // Unavailable indices must fail the search, as all attachments would be considered orphans otherwise
+        SearchResponse<Log> response = client.search(s -> s.index(logIndexPartitioning.readTarget())
+                        .query(referencing)
+                        .source(c -> c.filter(f -> f.includes("attachments.id")))
+                        .size(batchSize)
+                        .scroll(t -> t.time(SCROLL_KEEP_ALIVE)),
+                Log.class);
+        String scrollId = response.scrollId();
+        try {
+            checkShards(response.shards());
+            List<Hit<Log>> hits = response.hits().hits();
+            while (!hits.isEmpty()) {
+                // Sub-field matches are confirmed by the exact id in the source
+                hits.stream().map(Hit::source)
+                        .filter(log -> log != null && log.getAttachments() != null)
+                        .flatMap(log -> log.getAttachments().stream())
+                        .map(Attachment::getId)
+                        .filter(ids::contains)
+                        .forEach(referenced::add);
+                String currentScrollId = scrollId;
+                ScrollResponse<Log> next = client.scroll(r -> r.scrollId(currentScrollId).scroll(t -> t.time(SCROLL_KEEP_ALIVE)), Log.class);
+                scrollId = next.scrollId();
+                checkShards(next.shards());
+                hits = next.hits().hits();
+            }
+        } finally {
+            if (scrollId != null) {
+                String currentScrollId = scrollId;
+                client.clearScroll(c -> c.scrollId(currentScrollId));
+            }
+        }
+        return referenced;
+    }
+
+    /**
+     * Partial results would make referenced attachments look like orphans.
+     *
+     * @throws IOException If the search failed on any shard.
+     */
+    private static void checkShards(ShardStatistics shards) throws IOException {
+        if (shards.failed().intValue() > 0) {
+            throw new IOException(String.format("Log index search failed on %s of %s shards", shards.failed(), shards.total()));
+        }
+    }
+
+    /**
+     * Copies an orphan to <code>&lt;quarantine directory&gt;/&lt;id&gt;/&lt;file name&gt;</code>, from where it
+     * can be restored by uploading it again.
+     */
+    private void quarantine(Attachment attachment) throws IOException {
+        String filename = attachment.getFilename() == null || attachment.getFilename().isBlank() ? "attachment" : attachment.getFilename();
+        Path directory = Paths.get(quarantineDirectory).resolve(safeName(attachment.getId()));
+        Files.createDirectories(directory);
+        try (InputStream inputStream = attachment.getAttachment().getInputStream()) {
+            Files.copy(inputStream, directory.resolve(safeName(filename)), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String safeName(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_").replaceAll("^\\.+", "_");
+    }
+
+    /**
+     * Attachments to check against the log index, up to <code>attachment.sweeper.batch.size</code>.
+     */
+    private class Batch {
+
+        private final Action action;
+        private final Map<String, Long> lengths = new LinkedHashMap<>();
+        private long checked;
+        private long orphans;
+        private long orphanBytes;
+
+        Batch(Action action) {
+            this.action = action;
+        }
+
+        void add(String id, long length) {
+            lengths.put(id, length);
+        }
+
+        int size() {
+            return lengths.size();
+        }
+
+        void process() {
+            if (lengths.isEmpty()) {
+                return;
+            }
+            try {
+                Set<String> referenced = findReferenced(lengths.keySet());
+                for (Map.Entry<String, Long> entry : new ArrayList<>(lengths.entrySet())) {
+                    if (!referenced.contains(entry.getKey())) {
+                        remove(entry.getKey(), entry.getValue());
+                    }
+                }
+                checked += lengths.size();
+                lengths.clear();
+                if (!batchPause.isZero()) {
+                    Thread.sleep(batchPause.toMillis());
+                }
+            } catch (IOException | InterruptedException e) {
+                throw new BatchException(e);
+            }
+        }
+
+        private void remove(String id, long length) throws IOException {
+            orphans++;
+            orphanBytes += length;
+            AttachmentSweeper.this.orphans.incrementAndGet();
+            if (action == Action.REPORT) {
+                logger.log(Level.INFO, String.format("Attachment %s (%d bytes) is not referenced by any log entry", id, length));
+                return;
+            }
+            if (action == Action.QUARANTINE) {
+                Optional<Attachment> attachment = attachmentRepository.findById(id);
+                if (attachment.isEmpty()) {
+                    return;
+                }
+                quarantine(attachment.get());
+            }
+            attachmentRepository.deleteById(id);
+            bytesReclaimed.addAndGet(length);
+            logger.log(Level.FINE, String.format("Removed orphaned attachment %s (%d bytes)", id, length));
+        }
+    }
+
+    /**
+     * Aborts iterating the store when a batch cannot be processed.
+     */
+    private static class BatchException extends RuntimeException {
+        BatchException(Exception cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package org.phoebus.olog;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.phoebus.olog.entity.Attachment;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.UploadSession;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resumable uploads of large attachments. A client creates an upload for a log entry, appends the content in as
+ * many requests as it takes, e.g. resuming at the offset reported by the service after a dropped connection,
+ * and completes the upload with the SHA-256 hash of the whole content. The content is then stored in the
+ * {@link AttachmentRepository} and added to the log entry.
+ * <p>
+ * Content received is staged in MongoDB in chunks of the GridFS chunk size as it is read from the request, so
+ * neither memory nor local disk holds more than one chunk per request, and an upload may be continued through
+ * any service instance. Uploads not appended to within <code>attachment.upload.expiry</code> are discarded, by a
+ * background purge running every <code>attachment.upload.purge.interval</code>.
+ * <p>
+ * Appending to the same upload concurrently is not supported, and rejected as far as it can be detected. The hash
+ * verified on completion guarantees that the stored attachment is the content the client meant to send.
+ */
+@Component
+@Lazy
+public class AttachmentUploads {
+
+    private static final Logger logger = Logger.getLogger(AttachmentUploads.class.getName());
+
+    static final String UPLOADS_COLLECTION = "attachment_uploads";
+    static final String CHUNKS_COLLECTION = "attachment_upload_chunks";
+    /**
+     * Size of the staged chunks, as used by GridFS.
+     */
+    static final int CHUNK_SIZE = 255 * 1024;
+
+    private static final String LOG_ID = "logId";
+    private static final String FILENAME = "filename";
+    private static final String DESCRIPTION = "fileMetadataDescription";
+    private static final String ATTACHMENT_ID = "attachmentId";
+    private static final String LENGTH = "length";
+    private static final String OFFSET = "offset";
+    private static final String UPDATED = "updated";
+    /**
+     * Set while the upload is stored, such that it is neither appended to nor completed twice.
+     */
+    private static final String COMPLETING = "completing";
+    private static final String UPLOAD = "upload";
+    private static final String DATA = "data";
+
+    @Value("${attachment.upload.expiry:24h}")
+    private Duration expiry;
+    @Value("${attachment.upload.max.size:100GB}")
+    private DataSize maxSize;
+    @Value("${attachment.upload.purge.interval:1h}")
+    private Duration purgeInterval;
+
+    @Autowired
+    private MongoDatabase mongoDatabase;
+    @Autowired
+    private AttachmentRepository attachmentRepository;
+    @Autowired
+    private LogRepository logRepository;
+    @Autowired
+    private ExecutorService executorService;
+
+    private Future<?> purger;
+
+    public AttachmentUploads() {
+    }
+
+    AttachmentUploads(MongoDatabase mongoDatabase, AttachmentRepository attachmentRepository, LogRepository logRepository,
+                      Duration expiry, DataSize maxSize) {
+        this.mongoDatabase = mongoDatabase;
+        this.attachmentRepository = attachmentRepository;
+        this.logRepository = logRepository;
+        this.expiry = expiry;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Creates the index used to read the chunks of an upload in order.
+     */
+    @PostConstruct
+    public void createIndexes() {
+        try {
+            chunks().createIndex(Indexes.ascending(UPLOAD, OFFSET), new IndexOptions().unique(true));
+            uploads().createIndex(Indexes.ascending(UPDATED));
+        } catch (MongoException e) {
+            logger.log(Level.WARNING, "Unable to create upload indexes", e);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startPurge() {
+        purger = executorService.submit(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        purgeExpired();
+                    } catch (MongoException e) {
+                        logger.log(Level.WARNING, "Failed to discard expired uploads", e);
+                    }
+                    Thread.sleep(purgeInterval.toMillis());
+                }
+            } catch (InterruptedException e) {
+                // Shut down
+            }
+        });
+    }
+
+    @PreDestroy
+    public void stopPurge() {
+        if (purger != null) {
+            purger.cancel(true);
+        }
+    }
+
+    /**
+     * @param logId                   Id of an existing log entry
+     * @param filename                File name of the attachment
+     * @param fileMetadataDescription Description of the attachment, may be <code>null</code>
+     * @param attachmentId            Id requested for the attachment, may be <code>null</code>
+     * @param length                  Total length of the content, may be <code>null</code> if not known
+     * @return The new upload
+     */
+    public UploadSession create(String logId, String filename, String fileMetadataDescription, String attachmentId, Long length) {
+        if (length != null && length < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid upload length " + length);
+        }
+        if (length != null && length > maxSize.toBytes()) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Uploads are limited to " + maxSize.toBytes() + " bytes");
+        }
+        Document upload = new Document("_id", UUID.randomUUID().toString())
+                .append(LOG_ID, logId)
+                .append(FILENAME, filename)
+                .append(DESCRIPTION, fileMetadataDescription)
+                .append(ATTACHMENT_ID, attachmentId)
+                .append(LENGTH, length)
+                .append(OFFSET, 0L)
+                .append(UPDATED, new Date());
+        uploads().insertOne(upload);
+        return toUploadSession(upload);
+    }
+
+    /**
+     * @return The upload, which must belong to the log entry.
+     */
+    public UploadSession find(String logId, String uploadId) {
+        return toUploadSession(findUpload(logId, uploadId));
+    }
+
+    /**
+     * Appends content to an upload. The content read is staged chunk by chunk, so if the request is interrupted,
+     * the upload continues after the last complete chunk, see {@link UploadSession#getOffset()}.
+     *
+     * @param logId    Id of the log entry
+     * @param uploadId Id of the upload
+     * @param offset   Offset of the content, which must be the number of bytes received so far
+     * @param content  The content to append
+     * @return The upload, with updated offset.
+     * @throws IOException If the content cannot be read, e.g. because the client disconnected.
+     */
+    public UploadSession append(String logId, String uploadId, long offset, InputStream content) throws IOException {
+        Document upload = findUpload(logId, uploadId);
+        if (upload.getBoolean(COMPLETING, false)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload " + uploadId + " is being completed");
+        }
+        long expected = upload.getLong(OFFSET);
+        if (offset != expected) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload " + uploadId + " continues at offset " + expected);
+        }
+        Long length = upload.getLong(LENGTH);
+        long limit = length != null ? length : maxSize.toBytes();
+        long position = offset;
+        byte[] chunk;
+        while ((chunk = content.readNBytes(CHUNK_SIZE)).length > 0) {
+            if (position + chunk.length > limit) {
+                throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                        "Upload " + uploadId + " exceeds " + limit + " bytes, received up to offset " + position);
+            }
+            // Replaces a chunk staged by an attempt interrupted before the offset was updated
+            chunks().replaceOne(Filters.and(Filters.eq(UPLOAD, uploadId), Filters.eq(OFFSET, position)),
+                    new Document(UPLOAD, uploadId).append(OFFSET, position).append(DATA, new Binary(chunk)),
+                    new ReplaceOptions().upsert(true));
+            long next = position + chunk.length;
+            if (uploads().updateOne(Filters.and(Filters.eq("_id", uploadId), Filters.eq(OFFSET, position), Filters.ne(COMPLETING, true)),
+                    Updates.combine(Updates.set(OFFSET, next), Updates.set(UPDATED, new Date()))).getModifiedCount() == 0) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload " + uploadId + " was modified concurrently");
+            }
+            position = next;
+        }
+        upload.put(OFFSET, position);
+        upload.put(UPDATED, new Date());
+        return toUploadSession(upload);
+    }
+
+    /**
+     * Stores the content of an upload as attachment, adds it to the log entry, and discards the upload.
+     *
+     * @param logId    Id of the log entry
+     * @param uploadId Id of the upload
+     * @param sha256   The hex encoded SHA-256 hash of the whole content as sent by the client
+     * @return The updated log entry
+     */
+    public Log complete(String logId, String uploadId, String sha256) {
+        Document upload = findUpload(logId, uploadId);
+        long received = upload.getLong(OFFSET);
+        Long length = upload.getLong(LENGTH);
+        if (length != null && received != length) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    String.format("Upload %s is incomplete, %d of %d bytes received", uploadId, received, length));
+        }
+        if (uploads().updateOne(Filters.and(Filters.eq("_id", uploadId), Filters.ne(COMPLETING, true)),
+                Updates.set(COMPLETING, true)).getModifiedCount() == 0) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload " + uploadId + " is being completed");
+        }
+        boolean completed = false;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Attachment attachment = new Attachment(upload.getString(ATTACHMENT_ID),
+                    new InputStreamResource(new DigestInputStream(new StagedContentInputStream(uploadId, received), digest)),
+                    upload.getString(FILENAME), upload.getString(DESCRIPTION));
+            Attachment createdAttachment = attachmentRepository.save(attachment);
+            if (createdAttachment == null) {
+                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to store upload " + uploadId);
+            }
+            String contentHash = AttachmentStore.toHex(digest.digest());
+            if (!contentHash.equalsIgnoreCase(sha256)) {
+                attachmentRepository.deleteById(createdAttachment.getId());
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                        String.format("SHA-256 hash of upload %s is %s, expected %s", uploadId, contentHash, sha256));
+            }
+            Log log;
+            try {
+                log = logRepository.addAttachments(logId, List.of(createdAttachment));
+            } catch (ResponseStatusException e) {
+                attachmentRepository.deleteById(createdAttachment.getId());
+                throw e;
+            }
+            completed = true;
+            delete(uploadId);
+            return log;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            if (!completed) {
+                uploads().updateOne(Filters.eq("_id", uploadId), Updates.unset(COMPLETING));
+            }
+        }
+    }
+
+    /**
+     * Discards an upload.
+     */
+    public void delete(String logId, String uploadId) {
+        findUpload(logId, uploadId);
+        delete(uploadId);
+    }
+
+    private void delete(String uploadId) {
+        chunks().deleteMany(Filters.eq(UPLOAD, uploadId));
+        uploads().deleteOne(Filters.eq("_id", uploadId));
+    }
+
+    /**
+     * Discards the uploads not appended to within the expiry time.
+     */
+    void purgeExpired() {
+        Date expired = new Date(System.currentTimeMillis() - expiry.toMillis());
+        for (Document upload : uploads().find(Filters.lt(UPDATED, expired)).projection(new Document("_id", 1))) {
+            logger.log(Level.INFO, "Discarding expired upload " + upload.getString("_id"));
+            delete(upload.getString("_id"));
+        }
+    }
+
+    private Document findUpload(String logId, String uploadId) {
+        Document upload = uploads().find(Filters.eq("_id", uploadId)).first();
+        if (upload == null || !logId.equals(upload.getString(LOG_ID)) ||
+                upload.getDate(UPDATED).getTime() + expiry.toMillis() < System.currentTimeMillis()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Upload " + uploadId + " not found");
+        }
+        return upload;
+    }
+
+    private UploadSession toUploadSession(Document upload) {
+        UploadSession uploadSession = new UploadSession();
+        uploadSession.setId(upload.getString("_id"));
+        uploadSession.setLogId(upload.getString(LOG_ID));
+        uploadSession.setFilename(upload.getString(FILENAME));
+        uploadSession.setFileMetadataDescription(upload.getString(DESCRIPTION));
+        uploadSession.setAttachmentId(upload.getString(ATTACHMENT_ID));
+        uploadSession.setLength(upload.getLong(LENGTH));
+        uploadSession.setOffset(upload.getLong(OFFSET));
+        uploadSession.setExpirationTime(upload.getDate(UPDATED).getTime() + expiry.toMillis());
+        return uploadSession;
+    }
+
+    private MongoCollection<Document> uploads() {
+        return mongoDatabase.getCollection(UPLOADS_COLLECTION);
+    }
+
+    private MongoCollection<Document> chunks() {
+        return mongoDatabase.getCollection(CHUNKS_COLLECTION);
+    }
+
+    /**
+     * Reads the staged chunks of an upload in order, failing if they do not add up to the content received.
+     */
+    private class StagedContentInputStream extends InputStream {
+
+        private final MongoCursor<Document> cursor;
+        private final long length;
+        private long position;
+        private byte[] chunk = new byte[0];
+        private int chunkPosition;
+
+        StagedContentInputStream(String uploadId, long length) {
+            this.cursor = chunks().find(Filters.and(Filters.eq(UPLOAD, uploadId), Filters.lt(OFFSET, length)))
+                    .sort(Sorts.ascending(OFFSET)).iterator();
+            this.length = length;
+        }
+
+        /**
+         * @return <code>false</code> at the end of the content.
+         */
+        private boolean nextChunk() throws IOException {
+            while (chunkPosition == chunk.length) {
+                if (!cursor.hasNext()) {
+                    if (position != length) {
+                        throw new IOException(String.format("Staged content ends at offset %d of %d", position, length));
+                    }
+                    return false;
+                }
+                Document next = cursor.next();
+                if (next.getLong(OFFSET) != position) {
+                    throw new IOException(String.format("Staged chunk at offset %d, expected %d", next.getLong(OFFSET), position));
+                }
+                chunk = next.get(DATA, Binary.class).getData();
+                chunkPosition = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            position++;
+            return chunk[chunkPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int read = Math.min(len, chunk.length - chunkPosition);
+            System.arraycopy(chunk, chunkPosition, b, off, read);
+            chunkPosition += read;
+            position += read;
+            return read;
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.phoebus.olog;
+
+import org.phoebus.olog.entity.Attachment;
+import org.phoebus.olog.entity.Log;
+import org.springframework.http.MediaType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes the attachments of log entries as a ZIP archive to an output stream, e.g. the body of a HTTP response.
+ * Each attachment is copied from the {@link AttachmentRepository} into the archive as it is read, so neither
+ * the archive nor an attachment is ever held in memory or in a temporary file.
+ * <p>
+ * The attachments of a log entry are put in a directory named by the log entry id. Content of types that are
+ * compressed already, e.g. JPEG or PNG images, is not compressed again.
+ */
+public class AttachmentZipWriter implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(AttachmentZipWriter.class.getName());
+
+    /**
+     * Types of content not worth compressing.
+     */
+    private static final List<MediaType> COMPRESSED_TYPES = MediaType.parseMediaTypes(
+            "image/jpeg,image/png,image/gif,image/webp,video/*,audio/*,application/zip,application/gzip," +
+                    "application/x-gzip,application/x-bzip2,application/x-xz,application/x-7z-compressed");
+
+    private final ZipOutputStream zipOutputStream;
+    private final AttachmentRepository attachmentRepository;
+    private final Set<String> entryNames = new HashSet<>();
+    private int attachmentCount;
+
+    /**
+     * @param outputStream         The stream to write the archive to. It is closed when this writer is closed.
+     * @param attachmentRepository The repository to read attachments from.
+     */
+    public AttachmentZipWriter(OutputStream outputStream, AttachmentRepository attachmentRepository) {
+        this.zipOutputStream = new ZipOutputStream(outputStream);
+        this.attachmentRepository = attachmentRepository;
+    }
+
+    /**
+     * Writes the attachments of a log entry. Attachments missing from the {@link AttachmentRepository} are skipped.
+     *
+     * @param log A log entry
+     * @throws IOException If the archive cannot be written, e.g. because the client disconnected.
+     */
+    public void addLog(Log log) throws IOException {
+        if (log.getAttachments() == null) {
+            return;
+        }
+        for (Attachment reference : log.getAttachments()) {
+            Optional<Attachment> attachment = attachmentRepository.findById(reference.getId());
+            if (attachment.isEmpty()) {
+                logger.log(Level.WARNING, String.format("Attachment %s of log entry %d not found", reference.getId(), log.getId()));
+                continue;
+            }
+            String filename = reference.getFilename() != null ? reference.getFilename() : attachment.get().getFilename();
+            ZipEntry zipEntry = new ZipEntry(entryName(log.getId(), reference.getId(), filename));
+            zipOutputStream.setLevel(isCompressed(filename) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+            zipOutputStream.putNextEntry(zipEntry);
+            try (InputStream inputStream = attachment.get().getAttachment().getInputStream()) {
+                inputStream.transferTo(zipOutputStream);
+            }
+            zipOutputStream.closeEntry();
+            attachmentCount++;
+        }
+    }
+
+    /**
+     * @return The number of attachments written so far.
+     */
+    public int getAttachmentCount() {
+        return attachmentCount;
+    }
+
+    /**
+     * Completes the archive and closes the output stream.
+     *
+     * @throws IOException If the archive cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        zipOutputStream.close();
+    }
+
+    /**
+     * @return A unique entry name for the attachment, which cannot escape the directory of the log entry.
+     */
+    private String entryName(Long logId, String attachmentId, String filename) {
+        String safeFilename = filename == null || filename.isBlank() ? attachmentId :
+                filename.replaceAll("[/\\\\]", "_").replaceAll("^\\.+", "_");
+        String name = logId + "/" + safeFilename;
+        if (!entryNames.add(name)) {
+            // Several attachments with the same file name
+            name = logId + "/" + attachmentId + "_" + safeFilename;
+            entryNames.add(name);
+        }
+        return name;
+    }
+
+    static boolean isCompressed(String filename) {
+        MediaType mediaType = ContentTypeResolver.determineMediaType(filename);
+        return mediaType != null && COMPRESSED_TYPES.stream().anyMatch(type -> type.includes(mediaType));
+    }
+}
@@ -0,0 +1,36 @@
+package org.phoebus.olog;
+
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link Resource} whose content may be stored compressed. {@link #getInputStream()} and {@link #contentLength()}
+ * always refer to the original content, while the stored (encoded) content may be sent as is to clients accepting
+ * its encoding, see {@link AttachmentResponses}.
+ */
+public interface CompressedResource extends Resource {
+
+    /**
+     * Content coding of stored content compressed with gzip.
+     */
+    String GZIP = "gzip";
+
+    /**
+     * @return The HTTP content coding of the stored content, e.g. {@link #GZIP}, or <code>null</code> if the
+     * content is stored as is.
+     */
+    String getContentEncoding();
+
+    /**
+     * @return A stream reading the stored content, without decoding it.
+     * @throws IOException If the content cannot be read.
+     */
+    InputStream getEncodedInputStream() throws IOException;
+
+    /**
+     * @return The length of the stored content.
+     */
+    long encodedLength();
+}
@@ -19,10 +19,11 @@
 package org.phoebus.olog;
 
 import org.apache.tika.Tika;
+import org.springframework.http.InvalidMediaTypeException;
 import org.springframework.http.MediaType;
 
-import java.io.File;
-import java.nio.file.Path;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,10 +32,21 @@ import java.util.logging.Logger;
  */
 public class ContentTypeResolver {
 
+    /**
+     * Number of bytes at the start of the content inspected by {@link #detectContentType(InputStream, String)}.
+     */
+    public static final int DETECTION_LENGTH = 8 * 1024;
+
+    /**
+     * Tika is thread safe, and expensive to create as it loads the MIME type definitions.
+     */
+    private static final Tika tika = new Tika();
+
     /**
      * Uses Apache Tika to determine content type based on file name. No attempt to determine
      * the charset is made.
-     * This could be refined to parse file contents rather than relying on the file extension.
+     * Attachments stored with a content type detected from their content should use that instead, see
+     * {@link #detectContentType(InputStream, String)}.
      * @param fileName A file name
      * @return A {@link MediaType} if the content type could be determined,
      * otherwise <code>null</code>. Apache Tika seems to return application/octet-stream for
@@ -44,9 +56,7 @@ public class ContentTypeResolver {
         if(fileName == null || fileName.isEmpty()){
             return null;
         }
-        Path path = new File(fileName).toPath();
         try{
-            Tika tika = new Tika();
             String mimeString = tika.detect(fileName);
             if(mimeString == null || mimeString.isEmpty()){
                 return null;
@@ -60,4 +70,42 @@ public class ContentTypeResolver {
             return null;
         }
     }
+
+    /**
+     * Uses Apache Tika to detect the content type from the magic bytes at the start of the content, falling back
+     * to the file name when the content is not recognized, e.g. for text files. The stream is reset to where it
+     * was, so it may then be read from the start.
+     * @param inputStream A stream supporting {@link InputStream#mark(int)}, positioned at the start of the content.
+     * @param fileName A file name, may be <code>null</code>
+     * @return The content type, e.g. <code>image/png</code>. Unknown content is <code>application/octet-stream</code>.
+     * @throws IOException If the content cannot be read.
+     */
+    public static String detectContentType(InputStream inputStream, String fileName) throws IOException {
+        if (!inputStream.markSupported()) {
+            throw new IllegalArgumentException("Content type detection requires a stream supporting mark");
+        }
+        inputStream.mark(DETECTION_LENGTH);
+        byte[] head;
+        try {
+            head = inputStream.readNBytes(DETECTION_LENGTH);
+        } finally {
+            inputStream.reset();
+        }
+        return tika.detect(head, fileName);
+    }
+
+    /**
+     * @param contentType A content type as stored with an attachment, may be <code>null</code>.
+     * @return The {@link MediaType}, or <code>null</code> if not set or invalid.
+     */
+    public static MediaType parseContentType(String contentType) {
+        if (contentType == null || contentType.isEmpty()) {
+            return null;
+        }
+        try {
+            return MediaType.parseMediaType(contentType);
+        } catch (InvalidMediaTypeException e) {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,27 @@
+package org.phoebus.olog;
+
+import org.springframework.core.io.Resource;
+
+import java.net.URI;
+
+/**
+ * A {@link Resource} holding attachment content that clients may download directly from where it is stored,
+ * e.g. from an object store, instead of through the service. Downloads of such resources are answered with a
+ * redirect to a short-lived URL, see {@link AttachmentResponses}.
+ */
+public interface DirectDownloadResource extends Resource {
+
+    /**
+     * @return <code>true</code> if clients download the content directly, <code>false</code> if the content must
+     * be downloaded through the service.
+     */
+    boolean isDirectDownload();
+
+    /**
+     * @param contentDisposition The <code>Content-Disposition</code> header of the download
+     * @param contentType        The <code>Content-Type</code> header of the download, may be <code>null</code>
+     * @param cacheControl       The <code>Cache-Control</code> header of the download
+     * @return A URL from which the client downloads the content without further authorization.
+     */
+    URI getDirectDownloadUri(String contentDisposition, String contentType, String cacheControl);
+}
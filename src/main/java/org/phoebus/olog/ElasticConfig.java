@@ -1,20 +1,32 @@
 package org.phoebus.olog;
 
+import co.elastic.clients.elasticsearch.ElasticsearchAsyncClient;
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
 import co.elastic.clients.elasticsearch._types.Refresh;
 import co.elastic.clients.elasticsearch.core.IndexRequest;
+import co.elastic.clients.elasticsearch.ilm.PutLifecycleRequest;
+import co.elastic.clients.elasticsearch.ilm.PutLifecycleResponse;
 import co.elastic.clients.elasticsearch.core.IndexResponse;
 import co.elastic.clients.elasticsearch.indices.CreateIndexRequest;
 import co.elastic.clients.elasticsearch.indices.CreateIndexResponse;
 import co.elastic.clients.elasticsearch.indices.ExistsRequest;
+import co.elastic.clients.elasticsearch.indices.PutIndexTemplateRequest;
+import co.elastic.clients.elasticsearch.indices.PutIndexTemplateResponse;
+import co.elastic.clients.elasticsearch.indices.PutMappingRequest;
+import co.elastic.clients.elasticsearch.indices.UpdateAliasesRequest;
 import co.elastic.clients.json.jackson.JacksonJsonpMapper;
 import co.elastic.clients.transport.ElasticsearchTransport;
 import co.elastic.clients.transport.endpoints.BooleanResponse;
 import co.elastic.clients.transport.rest_client.RestClientTransport;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.apache.http.HttpHost;
 import org.elasticsearch.client.RestClient;
+import org.phoebus.olog.entity.Log;
 import org.phoebus.olog.entity.Logbook;
 import org.phoebus.olog.entity.Property;
 import org.phoebus.olog.entity.Tag;
@@ -26,7 +38,9 @@ import org.springframework.context.annotation.PropertySource;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.net.URL;
+import java.time.Instant;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
@@ -57,6 +71,35 @@ public class ElasticConfig {
     private String ES_LOG_INDEX;
     @Value("${elasticsearch.sequence.index:olog_sequence}")
     private String ES_SEQ_INDEX;
+    @Value("${elasticsearch.log.partition:none}")
+    private String logPartition;
+    @Value("${elasticsearch.log.read.alias:olog_logs_read}")
+    private String ES_LOG_READ_ALIAS;
+    @Value("${elasticsearch.log.write.alias:olog_logs_write}")
+    private String ES_LOG_WRITE_ALIAS;
+    @Value("${elasticsearch.log.partition.search.max:36}")
+    private int maxSearchPartitions;
+    @Value("${elasticsearch.log.shards:1}")
+    private int logShards;
+    @Value("${elasticsearch.log.replicas:1}")
+    private int logReplicas;
+
+    @Value("${elasticsearch.ilm.enabled:false}")
+    private boolean ilmEnabled;
+    @Value("${elasticsearch.ilm.policy:olog_logs_policy}")
+    private String ilmPolicy;
+    @Value("${elasticsearch.ilm.rollover.max.size:50gb}")
+    private String ilmRolloverMaxSize;
+    @Value("${elasticsearch.ilm.rollover.max.age:30d}")
+    private String ilmRolloverMaxAge;
+    @Value("${elasticsearch.ilm.warm.min.age:60d}")
+    private String ilmWarmMinAge;
+    @Value("${elasticsearch.ilm.warm.forcemerge.segments:1}")
+    private int ilmWarmMaxSegments;
+    @Value("${elasticsearch.ilm.warm.best.compression:true}")
+    private boolean ilmWarmBestCompression;
+    @Value("${elasticsearch.ilm.warm.readonly:true}")
+    private boolean ilmWarmReadOnly;
 
     @Value("${elasticsearch.cluster.name:elasticsearch}")
     private String clusterName;
@@ -75,6 +118,8 @@ public class ElasticConfig {
     private String defaultPropertiesURL;
 
     private ElasticsearchClient client;
+    private ElasticsearchAsyncClient asyncClient;
+    private LogIndexPartitioning logIndexPartitioning;
     private static final AtomicBoolean esInitialized = new AtomicBoolean();
 
     @Bean({"client"})
@@ -86,7 +131,7 @@ public class ElasticConfig {
             // Create the Java API Client with the same low level client
             ElasticsearchTransport transport = new RestClientTransport(
                     httpClient,
-                    new JacksonJsonpMapper()
+                    createJsonpMapper()
             );
             client = new ElasticsearchClient(transport);
             esInitialized.set(!Boolean.parseBoolean(createIndices));
@@ -98,6 +143,45 @@ public class ElasticConfig {
         return client;
     }
 
+    /**
+     * @return The mapper of the Elasticsearch client. Same as the default one, except that log entries are written
+     * with the flattened search fields, see {@link LogDocumentMixIn}.
+     */
+    static JacksonJsonpMapper createJsonpMapper() {
+        return new JacksonJsonpMapper(new ObjectMapper()
+                .configure(SerializationFeature.INDENT_OUTPUT, false)
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .addMixIn(Log.class, LogDocumentMixIn.class));
+    }
+
+    /**
+     * The non-blocking client shares the transport, and thereby the connection pool, of the blocking client.
+     * @return A {@link ElasticsearchAsyncClient}
+     */
+    @Bean({"asyncClient"})
+    public ElasticsearchAsyncClient getAsyncClient() {
+        if (asyncClient == null) {
+            asyncClient = new ElasticsearchAsyncClient(getClient()._transport());
+        }
+        return asyncClient;
+    }
+
+    @Bean
+    public LogIndexPartitioning logIndexPartitioning() {
+        if (logIndexPartitioning == null) {
+            logIndexPartitioning = new LogIndexPartitioning(ES_LOG_INDEX,
+                    LogIndexPartitioning.Scheme.of(logPartition),
+                    ES_LOG_READ_ALIAS,
+                    ES_LOG_WRITE_ALIAS,
+                    maxSearchPartitions);
+            if (logIndexPartitioning.getScheme() == LogIndexPartitioning.Scheme.ROLLOVER && !ilmEnabled) {
+                logger.warning("Log index partitioning by rollover without index lifecycle management: entries are " +
+                        "written to a single partition that is never rolled over, see elasticsearch.ilm.enabled");
+            }
+        }
+        return logIndexPartitioning;
+    }
+
     /**
      * Create the olog indices and templates if they don't exist
      * @param client
@@ -161,19 +245,157 @@ public class ElasticConfig {
         }
 
         // Olog Log Template
+        if (logIndexPartitioning().isPartitioned()) {
+            elasticLogPartitionValidation(client);
+        } else {
+            if (ilmEnabled) {
+                logger.warning("Index lifecycle management requires a partitioned log index, see elasticsearch.log.partition");
+            }
+            try (InputStream is = ElasticConfig.class.getResourceAsStream("/log_entry_mapping.json")) {
+                BooleanResponse exits = client.indices().exists(ExistsRequest.of(e -> e.index(ES_LOG_INDEX)));
+                if(!exits.value()) {
+
+                    CreateIndexResponse result = client.indices().create(
+                            CreateIndexRequest.of(
+                                    c -> c.index(ES_LOG_INDEX).withJson(is)));
+                    logger.info("Created index: " + ES_LOG_INDEX + " : acknowledged " + result.acknowledged());
+                } else {
+                    elasticLogMappingUpdate(client, ES_LOG_INDEX);
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to create index " + ES_LOG_INDEX, e);
+            }
+        }
+
+    }
+
+    /**
+     * Adds fields introduced in log_entry_mapping.json to the mapping of an existing log index, such that they
+     * are not mapped dynamically when first written. Fields already present in the index must be unchanged.
+     * @param client the elastic client instance
+     * @param index an existing log index
+     */
+    private void elasticLogMappingUpdate(ElasticsearchClient client, String index) {
         try (InputStream is = ElasticConfig.class.getResourceAsStream("/log_entry_mapping.json")) {
-            BooleanResponse exits = client.indices().exists(ExistsRequest.of(e -> e.index(ES_LOG_INDEX)));
-            if(!exits.value()) {
+            String json = mapper.writeValueAsString(mapper.readTree(is).get("mappings"));
+            client.indices().putMapping(PutMappingRequest.of(p -> p.index(index).withJson(new StringReader(json))));
+        } catch (IOException | ElasticsearchException e) {
+            logger.log(Level.WARNING, "Failed to update mapping of index " + index, e);
+        }
+    }
 
+    /**
+     * Installs the index lifecycle policy (if enabled) and the composable index template applied to all log entry
+     * partitions, adds a pre-existing (non-partitioned) log index to the read alias and makes sure the write alias
+     * points to the current partition.
+     * @param client the elastic client instance
+     */
+    private void elasticLogPartitionValidation(ElasticsearchClient client) {
+        LogIndexPartitioning partitioning = logIndexPartitioning();
+        if (ilmEnabled) {
+            elasticLifecyclePolicyValidation(client);
+        }
+        try (InputStream is = ElasticConfig.class.getResourceAsStream("/log_entry_mapping.json")) {
+            ObjectNode template = mapper.createObjectNode();
+            template.putArray("index_patterns").add(partitioning.getIndexPattern());
+            template.put("priority", 100);
+            ObjectNode templateBody = template.putObject("template");
+            ObjectNode settings = templateBody.putObject("settings");
+            settings.put("index.number_of_shards", logShards);
+            settings.put("index.number_of_replicas", logReplicas);
+            if (ilmEnabled) {
+                settings.put("index.lifecycle.name", ilmPolicy);
+                if (partitioning.getScheme() == LogIndexPartitioning.Scheme.ROLLOVER) {
+                    settings.put("index.lifecycle.rollover_alias", partitioning.getWriteAlias());
+                }
+            }
+            templateBody.set("mappings", mapper.readTree(is).get("mappings"));
+            templateBody.putObject("aliases").putObject(partitioning.getReadAlias());
+            String json = mapper.writeValueAsString(template);
+            PutIndexTemplateResponse result = client.indices().putIndexTemplate(
+                    PutIndexTemplateRequest.of(t -> t.name(ES_LOG_INDEX).withJson(new StringReader(json))));
+            logger.info("Created index template: " + ES_LOG_INDEX + " : acknowledged " + result.acknowledged());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to create index template " + ES_LOG_INDEX, e);
+        }
+        // The template only applies to new partitions
+        elasticLogMappingUpdate(client, partitioning.getIndexPattern());
+
+        // Entries created before partitioning was enabled remain searchable through the read alias
+        try {
+            BooleanResponse exists = client.indices().exists(ExistsRequest.of(e -> e.index(ES_LOG_INDEX)));
+            if (exists.value()) {
+                client.indices().updateAliases(UpdateAliasesRequest.of(u -> u.actions(a -> a.add(add ->
+                        add.index(ES_LOG_INDEX).alias(partitioning.getReadAlias())))));
+                elasticLogMappingUpdate(client, ES_LOG_INDEX);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to add index " + ES_LOG_INDEX + " to alias " + partitioning.getReadAlias(), e);
+        }
+
+        if (partitioning.getScheme() == LogIndexPartitioning.Scheme.ROLLOVER) {
+            elasticRolloverBootstrap(client);
+        } else {
+            partitioning.rollWriteAlias(client, Instant.now());
+        }
+    }
+
+    /**
+     * Creates the first rollover index and points the write alias to it, unless the write alias already exists.
+     * Subsequent indices are created by the rollover action of the index lifecycle policy.
+     * @param client the elastic client instance
+     */
+    private void elasticRolloverBootstrap(ElasticsearchClient client) {
+        LogIndexPartitioning partitioning = logIndexPartitioning();
+        String firstIndex = ES_LOG_INDEX + "-000001";
+        try {
+            BooleanResponse exists = client.indices().existsAlias(e -> e.name(partitioning.getWriteAlias()));
+            if (!exists.value()) {
                 CreateIndexResponse result = client.indices().create(
-                        CreateIndexRequest.of(
-                                c -> c.index(ES_LOG_INDEX).withJson(is)));
-                logger.info("Created index: " + ES_LOG_INDEX + " : acknowledged " + result.acknowledged());
+                        CreateIndexRequest.of(c -> c.index(firstIndex)
+                                .aliases(partitioning.getWriteAlias(), a -> a.isWriteIndex(true))));
+                logger.info("Created index: " + firstIndex + " : acknowledged " + result.acknowledged());
             }
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Failed to create index " + ES_LOG_INDEX, e);
+            logger.log(Level.WARNING, "Failed to create index " + firstIndex, e);
         }
+    }
 
+    /**
+     * Creates or updates the index lifecycle policy applied to the log entry partitions:
+     * <ul>
+     *     <li>hot: rollover by size or age, only for the rollover partitioning scheme, as
+     *     calendar based partitions roll over by themselves</li>
+     *     <li>warm: force merge, optionally with the best_compression codec, and optionally a read-only block</li>
+     * </ul>
+     * @param client the elastic client instance
+     */
+    private void elasticLifecyclePolicyValidation(ElasticsearchClient client) {
+        ObjectNode policy = mapper.createObjectNode();
+        ObjectNode phases = policy.putObject("policy").putObject("phases");
+        ObjectNode hotActions = phases.putObject("hot").put("min_age", "0ms").putObject("actions");
+        if (logIndexPartitioning().getScheme() == LogIndexPartitioning.Scheme.ROLLOVER) {
+            ObjectNode rollover = hotActions.putObject("rollover");
+            rollover.put("max_size", ilmRolloverMaxSize);
+            rollover.put("max_age", ilmRolloverMaxAge);
+        }
+        ObjectNode warmActions = phases.putObject("warm").put("min_age", ilmWarmMinAge).putObject("actions");
+        ObjectNode forcemerge = warmActions.putObject("forcemerge");
+        forcemerge.put("max_num_segments", ilmWarmMaxSegments);
+        if (ilmWarmBestCompression) {
+            forcemerge.put("index_codec", "best_compression");
+        }
+        if (ilmWarmReadOnly) {
+            warmActions.putObject("readonly");
+        }
+        try {
+            String json = mapper.writeValueAsString(policy);
+            PutLifecycleResponse result = client.ilm().putLifecycle(
+                    PutLifecycleRequest.of(p -> p.name(ilmPolicy).withJson(new StringReader(json))));
+            logger.info("Created lifecycle policy: " + ilmPolicy + " : acknowledged " + result.acknowledged());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to create lifecycle policy " + ilmPolicy, e);
+        }
     }
 
     private static final ObjectMapper mapper = new ObjectMapper();
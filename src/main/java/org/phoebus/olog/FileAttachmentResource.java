@@ -0,0 +1,42 @@
+package org.phoebus.olog;
+
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Attachment content kept in a local file by {@link FileSystemAttachmentStore}. Downloads of such resources are
+ * written with {@link FileChannelResourceHttpMessageConverter}, i.e. without copying the content through the JVM
+ * heap.
+ */
+public class FileAttachmentResource extends FileSystemResource implements HashedResource {
+
+    private final String contentHash;
+    private final long lastModified;
+
+    public FileAttachmentResource(Path path, String contentHash) {
+        this(path, contentHash, -1);
+    }
+
+    /**
+     * @param path         The file holding the content
+     * @param contentHash  The hex encoded SHA-256 hash of the content
+     * @param lastModified Time the content was stored, if different from the time the file was last modified, or -1.
+     */
+    public FileAttachmentResource(Path path, String contentHash, long lastModified) {
+        super(path);
+        this.contentHash = contentHash;
+        this.lastModified = lastModified;
+    }
+
+    @Override
+    public long lastModified() throws IOException {
+        return lastModified >= 0 ? lastModified : super.lastModified();
+    }
+
+    @Override
+    public String getContentHash() {
+        return contentHash;
+    }
+}
@@ -0,0 +1,65 @@
+package org.phoebus.olog;
+
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.http.converter.ResourceHttpMessageConverter;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes {@link FileAttachmentResource}s without copying the content through the JVM heap: if the servlet
+ * container supports it, the file is handed over to Tomcat's sendfile support, which lets the operating system
+ * copy the file to the socket. Otherwise the file is written with {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+ * <p>
+ * Other resources, and byte ranges of any resource, are written as by {@link ResourceHttpMessageConverter}.
+ */
+public class FileChannelResourceHttpMessageConverter extends ResourceHttpMessageConverter {
+
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    @Override
+    protected void writeContent(Resource resource, HttpOutputMessage outputMessage)
+            throws IOException, HttpMessageNotWritableException {
+        if (!(resource instanceof FileAttachmentResource)) {
+            super.writeContent(resource, outputMessage);
+            return;
+        }
+        long length = resource.contentLength();
+        HttpServletRequest request = currentRequest();
+        if (request != null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR)) &&
+                !"HEAD".equals(request.getMethod())) {
+            // Tomcat writes the file when the response is committed, the body must remain empty
+            request.setAttribute(SENDFILE_FILENAME_ATTR, resource.getFile().getAbsolutePath());
+            request.setAttribute(SENDFILE_START_ATTR, 0L);
+            request.setAttribute(SENDFILE_END_ATTR, length);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(outputMessage.getBody());
+            long position = 0;
+            while (position < length) {
+                long transferred = channel.transferTo(position, length - position, target);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    private static HttpServletRequest currentRequest() {
+        return RequestContextHolder.getRequestAttributes() instanceof ServletRequestAttributes ?
+                ((ServletRequestAttributes) RequestContextHolder.getRequestAttributes()).getRequest() : null;
+    }
+}
@@ -0,0 +1,322 @@
+package org.phoebus.olog;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.phoebus.olog.entity.Attachment;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * {@link AttachmentStore} keeping attachments in a local directory, which removes the need for MongoDB. The
+ * directory layout is:
+ * <pre>
+ * blobs/ab/cd/abcd...              Content, named by its SHA-256 hash
+ * blobs/ab/cd/abcd....refs/ef01... One empty file per attachment referencing the content
+ * attachments/ef/01/ef01....json   File name and description of an attachment, named by the SHA-256 hash of its id
+ * tmp/                             Files being written
+ * </pre>
+ * Files are sharded into directories by the first two bytes of their name, which keeps directories small.
+ * Content and attachment descriptions are written to <code>tmp</code> first, and moved or linked in place once
+ * complete, so a crash never leaves a partially written file in place. Identical content is stored once.
+ * The <code>tmp</code> directory must be on the same file system as the others.
+ * <p>
+ * The directory must not be shared by multiple service instances.
+ */
+@Component(FileSystemAttachmentStore.NAME + AttachmentStore.BEAN_NAME_SUFFIX)
+@Lazy
+public class FileSystemAttachmentStore implements AttachmentStore {
+
+    /**
+     * Name of this store in <code>attachment.store</code>.
+     */
+    public static final String NAME = "filesystem";
+
+    private static final Logger logger = Logger.getLogger(FileSystemAttachmentStore.class.getName());
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${attachment.store.filesystem.directory:${user.home}/olog/attachments}")
+    private String directory;
+
+    private Path blobs;
+    private Path attachments;
+    private Path tmp;
+
+    /**
+     * Guards the reference files of content, such that content is not deleted while a reference is added.
+     */
+    private final Object[] locks = new Object[64];
+
+    /**
+     * Contents of an attachment description file.
+     */
+    static class AttachmentRecord {
+        public String id;
+        public String filename;
+        public String fileMetadataDescription;
+        public String contentHash;
+        public String contentType;
+        public long created;
+    }
+
+    public FileSystemAttachmentStore() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    FileSystemAttachmentStore(String directory) {
+        this();
+        this.directory = directory;
+    }
+
+    @PostConstruct
+    public void init() {
+        Path root = Paths.get(directory);
+        blobs = root.resolve("blobs");
+        attachments = root.resolve("attachments");
+        tmp = root.resolve("tmp");
+        try {
+            Files.createDirectories(blobs);
+            Files.createDirectories(attachments);
+            Files.createDirectories(tmp);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create attachment directory " + root, e);
+        }
+        logger.log(Level.INFO, "Storing attachments in " + root.toAbsolutePath());
+    }
+
+    @Override
+    public Attachment save(Attachment entity) {
+        String id = entity.getId() != null && !entity.getId().isEmpty() ? entity.getId() : UUID.randomUUID().toString();
+        Path recordPath = recordPath(id);
+        if (Files.exists(recordPath)) {
+            logger.log(Level.WARNING, String.format("Unable to persist attachment %s, id %s exists", entity.getFilename(), id));
+            return null;
+        }
+        Path tmpContent = null;
+        String referencedContentHash = null;
+        try {
+            tmpContent = Files.createTempFile(tmp, "content", null);
+            String contentHash;
+            try (InputStream content = new BufferedInputStream(entity.getAttachment().getInputStream(), ContentTypeResolver.DETECTION_LENGTH);
+                 FileChannel channel = FileChannel.open(tmpContent, StandardOpenOption.WRITE)) {
+                entity.setContentType(ContentTypeResolver.detectContentType(content, entity.getFilename()));
+                DigestInputStream inputStream = new DigestInputStream(content, MessageDigest.getInstance("SHA-256"));
+                inputStream.transferTo(Channels.newOutputStream(channel));
+                channel.force(true);
+                contentHash = AttachmentStore.toHex(inputStream.getMessageDigest().digest());
+            }
+            Path blob = blobPath(contentHash);
+            synchronized (lockFor(contentHash)) {
+                Files.createDirectories(blob.getParent());
+                if (Files.exists(blob)) {
+                    Files.delete(tmpContent);
+                } else {
+                    Files.move(tmpContent, blob, StandardCopyOption.ATOMIC_MOVE);
+                }
+                Path references = referencesPath(contentHash);
+                Files.createDirectories(references);
+                // Fails if a concurrent save of the same id and content created the reference
+                Files.createFile(references.resolve(key(id)));
+                referencedContentHash = contentHash;
+            }
+
+            AttachmentRecord record = new AttachmentRecord();
+            record.id = id;
+            record.filename = entity.getFilename();
+            record.fileMetadataDescription = entity.getFileMetadataDescription();
+            record.contentHash = contentHash;
+            record.contentType = entity.getContentType();
+            record.created = Instant.now().toEpochMilli();
+            writeAtomically(recordPath, objectMapper.writeValueAsBytes(record));
+            entity.setId(id);
+            return entity;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            logger.log(Level.WARNING, String.format("Unable to persist attachment %s", entity.getFilename()), e);
+            if (tmpContent != null) {
+                try {
+                    Files.deleteIfExists(tmpContent);
+                } catch (IOException ex) {
+                    // Ignore, tmp is not read
+                }
+            }
+            if (referencedContentHash != null) {
+                try {
+                    removeReference(referencedContentHash, id);
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Unable to remove reference of attachment " + id, ex);
+                }
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public Optional<Attachment> findById(String id) {
+        Optional<AttachmentRecord> record = readRecord(recordPath(id));
+        if (record.isEmpty()) {
+            return Optional.empty();
+        }
+        Path blob = blobPath(record.get().contentHash);
+        if (!Files.exists(blob)) {
+            logger.log(Level.WARNING, "Content of attachment " + id + " missing: " + blob);
+            return Optional.empty();
+        }
+        Attachment attachment = new Attachment(id, new FileAttachmentResource(blob, record.get().contentHash),
+                record.get().filename, record.get().fileMetadataDescription);
+        attachment.setContentType(record.get().contentType);
+        return Optional.of(attachment);
+    }
+
+    @Override
+    public void deleteById(String id) {
+        Path recordPath = recordPath(id);
+        Optional<AttachmentRecord> record = readRecord(recordPath);
+        if (record.isEmpty()) {
+            return;
+        }
+        String contentHash = record.get().contentHash;
+        try {
+            Files.delete(recordPath);
+            removeReference(contentHash, id);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to delete attachment " + id, e);
+        }
+    }
+
+    /**
+     * Removes the reference of an attachment to content, and the content if no longer referenced.
+     */
+    private void removeReference(String contentHash, String id) throws IOException {
+        synchronized (lockFor(contentHash)) {
+            Path references = referencesPath(contentHash);
+            Files.deleteIfExists(references.resolve(key(id)));
+            boolean referenced;
+            try (DirectoryStream<Path> remaining = Files.newDirectoryStream(references)) {
+                referenced = remaining.iterator().hasNext();
+            }
+            if (!referenced) {
+                Files.delete(references);
+                Files.deleteIfExists(blobPath(contentHash));
+            }
+        }
+    }
+
+    @Override
+    public void forEachId(Consumer<String> consumer) {
+        try (Stream<Path> records = Files.walk(attachments)) {
+            records.filter(path -> path.toString().endsWith(".json"))
+                    .map(this::readRecord)
+                    .flatMap(Optional::stream)
+                    .forEach(record -> consumer.accept(record.id));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void forEachIdStoredBefore(Instant storedBefore, BiConsumer<String, Long> consumer) {
+        try (Stream<Path> records = Files.walk(attachments)) {
+            records.filter(path -> path.toString().endsWith(".json"))
+                    .map(this::readRecord)
+                    .flatMap(Optional::stream)
+                    .filter(record -> record.created < storedBefore.toEpochMilli())
+                    .forEach(record -> consumer.accept(record.id, blobPath(record.contentHash).toFile().length()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Optional<AttachmentRecord> readRecord(Path recordPath) {
+        try {
+            return Optional.of(objectMapper.readValue(recordPath.toFile(), AttachmentRecord.class));
+        } catch (FileNotFoundException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to read attachment description " + recordPath, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Writes a new file such that readers never see partial content.
+     *
+     * @throws FileAlreadyExistsException If the file exists, e.g. written by a concurrent save of the same id.
+     */
+    private void writeAtomically(Path path, byte[] content) throws IOException {
+        Path tmpFile = Files.createTempFile(tmp, "record", null);
+        try {
+            try (OutputStream outputStream = Files.newOutputStream(tmpFile, StandardOpenOption.WRITE, StandardOpenOption.SYNC)) {
+                outputStream.write(content);
+            }
+            Files.createDirectories(path.getParent());
+            // Unlike a move, which replaces an existing file on POSIX file systems, linking fails if the file exists
+            Files.createLink(path, tmpFile);
+        } finally {
+            Files.delete(tmpFile);
+        }
+    }
+
+    /**
+     * @return A name for the id that is safe to use as file name.
+     */
+    static String key(String id) {
+        try {
+            return AttachmentStore.toHex(MessageDigest.getInstance("SHA-256").digest(id.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return Path of the name in the directory, sharded by the first two bytes of the name.
+     */
+    static Path shard(Path directory, String name) {
+        return directory.resolve(name.substring(0, 2)).resolve(name.substring(2, 4)).resolve(name);
+    }
+
+    private Path recordPath(String id) {
+        return shard(attachments, key(id) + ".json");
+    }
+
+    private Path blobPath(String contentHash) {
+        return shard(blobs, contentHash);
+    }
+
+    private Path referencesPath(String contentHash) {
+        return shard(blobs, contentHash + ".refs");
+    }
+
+    private Object lockFor(String contentHash) {
+        return locks[Math.floorMod(contentHash.hashCode(), locks.length)];
+    }
+}
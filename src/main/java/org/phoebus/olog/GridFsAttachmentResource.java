@@ -0,0 +1,148 @@
+package org.phoebus.olog;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.springframework.core.io.AbstractResource;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A {@link org.springframework.core.io.Resource} backed by a GridFS file. Unlike
+ * {@link org.springframework.data.mongodb.gridfs.GridFsResource}, each call to {@link #getInputStream()}
+ * opens a new download stream, so the resource may be read multiple times, e.g. once per requested
+ * byte range.
+ * <p>
+ * Skipping in the download stream only moves the read position: chunks before the new position are
+ * never fetched from MongoDB. Range requests for the end of a large file are therefore cheap, unless the file
+ * is stored compressed: it is then decompressed while read, up to the new position.
+ * <p>
+ * A resource read from secondaries of a replica set reads each download stream in a causally consistent session
+ * continuing the session of the lookup. The members serving the files document and the chunks then wait until
+ * they have replicated at least what the lookup saw, so a lagging member cannot fail a download with a
+ * missing chunk.
+ */
+public class GridFsAttachmentResource extends AbstractResource implements HashedResource, CompressedResource {
+
+    private final GridFSBucket gridFSBucket;
+    private final GridFSFile gridFSFile;
+    private final MongoClient mongoClient;
+    private final BsonDocument clusterTime;
+    private final BsonTimestamp operationTime;
+
+    public GridFsAttachmentResource(GridFSBucket gridFSBucket, GridFSFile gridFSFile) {
+        this.gridFSBucket = gridFSBucket;
+        this.gridFSFile = gridFSFile;
+        this.mongoClient = null;
+        this.clusterTime = null;
+        this.operationTime = null;
+    }
+
+    /**
+     * @param gridFSBucket  The bucket, with the read preference of the download
+     * @param gridFSFile    The file
+     * @param mongoClient   The client starting the session of each download stream
+     * @param lookupSession The causally consistent session in which the file has been looked up
+     */
+    public GridFsAttachmentResource(GridFSBucket gridFSBucket, GridFSFile gridFSFile, MongoClient mongoClient, ClientSession lookupSession) {
+        this.gridFSBucket = gridFSBucket;
+        this.gridFSFile = gridFSFile;
+        this.mongoClient = mongoClient;
+        this.clusterTime = lookupSession.getClusterTime();
+        this.operationTime = lookupSession.getOperationTime();
+    }
+
+    public GridFSFile getGridFSFile() {
+        return gridFSFile;
+    }
+
+    @Override
+    public String getContentHash() {
+        return gridFSFile.getMetadata() == null ? null : gridFSFile.getMetadata().getString(GridFsAttachmentStore.METADATA_SHA256);
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return gridFSFile.getMetadata() == null ? null : gridFSFile.getMetadata().getString(GridFsAttachmentStore.METADATA_CONTENT_ENCODING);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (CompressedResource.GZIP.equals(getContentEncoding())) {
+            return new GZIPInputStream(getEncodedInputStream(), 64 * 1024);
+        }
+        return getEncodedInputStream();
+    }
+
+    @Override
+    public InputStream getEncodedInputStream() {
+        if (mongoClient == null) {
+            return gridFSBucket.openDownloadStream(gridFSFile.getId());
+        }
+        ClientSession session = mongoClient.startSession(ClientSessionOptions.builder().causallyConsistent(true).build());
+        try {
+            if (clusterTime != null) {
+                session.advanceClusterTime(clusterTime);
+            }
+            if (operationTime != null) {
+                session.advanceOperationTime(operationTime);
+            }
+            return new FilterInputStream(gridFSBucket.openDownloadStream(session, gridFSFile.getId())) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        session.close();
+                    }
+                }
+            };
+        } catch (RuntimeException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        if (getContentEncoding() != null) {
+            Number length = gridFSFile.getMetadata().get(GridFsAttachmentStore.METADATA_UNCOMPRESSED_LENGTH, Number.class);
+            if (length != null) {
+                return length.longValue();
+            }
+        }
+        return gridFSFile.getLength();
+    }
+
+    @Override
+    public long encodedLength() {
+        return gridFSFile.getLength();
+    }
+
+    @Override
+    public long lastModified() {
+        return gridFSFile.getUploadDate().getTime();
+    }
+
+    @Override
+    public String getFilename() {
+        return gridFSFile.getFilename();
+    }
+
+    @Override
+    public String getDescription() {
+        return "GridFS file [" + gridFSFile.getId() + "]";
+    }
+}
@@ -0,0 +1,541 @@
+/*
+ * Copyright (c) 2010-2020 Brookhaven National Laboratory
+ * Copyright (c) 2010-2020 Helmholtz-Zentrum Berlin für Materialien und Energie GmbH
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package org.phoebus.olog;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSUploadStream;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.phoebus.olog.entity.Attachment;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * {@link AttachmentStore} keeping attachments in MongoDB GridFS.
+ * <p>
+ * Attachment content is deduplicated based on its SHA-256 hash: if a GridFS file with identical content
+ * exists, its reference count is incremented and a reference to it is stored instead of a new GridFS file.
+ * Downscaled renditions of images are generated by {@link AttachmentRenditions}.
+ * <p>
+ * Content of compressible types (<code>attachment.compression.types</code>, e.g. text, CSV or XML) is stored
+ * compressed with gzip. The content hash and the length recorded in the metadata are those of the original content.
+ */
+@Component(GridFsAttachmentStore.NAME + AttachmentStore.BEAN_NAME_SUFFIX)
+@Lazy
+public class GridFsAttachmentStore implements AttachmentStore {
+
+    /**
+     * Name of this store in <code>attachment.store</code>.
+     */
+    public static final String NAME = "gridfs";
+
+    /**
+     * GridFS metadata key of the description (typically the content type) set by client.
+     */
+    public static final String METADATA_DESCRIPTION = "meta-data";
+    /**
+     * GridFS metadata key of the hex encoded SHA-256 hash of the attachment content, computed at upload.
+     */
+    public static final String METADATA_SHA256 = "sha256";
+    /**
+     * GridFS metadata key of the number of attachments referencing the content of the file, including the
+     * attachment with the id of the file. Absent for files uploaded before content was deduplicated.
+     */
+    public static final String METADATA_REF_COUNT = "refCount";
+    /**
+     * GridFS metadata key set on a file when the attachment with the id of the file is deleted while other
+     * attachments still reference its content.
+     */
+    public static final String METADATA_DELETED = "deleted";
+    /**
+     * GridFS metadata key of the HTTP content coding (e.g. <code>gzip</code>) of a file stored compressed.
+     * Absent for files stored as is.
+     */
+    public static final String METADATA_CONTENT_ENCODING = "contentEncoding";
+    /**
+     * GridFS metadata key of the length of the original content of a file stored compressed.
+     */
+    public static final String METADATA_UNCOMPRESSED_LENGTH = "uncompressedLength";
+    /**
+     * GridFS metadata key of the content type detected from the content at upload. Absent for files uploaded
+     * before detection was introduced. Also set on references, as the type may depend on the file name.
+     */
+    public static final String METADATA_CONTENT_TYPE = "contentType";
+
+    /**
+     * Collection of attachments sharing the content of a GridFS file, keyed by attachment id.
+     */
+    static final String REFERENCES_COLLECTION = "attachment_refs";
+    private static final String REFERENCE_BLOB_ID = "blobId";
+    private static final String REFERENCE_FILENAME = "filename";
+    private static final String REFERENCE_CREATED = "created";
+    private static final String FILES_COLLECTION = "fs.files";
+    private static final String METADATA = "metadata";
+    /**
+     * Number of ids read per query when listing attachments.
+     */
+    private static final int ID_PAGE_SIZE = 1000;
+
+    @SuppressWarnings("unused")
+    @Autowired
+    private GridFsTemplate gridFsTemplate;
+    @SuppressWarnings("unused")
+    @Autowired
+    private GridFSBucket gridFSBucket;
+    @Autowired
+    private MongoDatabase mongoDatabase;
+    @Autowired
+    private MongoClient mongoClient;
+    @Autowired
+    private AttachmentRenditions attachmentRenditions;
+
+    @Value("${attachment.compression:" + CompressedResource.GZIP + "}")
+    private String compression;
+    @Value("${attachment.compression.types:text/*,application/xml,application/json,application/csv,application/x-yaml,application/javascript}")
+    private String compressionTypes;
+    /**
+     * Read preference of {@link #findById(String)}, i.e. of attachment downloads. Other reads use the primary.
+     */
+    @Value("${mongo.attachment.read.preference:secondaryPreferred}")
+    private String downloadReadPreference;
+
+    /**
+     * Saves an attachment. If the client does not set the id of the entity, the id of the persisted entity
+     * will be set by GridFs.
+     * <p>
+     * If the content can be read more than once (e.g. a {@link org.springframework.web.multipart.MultipartFile}),
+     * the hash is computed before uploading and no chunks are written for duplicates. Otherwise the hash is
+     * computed while uploading, and the new GridFS file is removed if it turns out to be a duplicate.
+     */
+    @Override
+    public Attachment save(Attachment entity) {
+        try {
+            InputStreamSource source = entity.getAttachment();
+            if (AttachmentStore.isRereadable(source)) {
+                try (InputStream inputStream = new BufferedInputStream(source.getInputStream(), ContentTypeResolver.DETECTION_LENGTH)) {
+                    entity.setContentType(ContentTypeResolver.detectContentType(inputStream, entity.getFilename()));
+                }
+                String contentHash = AttachmentStore.computeContentHash(source);
+                GridFSFile blob = findByContentHash(contentHash, null);
+                if (blob != null && addReference(blob, entity)) {
+                    return entity;
+                }
+            }
+            GridFSFile uploaded = upload(entity);
+            GridFSFile blob = findByContentHash(uploaded.getMetadata().getString(METADATA_SHA256), uploaded);
+            if (blob != null && addReference(blob, entity)) {
+                // The reference now resolves to the older copy. The uploaded file is released rather than deleted:
+                // a concurrent save may have referenced it meanwhile.
+                filesCollection().updateOne(Filters.eq("_id", uploaded.getId()), Updates.set(METADATA + "." + METADATA_DELETED, true));
+                release(uploaded.getId());
+            } else {
+                attachmentRenditions.submit(uploaded);
+            }
+            return entity;
+        } catch (IOException | NoSuchAlgorithmException | MongoException e) {
+            Logger.getLogger(GridFsAttachmentStore.class.getName())
+                    .log(Level.WARNING, String.format("Unable to persist attachment %s", entity.getFilename()), e);
+        }
+        return null;
+    }
+
+    /**
+     * Uploads the attachment content to a new GridFS file, and sets the id of the entity if not set by client.
+     *
+     * @return The files document of the new GridFS file.
+     */
+    private GridFSFile upload(Attachment entity) throws IOException, NoSuchAlgorithmException {
+        try (InputStream content = new BufferedInputStream(entity.getAttachment().getInputStream(), 64 * 1024)) {
+            // Detected from the first bytes, before they are hashed
+            entity.setContentType(ContentTypeResolver.detectContentType(content, entity.getFilename()));
+            // The upload stream writes the files document on close, so the content hash computed while
+            // streaming can still be added to the metadata.
+            Document metadata = new Document(METADATA_DESCRIPTION, entity.getFileMetadataDescription())
+                    .append(METADATA_REF_COUNT, 1)
+                    .append(METADATA_CONTENT_TYPE, entity.getContentType());
+            boolean compress = isCompressible(entity);
+            if (compress) {
+                metadata.append(METADATA_CONTENT_ENCODING, CompressedResource.GZIP);
+            }
+            GridFSUploadOptions options = new GridFSUploadOptions().metadata(metadata);
+            DigestInputStream inputStream = new DigestInputStream(content, MessageDigest.getInstance("SHA-256"));
+            GridFSUploadStream uploadStream;
+            if (entity.getId() != null && !entity.getId().isEmpty()) {
+                uploadStream = gridFSBucket.openUploadStream(new BsonString(entity.getId()), entity.getFilename(), options);
+            } else {
+                uploadStream = gridFSBucket.openUploadStream(entity.getFilename(), options);
+            }
+            long length;
+            try {
+                if (compress) {
+                    // Not closed, which would close the upload stream
+                    GZIPOutputStream gzipStream = new GZIPOutputStream(uploadStream, 64 * 1024);
+                    length = inputStream.transferTo(gzipStream);
+                    gzipStream.finish();
+                } else {
+                    length = inputStream.transferTo(uploadStream);
+                }
+            } catch (IOException | RuntimeException e) {
+                uploadStream.abort();
+                throw e;
+            }
+            metadata.put(METADATA_SHA256, AttachmentStore.toHex(inputStream.getMessageDigest().digest()));
+            if (compress) {
+                metadata.put(METADATA_UNCOMPRESSED_LENGTH, length);
+            }
+            uploadStream.close();
+            if (entity.getId() == null || entity.getId().isEmpty()) {
+                entity.setId(uploadStream.getObjectId().toString());
+            }
+            return gridFSBucket.find(Filters.eq("_id", uploadStream.getId())).first();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if compression is enabled and the content type, as detected or else determined
+     * from the file name or from the description set by client, is one of the compressible types.
+     */
+    private boolean isCompressible(Attachment entity) {
+        if (!CompressedResource.GZIP.equals(compression)) {
+            return false;
+        }
+        MediaType mediaType = ContentTypeResolver.parseContentType(entity.getContentType());
+        if (mediaType == null || MediaType.APPLICATION_OCTET_STREAM.equals(mediaType)) {
+            mediaType = ContentTypeResolver.determineMediaType(entity.getFilename());
+        }
+        if (mediaType == null || MediaType.APPLICATION_OCTET_STREAM.equals(mediaType)) {
+            try {
+                mediaType = MediaType.parseMediaType(entity.getFileMetadataDescription());
+            } catch (InvalidMediaTypeException e) {
+                return false;
+            }
+        }
+        MediaType contentType = mediaType;
+        return MediaType.parseMediaTypes(compressionTypes).stream().anyMatch(type -> type.includes(contentType));
+    }
+
+    /**
+     * Finds the oldest GridFS file with the given content, in the order of upload date then id. When called for
+     * a file just uploaded, only files preceding it in that order are considered: of two identical files uploaded
+     * concurrently, the newer one defers to the older one, never both to each other.
+     *
+     * @param contentHash The hex encoded SHA-256 hash of the content.
+     * @param uploaded    A GridFS file just uploaded, may be <code>null</code>.
+     * @return A GridFS file with the given content that may be referenced, or <code>null</code>.
+     */
+    private GridFSFile findByContentHash(String contentHash, GridFSFile uploaded) {
+        Bson filter = Filters.and(Filters.eq(METADATA + "." + METADATA_SHA256, contentHash),
+                Filters.gte(METADATA + "." + METADATA_REF_COUNT, 1));
+        if (uploaded != null) {
+            filter = Filters.and(filter, Filters.or(Filters.lt("uploadDate", uploaded.getUploadDate()),
+                    Filters.and(Filters.eq("uploadDate", uploaded.getUploadDate()), Filters.lt("_id", uploaded.getId()))));
+        }
+        return gridFSBucket.find(filter).sort(Sorts.ascending("uploadDate", "_id")).first();
+    }
+
+    /**
+     * Stores a reference to an existing GridFS file for the attachment, and sets the id of the entity if
+     * not set by client. The reference count of the GridFS file is incremented first, so that it cannot be
+     * deleted while referenced.
+     *
+     * @return <code>false</code> if the GridFS file was released concurrently, in which case no reference is stored.
+     */
+    private boolean addReference(GridFSFile blob, Attachment entity) {
+        UpdateResult result = filesCollection().updateOne(
+                Filters.and(Filters.eq("_id", blob.getId()), Filters.gte(METADATA + "." + METADATA_REF_COUNT, 1)),
+                Updates.inc(METADATA + "." + METADATA_REF_COUNT, 1));
+        if (result.getModifiedCount() == 0) {
+            return false;
+        }
+        String id = entity.getId() != null && !entity.getId().isEmpty() ? entity.getId() : new ObjectId().toString();
+        try {
+            referencesCollection().insertOne(new Document("_id", id)
+                    .append(REFERENCE_BLOB_ID, blob.getId())
+                    .append(REFERENCE_FILENAME, entity.getFilename())
+                    .append(METADATA_DESCRIPTION, entity.getFileMetadataDescription())
+                    .append(METADATA_CONTENT_TYPE, entity.getContentType())
+                    .append(REFERENCE_CREATED, new Date()));
+        } catch (MongoException e) {
+            release(blob.getId());
+            throw e;
+        }
+        entity.setId(id);
+        return true;
+    }
+
+    /**
+     * Decrements the reference count of a GridFS file, and deletes the file when no longer referenced.
+     */
+    private void release(BsonValue blobId) {
+        Document files = filesCollection().findOneAndUpdate(Filters.eq("_id", blobId),
+                Updates.inc(METADATA + "." + METADATA_REF_COUNT, -1),
+                new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+        if (files != null && files.get(METADATA, Document.class).getInteger(METADATA_REF_COUNT, 0) <= 0) {
+            gridFSBucket.delete(blobId);
+            attachmentRenditions.delete(blobId);
+        }
+    }
+
+    /**
+     * GridFS file ids are read back from references as {@link ObjectId} or {@link String}.
+     */
+    private static BsonValue toBsonValue(Object id) {
+        return id instanceof ObjectId ? new BsonObjectId((ObjectId) id) : new BsonString(String.valueOf(id));
+    }
+
+    private MongoCollection<Document> filesCollection() {
+        return mongoDatabase.getCollection(FILES_COLLECTION);
+    }
+
+    private MongoCollection<Document> referencesCollection() {
+        return mongoDatabase.getCollection(REFERENCES_COLLECTION);
+    }
+
+    /**
+     * Creates the indexes used to look up GridFS files by content hash and references by GridFS file.
+     */
+    @PostConstruct
+    public void createIndexes() {
+        try {
+            filesCollection().createIndex(Indexes.ascending(METADATA + "." + METADATA_SHA256), new IndexOptions().sparse(true));
+            filesCollection().createIndex(Indexes.ascending(METADATA + "." + AttachmentRenditions.METADATA_RENDITION_OF), new IndexOptions().sparse(true));
+            referencesCollection().createIndex(Indexes.ascending(REFERENCE_BLOB_ID));
+        } catch (MongoException e) {
+            Logger.getLogger(GridFsAttachmentStore.class.getName())
+                    .log(Level.WARNING, "Unable to create attachment indexes", e);
+        }
+    }
+
+    /**
+     * Finds an attachment to download it. The attachment and its content are read with
+     * <code>mongo.attachment.read.preference</code>, e.g. from a secondary of a replica set, and from the primary
+     * if not found there.
+     *
+     * @param id The unique id of an attachment, i.e. the id of a GridFS file or of a reference to one.
+     */
+    @Override
+    public Optional<Attachment> findById(String id) {
+        ReadPreference readPreference = ReadPreference.valueOf(downloadReadPreference);
+        Optional<Attachment> attachment = findById(id, readPreference);
+        if (attachment.isEmpty() && !readPreference.equals(ReadPreference.primary())) {
+            // E.g. stored moments ago and not yet replicated to the secondary
+            attachment = findById(id, ReadPreference.primary());
+        }
+        return attachment;
+    }
+
+    /**
+     * @param readPreference Read preference of the lookup and of the download of the content. Unless reading from
+     *                       the primary, the download continues the causally consistent session of the lookup, see
+     *                       {@link GridFsAttachmentResource}.
+     */
+    private Optional<Attachment> findById(String id, ReadPreference readPreference) {
+        if (readPreference.equals(ReadPreference.primary())) {
+            return findById(id, gridFSBucket, null);
+        }
+        try (ClientSession session = mongoClient.startSession(ClientSessionOptions.builder().causallyConsistent(true).build())) {
+            return findById(id, gridFSBucket.withReadPreference(readPreference), session);
+        }
+    }
+
+    /**
+     * @param session The causally consistent session of the lookup, or <code>null</code> when reading from the primary.
+     */
+    private Optional<Attachment> findById(String id, GridFSBucket bucket, ClientSession session) {
+        Attachment attachment = new Attachment();
+        attachment.setId(id);
+        MongoCollection<Document> references = referencesCollection().withReadPreference(bucket.getReadPreference());
+        Bson byId = Filters.eq("_id", id);
+        Document reference = (session == null ? references.find(byId) : references.find(session, byId)).first();
+        if (reference != null) {
+            Bson byBlobId = Filters.eq("_id", reference.get(REFERENCE_BLOB_ID));
+            GridFSFile gridFsFile = (session == null ? bucket.find(byBlobId) : bucket.find(session, byBlobId)).first();
+            if (gridFsFile == null) {
+                return Optional.empty();
+            }
+            attachment.setAttachment(toResource(bucket, gridFsFile, session));
+            attachment.setFilename(reference.getString(REFERENCE_FILENAME));
+            attachment.setFileMetadataDescription(reference.getString(METADATA_DESCRIPTION));
+            String contentType = reference.getString(METADATA_CONTENT_TYPE);
+            attachment.setContentType(contentType != null ? contentType : gridFsFile.getMetadata().getString(METADATA_CONTENT_TYPE));
+            return Optional.of(attachment);
+        }
+        // Ids that look like an ObjectId are stored as such, as by GridFsTemplate
+        Bson byFileId = Filters.eq("_id", ObjectId.isValid(id) ? new ObjectId(id) : id);
+        GridFSFile gridFsFile = (session == null ? bucket.find(byFileId) : bucket.find(session, byFileId)).first();
+        if (gridFsFile == null || gridFsFile.getMetadata().getBoolean(METADATA_DELETED, false)) {
+            return Optional.empty();
+        }
+        attachment.setAttachment(toResource(bucket, gridFsFile, session));
+        attachment.setFilename(gridFsFile.getFilename());
+        attachment.setFileMetadataDescription(gridFsFile.getMetadata().getString(METADATA_DESCRIPTION));
+        attachment.setContentType(gridFsFile.getMetadata().getString(METADATA_CONTENT_TYPE));
+        return Optional.of(attachment);
+    }
+
+    private GridFsAttachmentResource toResource(GridFSBucket bucket, GridFSFile gridFsFile, ClientSession session) {
+        return session == null ? new GridFsAttachmentResource(bucket, gridFsFile) :
+                new GridFsAttachmentResource(bucket, gridFsFile, mongoClient, session);
+    }
+
+    /**
+     * Finds a downscaled rendition of an image attachment, see {@link AttachmentRenditions}. If the rendition
+     * has not been generated (yet), its generation is requested.
+     */
+    @Override
+    public Optional<Attachment> findRendition(Attachment original, String rendition) {
+        if (!(original.getAttachment() instanceof GridFsAttachmentResource)) {
+            return Optional.empty();
+        }
+        GridFSFile originalFile = ((GridFsAttachmentResource) original.getAttachment()).getGridFSFile();
+        Optional<GridFSFile> renditionFile = attachmentRenditions.find(originalFile.getId(), rendition);
+        if (renditionFile.isEmpty()) {
+            // E.g. attachments uploaded before renditions were introduced
+            attachmentRenditions.submit(originalFile);
+            return Optional.empty();
+        }
+        Attachment attachment = new Attachment();
+        attachment.setId(original.getId());
+        attachment.setAttachment(new GridFsAttachmentResource(gridFSBucket, renditionFile.get()));
+        attachment.setFilename(renditionFile.get().getFilename());
+        attachment.setFileMetadataDescription(renditionFile.get().getMetadata().getString(METADATA_DESCRIPTION));
+        return Optional.of(attachment);
+    }
+
+    @Override
+    public boolean supportsRenditions() {
+        return true;
+    }
+
+    /**
+     * Lists attachments, i.e. GridFS files except renditions and deleted files, and references.
+     */
+    @Override
+    public void forEachId(Consumer<String> consumer) {
+        Bson attachments = Filters.and(Filters.exists(METADATA + "." + AttachmentRenditions.METADATA_RENDITION_OF, false),
+                Filters.ne(METADATA + "." + METADATA_DELETED, true));
+        forEachPage(filesCollection(), attachments, file -> consumer.accept(toId(file.get("_id"))));
+        forEachPage(referencesCollection(), Filters.empty(), reference -> consumer.accept(reference.getString("_id")));
+    }
+
+    @Override
+    public void forEachIdStoredBefore(Instant storedBefore, BiConsumer<String, Long> consumer) {
+        Date before = Date.from(storedBefore);
+        Bson attachments = Filters.and(Filters.exists(METADATA + "." + AttachmentRenditions.METADATA_RENDITION_OF, false),
+                Filters.ne(METADATA + "." + METADATA_DELETED, true),
+                Filters.lt("uploadDate", before));
+        forEachPage(filesCollection(), attachments,
+                file -> consumer.accept(toId(file.get("_id")), ((Number) file.get("length")).longValue()));
+        forEachPage(referencesCollection(), Filters.lt(REFERENCE_CREATED, before), reference -> {
+            Document blob = filesCollection().find(Filters.eq("_id", reference.get(REFERENCE_BLOB_ID)))
+                    .projection(new Document("length", 1)).first();
+            consumer.accept(reference.getString("_id"), blob == null ? 0L : ((Number) blob.get("length")).longValue());
+        });
+    }
+
+    /**
+     * Calls a consumer for the documents matching a filter, read in pages ordered by id. The cursor of a page is
+     * closed before the consumer is called, so a slow consumer does not let it time out. Ids are compared within
+     * their BSON type only, hence the pages of object ids and string ids are read separately.
+     */
+    private static void forEachPage(MongoCollection<Document> collection, Bson filter, Consumer<Document> consumer) {
+        for (BsonType idType : List.of(BsonType.OBJECT_ID, BsonType.STRING)) {
+            Object lastId = null;
+            List<Document> page;
+            do {
+                Bson pageFilter = lastId == null ? Filters.and(filter, Filters.type("_id", idType))
+                        : Filters.and(filter, Filters.type("_id", idType), Filters.gt("_id", lastId));
+                page = collection.find(pageFilter)
+                        .sort(Sorts.ascending("_id"))
+                        .limit(ID_PAGE_SIZE)
+                        .into(new ArrayList<>());
+                page.forEach(consumer);
+                if (!page.isEmpty()) {
+                    lastId = page.get(page.size() - 1).get("_id");
+                }
+            } while (page.size() == ID_PAGE_SIZE);
+        }
+    }
+
+    private static String toId(Object id) {
+        return id instanceof ObjectId ? ((ObjectId) id).toHexString() : String.valueOf(id);
+    }
+
+    /**
+     * Deletes an attachment. The content is deleted once no other attachment references it: a GridFS file
+     * still referenced by other attachments is only marked as deleted.
+     *
+     * @param id The unique id of an attachment.
+     */
+    @Override
+    public void deleteById(String id) {
+        Document reference = referencesCollection().findOneAndDelete(Filters.eq("_id", id));
+        if (reference != null) {
+            release(toBsonValue(reference.get(REFERENCE_BLOB_ID)));
+            return;
+        }
+        GridFSFile gridFsFile = gridFsTemplate.find(new Query(where("_id").is(id))).first();
+        if (gridFsFile == null || gridFsFile.getMetadata().getBoolean(METADATA_DELETED, false)) {
+            return;
+        }
+        if (gridFsFile.getMetadata().get(METADATA_REF_COUNT) == null) {
+            // Uploaded before deduplication, never referenced
+            gridFSBucket.delete(gridFsFile.getId());
+            return;
+        }
+        filesCollection().updateOne(Filters.eq("_id", gridFsFile.getId()), Updates.set(METADATA + "." + METADATA_DELETED, true));
+        release(gridFsFile.getId());
+    }
+}
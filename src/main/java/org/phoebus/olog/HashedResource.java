@@ -0,0 +1,15 @@
+package org.phoebus.olog;
+
+import org.springframework.core.io.Resource;
+
+/**
+ * A {@link Resource} holding attachment content whose hash was computed when stored.
+ */
+public interface HashedResource extends Resource {
+
+    /**
+     * @return The hex encoded SHA-256 hash of the content, or <code>null</code> if not known, e.g. for content
+     * stored before hashes were computed.
+     */
+    String getContentHash();
+}
@@ -33,6 +33,17 @@ public class InfoResource
     private ElasticConfig esService;
     @Autowired
     private MongoClient mongoClient;
+    @Autowired
+    private AttachmentRenditions attachmentRenditions;
+
+    @Autowired
+    private AttachmentCache attachmentCache;
+
+    @Autowired
+    private AttachmentSweeper attachmentSweeper;
+
+    @Autowired
+    private NonBlockingAttachmentWriter nonBlockingAttachmentWriter;
 
     @Value("${elasticsearch.network.host:localhost}")
     private String host;
@@ -70,6 +81,35 @@ public class InfoResource
         ologServiceInfo.put("elastic", elasticInfo);
         ologServiceInfo.put("mongoDB", mongoClient.getClusterDescription().getShortDescription());
 
+        Map<String, Object> renditionsInfo = new LinkedHashMap<String, Object>();
+        renditionsInfo.put("queueDepth", attachmentRenditions.getQueueDepth());
+        renditionsInfo.put("active", attachmentRenditions.getActiveCount());
+        renditionsInfo.put("rejected", attachmentRenditions.getRejectedCount());
+        ologServiceInfo.put("attachmentRenditions", renditionsInfo);
+        if (attachmentCache.isEnabled()) {
+            Map<String, Object> cacheInfo = new LinkedHashMap<>();
+            cacheInfo.put("hits", attachmentCache.getHits());
+            cacheInfo.put("misses", attachmentCache.getMisses());
+            cacheInfo.put("bytesSaved", attachmentCache.getBytesSaved());
+            cacheInfo.put("size", attachmentCache.getSize());
+            cacheInfo.put("entries", attachmentCache.getEntryCount());
+            ologServiceInfo.put("attachmentCache", cacheInfo);
+        }
+        if (attachmentSweeper.isEnabled()) {
+            Map<String, Object> sweeperInfo = new LinkedHashMap<>();
+            sweeperInfo.put("action", attachmentSweeper.getAction());
+            sweeperInfo.put("sweeps", attachmentSweeper.getSweeps());
+            sweeperInfo.put("lastSweep", attachmentSweeper.getLastSweep() == null ? null : attachmentSweeper.getLastSweep().toString());
+            sweeperInfo.put("orphans", attachmentSweeper.getOrphans());
+            sweeperInfo.put("bytesReclaimed", attachmentSweeper.getBytesReclaimed());
+            ologServiceInfo.put("attachmentSweeper", sweeperInfo);
+        }
+        Map<String, Object> downloadsInfo = new LinkedHashMap<>();
+        downloadsInfo.put("active", nonBlockingAttachmentWriter.getActive());
+        downloadsInfo.put("completed", nonBlockingAttachmentWriter.getCompleted());
+        downloadsInfo.put("failed", nonBlockingAttachmentWriter.getFailed());
+        ologServiceInfo.put("attachmentDownloads", downloadsInfo);
+
 
         try {
             return objectMapper.writeValueAsString(ologServiceInfo);
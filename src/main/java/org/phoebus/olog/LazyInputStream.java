@@ -0,0 +1,60 @@
+package org.phoebus.olog;
+
+import org.springframework.core.io.InputStreamSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link InputStream} opening the underlying stream on first read. Used as body of responses that Spring MVC may
+ * answer without reading it, e.g. with <code>304 Not Modified</code>: the underlying stream, e.g. a GridFS
+ * download stream, is then never opened, hence never left open.
+ */
+class LazyInputStream extends InputStream {
+
+    private final InputStreamSource source;
+    private InputStream inputStream;
+    private boolean closed;
+
+    LazyInputStream(InputStreamSource source) {
+        this.source = source;
+    }
+
+    private InputStream inputStream() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (inputStream == null) {
+            inputStream = source.getInputStream();
+        }
+        return inputStream;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return inputStream().read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        return inputStream().read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        return inputStream().skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return inputStream == null ? 0 : inputStream.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (inputStream != null) {
+            inputStream.close();
+        }
+    }
+}
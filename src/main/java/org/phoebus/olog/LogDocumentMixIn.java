@@ -0,0 +1,26 @@
+package org.phoebus.olog;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.phoebus.olog.entity.Log;
+
+import java.util.List;
+
+/**
+ * Jackson mix-in of {@link Log} for the Elasticsearch client only: the flattened search fields are written to
+ * the indexed document, but are not part of the log entries returned by the REST API.
+ */
+abstract class LogDocumentMixIn {
+
+    @JsonIgnore(false)
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    abstract List<String> getTagNames();
+
+    @JsonIgnore(false)
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    abstract List<String> getLogbookNames();
+
+    @JsonIgnore(false)
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    abstract List<String> getFlattenedProperties();
+}
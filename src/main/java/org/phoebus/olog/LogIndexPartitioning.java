@@ -0,0 +1,216 @@
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Describes how log entries are distributed over Elasticsearch indices.
+ * <p>
+ * When partitioning is disabled all log entries live in the single index named by
+ * <code>elasticsearch.log.index</code>. When partitioned by month or year, each entry is written to
+ * a concrete index derived from its creation date, e.g. <code>olog_logs-2022.05</code>. All partitions
+ * are members of a read alias, and the current partition is the target of a write alias. Time bounded
+ * searches only need to target the partitions overlapping the requested time window.
+ * <p>
+ * With the rollover scheme, partitions are named <code>olog_logs-000001</code>, <code>olog_logs-000002</code> etc.
+ * New entries are written through the write alias, which is moved by the rollover action of the index lifecycle policy.
+ * Partition names then carry no time information, so searches always target the read alias.
+ * <p>
+ * Partition names are always computed in UTC.
+ */
+public class LogIndexPartitioning {
+
+    /**
+     * The supported partitioning schemes.
+     */
+    public enum Scheme {
+        NONE,
+        MONTH,
+        YEAR,
+        ROLLOVER;
+
+        public static Scheme of(String value) {
+            if (value == null || value.isBlank()) {
+                return NONE;
+            }
+            return Scheme.valueOf(value.strip().toUpperCase());
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(LogIndexPartitioning.class.getName());
+
+    private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM").withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter YEAR_FORMAT = DateTimeFormatter.ofPattern("yyyy").withZone(ZoneOffset.UTC);
+
+    private final String baseIndex;
+    private final Scheme scheme;
+    private final String readAlias;
+    private final String writeAlias;
+    private final int maxSearchPartitions;
+    private final AtomicReference<String> currentWriteIndex = new AtomicReference<>();
+
+    /**
+     * @param baseIndex           The log index name, also used as prefix of the partition names.
+     * @param scheme              The partitioning {@link Scheme}.
+     * @param readAlias           The alias spanning all partitions.
+     * @param writeAlias          The alias pointing to the current partition.
+     * @param maxSearchPartitions Upper limit of partitions listed explicitly in a search request. Wider
+     *                            time windows target the read alias instead.
+     */
+    public LogIndexPartitioning(String baseIndex, Scheme scheme, String readAlias, String writeAlias, int maxSearchPartitions) {
+        this.baseIndex = baseIndex;
+        this.scheme = scheme;
+        this.readAlias = readAlias;
+        this.writeAlias = writeAlias;
+        this.maxSearchPartitions = maxSearchPartitions;
+    }
+
+    public Scheme getScheme() {
+        return scheme;
+    }
+
+    public boolean isPartitioned() {
+        return scheme != Scheme.NONE;
+    }
+
+    public String getBaseIndex() {
+        return baseIndex;
+    }
+
+    public String getReadAlias() {
+        return readAlias;
+    }
+
+    public String getWriteAlias() {
+        return writeAlias;
+    }
+
+    /**
+     * @return The wildcard pattern matching all partitions.
+     */
+    public String getIndexPattern() {
+        return baseIndex + "-*";
+    }
+
+    /**
+     * @param createdDate The creation date of a log entry.
+     * @return The name of the index (or write alias) to which a log entry created at <code>createdDate</code> is written.
+     */
+    public String indexFor(Instant createdDate) {
+        switch (scheme) {
+            case ROLLOVER:
+                return writeAlias;
+            case MONTH:
+                return baseIndex + "-" + MONTH_FORMAT.format(createdDate);
+            case YEAR:
+                return baseIndex + "-" + YEAR_FORMAT.format(createdDate);
+            default:
+                return baseIndex;
+        }
+    }
+
+    /**
+     * @return The index or alias to use for reads which are not restricted in time.
+     */
+    public String readTarget() {
+        return isPartitioned() ? readAlias : baseIndex;
+    }
+
+    /**
+     * Computes the indices to search for a query restricted to log entries created between <code>start</code>
+     * and <code>end</code>. The list may contain partitions that do not exist, so the search request must
+     * be configured to ignore unavailable indices.
+     * <p>
+     * When the index is partitioned, the base index name is included in the list as well. It identifies
+     * entries created before partitioning was enabled.
+     *
+     * @param start Start of time window
+     * @param end   End of time window
+     * @return A non-empty list of index names or aliases.
+     */
+    public List<String> searchTargets(ZonedDateTime start, ZonedDateTime end) {
+        List<String> targets = new ArrayList<>();
+        if (!isPartitioned()) {
+            targets.add(baseIndex);
+            return targets;
+        }
+        if (scheme == Scheme.ROLLOVER) {
+            targets.add(readAlias);
+            return targets;
+        }
+        ChronoUnit unit = scheme == Scheme.MONTH ? ChronoUnit.MONTHS : ChronoUnit.YEARS;
+        ZonedDateTime partitionStart = truncate(start.withZoneSameInstant(ZoneOffset.UTC));
+        ZonedDateTime partitionEnd = end.withZoneSameInstant(ZoneOffset.UTC);
+        if (unit.between(partitionStart, partitionEnd) >= maxSearchPartitions) {
+            targets.add(readAlias);
+            return targets;
+        }
+        for (ZonedDateTime t = partitionStart; !t.isAfter(partitionEnd); t = t.plus(1, unit)) {
+            targets.add(indexFor(t.toInstant()));
+        }
+        targets.add(baseIndex);
+        return targets;
+    }
+
+    /**
+     * Makes sure the partition for <code>now</code> exists and that the write alias points to it. This is a
+     * no-op unless the partition has changed since the last call, so it is cheap enough to call before each write.
+     * With the rollover scheme the write alias is managed by Elasticsearch, and this method does nothing.
+     *
+     * @param client The elastic client instance
+     * @param now    The current time
+     */
+    public void rollWriteAlias(ElasticsearchClient client, Instant now) {
+        if (!isPartitioned() || scheme == Scheme.ROLLOVER) {
+            return;
+        }
+        String partition = indexFor(now);
+        if (partition.equals(currentWriteIndex.get())) {
+            return;
+        }
+        synchronized (currentWriteIndex) {
+            if (partition.equals(currentWriteIndex.get())) {
+                return;
+            }
+            try {
+                if (!client.indices().exists(e -> e.index(partition)).value()) {
+                    // Mappings and the read alias are provided by the index template
+                    client.indices().create(c -> c.index(partition));
+                    logger.info("Created index: " + partition);
+                }
+            } catch (ElasticsearchException e) {
+                // Most likely created concurrently by a write to the new partition
+                logger.log(Level.FINE, "Failed to create index " + partition, e);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to create index " + partition, e);
+                return;
+            }
+            try {
+                client.indices().updateAliases(u -> u
+                        .actions(a -> a.remove(r -> r.index(getIndexPattern()).alias(writeAlias)))
+                        .actions(a -> a.add(add -> add.index(partition).alias(writeAlias).isWriteIndex(true))));
+                currentWriteIndex.set(partition);
+                logger.info("Write alias " + writeAlias + " now points to " + partition);
+            } catch (IOException | ElasticsearchException e) {
+                logger.log(Level.WARNING, "Failed to move alias " + writeAlias + " to " + partition, e);
+            }
+        }
+    }
+
+    private ZonedDateTime truncate(ZonedDateTime time) {
+        ZonedDateTime month = time.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS);
+        return scheme == Scheme.YEAR ? month.withMonth(1) : month;
+    }
+}
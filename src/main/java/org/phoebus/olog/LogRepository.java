@@ -5,9 +5,18 @@
  */
 package org.phoebus.olog;
 
+import co.elastic.clients.elasticsearch.ElasticsearchAsyncClient;
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
 import co.elastic.clients.elasticsearch._types.Refresh;
 import co.elastic.clients.elasticsearch._types.Result;
+import co.elastic.clients.elasticsearch._types.SortOrder;
+import co.elastic.clients.elasticsearch._types.query_dsl.ChildScoreMode;
+import co.elastic.clients.elasticsearch._types.query_dsl.IdsQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.NestedQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch._types.query_dsl.TermQuery;
+import co.elastic.clients.elasticsearch.async_search.AsyncSearchDocumentResponseBase;
 import co.elastic.clients.elasticsearch.core.GetRequest;
 import co.elastic.clients.elasticsearch.core.GetResponse;
 import co.elastic.clients.elasticsearch.core.IndexRequest;
@@ -16,11 +25,17 @@ import co.elastic.clients.elasticsearch.core.MgetRequest;
 import co.elastic.clients.elasticsearch.core.MgetResponse;
 import co.elastic.clients.elasticsearch.core.SearchRequest;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.UpdateRequest;
+import co.elastic.clients.elasticsearch.core.UpdateResponse;
 import co.elastic.clients.elasticsearch.core.mget.MultiGetResponseItem;
 import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.core.search.TotalHits;
+import co.elastic.clients.json.JsonData;
+import org.phoebus.olog.entity.AsyncSearchResult;
 import org.phoebus.olog.entity.Attachment;
 import org.phoebus.olog.entity.Log;
 import org.phoebus.olog.entity.Log.LogBuilder;
+import org.phoebus.olog.entity.LogEntryGroupHelper;
 import org.phoebus.olog.entity.SearchResult;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -34,10 +49,15 @@ import org.springframework.web.server.ResponseStatusException;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -51,55 +71,114 @@ public class LogRepository implements CrudRepository<Log, String> {
     @Value("${elasticsearch.log.index:olog_logs}")
     private String ES_LOG_INDEX;
 
+    @Value("${elasticsearch.result.size.search.max:1000}")
+    private int maxSearchSize;
+
     @SuppressWarnings("unused")
     @Autowired
     @Qualifier("client")
     ElasticsearchClient client;
 
+    @Autowired
+    @Qualifier("asyncClient")
+    ElasticsearchAsyncClient asyncClient;
+
+    /**
+     * Appends <code>params.attachments</code> to the attachments of a log entry.
+     */
+    private static final String ADD_ATTACHMENTS_SCRIPT =
+            "if (ctx._source.attachments == null) { ctx._source.attachments = new ArrayList(); } " +
+                    "ctx._source.attachments.addAll(params.attachments)";
+
     @Autowired
     AttachmentRepository attachmentRepository;
 
     @Autowired
     SequenceGenerator generator;
 
+    @Autowired
+    ExecutorService executorService;
+
+    @Autowired
+    LogIndexPartitioning logIndexPartitioning;
+
+    /**
+     * Saves a new log entry. Attachments of the log entry holding content are stored concurrently, while the id of the
+     * log entry is allocated, and the log entry is then indexed once. If an attachment cannot be stored, the
+     * attachments already stored are deleted and the log entry is not saved.
+     *
+     * @param log The log entry to save
+     * @return The saved log entry
+     */
     @Override
     public <S extends Log> S save(S log) {
+        List<CompletableFuture<Attachment>> attachmentFutures = new ArrayList<>();
+        if (log.getAttachments() != null) {
+            log.getAttachments().stream().filter(attachment -> attachment.getAttachment() != null).forEach(attachment ->
+                    attachmentFutures.add(CompletableFuture.supplyAsync(() -> attachmentRepository.save(attachment), executorService)));
+        }
+        boolean indexed = false;
         try {
             Long id = generator.getID();
-            LogBuilder validatedLog = LogBuilder.createLog(log).id(id).createDate(Instant.now());
+            Instant createDate = Instant.now();
+            String index = logIndexPartitioning.indexFor(createDate);
+            logIndexPartitioning.rollWriteAlias(client, createDate);
+            LogBuilder validatedLog = LogBuilder.createLog(log).id(id).createDate(createDate);
             if (log.getAttachments() != null && !log.getAttachments().isEmpty()) {
-                Set<Attachment> createdAttachments = new HashSet<>();
-                log.getAttachments().stream().filter(attachment -> attachment.getAttachment() != null).forEach(attachment -> {
-                    createdAttachments.add(attachmentRepository.save(attachment));
-                });
-                validatedLog = validatedLog.setAttachments(createdAttachments);
+                validatedLog = validatedLog.setAttachments(joinAttachments(attachmentFutures));
             }
 
             Log document = validatedLog.build();
 
             IndexRequest<Object> indexRequest =
                     IndexRequest.of(i ->
-                            i.index(ES_LOG_INDEX)
+                            i.index(index)
                                     .id(String.valueOf(id))
                                     .document(document)
                                     .refresh(Refresh.True));
             IndexResponse response = client.index(indexRequest);
+            indexed = true;
 
             if (response.result().equals(Result.Created)) {
                 GetRequest getRequest =
                         GetRequest.of(g ->
-                                g.index(ES_LOG_INDEX).id(response.id()));
+                                g.index(response.index()).id(response.id()));
                 GetResponse<Log> resp =
                         client.get(getRequest, Log.class);
                 return (S) resp.source();
             }
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Failed to save log entry: " + log, e);
+            if (!indexed) {
+                // Storing the attachments may still be in progress
+                attachmentFutures.forEach(future -> future.thenAccept(attachment -> {
+                    if (attachment != null) {
+                        attachmentRepository.delete(attachment);
+                    }
+                }));
+            }
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to save log entry: " + log);
         }
         return null;
     }
 
+    /**
+     * @param attachmentFutures Attachments being stored
+     * @return The stored attachments
+     * @throws IllegalStateException If an attachment could not be stored
+     */
+    private static Set<Attachment> joinAttachments(List<CompletableFuture<Attachment>> attachmentFutures) {
+        Set<Attachment> createdAttachments = new HashSet<>();
+        for (CompletableFuture<Attachment> future : attachmentFutures) {
+            Attachment attachment = future.join();
+            if (attachment == null) {
+                throw new IllegalStateException("Failed to store attachment");
+            }
+            createdAttachments.add(attachment);
+        }
+        return createdAttachments;
+    }
+
     @Override
     public <S extends Log> Iterable<S> saveAll(Iterable<S> logs) {
         List<S> createdLogs = new ArrayList<>();
@@ -112,19 +191,21 @@ public class LogRepository implements CrudRepository<Log, String> {
     public Log update(Log log) {
         try {
             Log document = LogBuilder.createLog(log).build();
+            String index = findIndex(String.valueOf(document.getId()));
 
             IndexRequest<Log> indexRequest =
                     IndexRequest.of(i ->
-                            i.index(ES_LOG_INDEX)
+                            i.index(index)
                                     .id(String.valueOf(document.getId()))
-                                    .document(document));
+                                    .document(document)
+                                    .refresh(logIndexPartitioning.isPartitioned() ? Refresh.WaitFor : null));
 
             IndexResponse response = client.index(indexRequest);
 
             if (response.result().equals(Result.Updated)) {
                 GetRequest getRequest =
                         GetRequest.of(g ->
-                                g.index(ES_LOG_INDEX).id(response.id()));
+                                g.index(response.index()).id(response.id()));
                 GetResponse<Log> resp =
                         client.get(getRequest, Log.class);
                 return resp.source();
@@ -136,9 +217,52 @@ public class LogRepository implements CrudRepository<Log, String> {
         return null;
     }
 
+    /**
+     * Appends references to stored attachments to a log entry. Unlike {@link #update(Log)}, this is a partial update:
+     * the log entry is not read and re-indexed by the service, and concurrent additions are not lost.
+     *
+     * @param logId       The log entry id
+     * @param attachments Attachments already stored in the {@link AttachmentRepository}
+     * @return The updated log entry
+     */
+    public Log addAttachments(String logId, Collection<Attachment> attachments) {
+        try {
+            String index = findIndex(logId);
+            UpdateRequest<Log, Object> updateRequest =
+                    UpdateRequest.of(u ->
+                            u.index(index)
+                                    .id(logId)
+                                    .script(s -> s.inline(i -> i.lang("painless")
+                                            .source(ADD_ATTACHMENTS_SCRIPT)
+                                            .params("attachments", JsonData.of(attachments))))
+                                    .source(src -> src.fetch(true))
+                                    .refresh(logIndexPartitioning.isPartitioned() ? Refresh.WaitFor : null));
+            UpdateResponse<Log> response = client.update(updateRequest, Log.class);
+            return response.get().source();
+        } catch (ResponseStatusException e) {
+            throw e;
+        } catch (ElasticsearchException e) {
+            if (e.status() == HttpStatus.NOT_FOUND.value()) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Log with id " + logId + " not found.");
+            }
+            logger.log(Level.SEVERE, "Failed to add attachments to log entry: " + logId, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to add attachments to log entry: " + logId);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to add attachments to log entry: " + logId, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to add attachments to log entry: " + logId);
+        }
+    }
+
     @Override
     public Optional<Log> findById(String id) {
         try {
+            if (logIndexPartitioning.isPartitioned()) {
+                Hit<Log> hit = findHit(id);
+                if (hit == null) {
+                    throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Log with id " + id + " not found.");
+                }
+                return Optional.of(hit.source());
+            }
             GetRequest getRequest =
                     co.elastic.clients.elasticsearch.core.GetRequest.of(g ->
                             g.index(ES_LOG_INDEX).id(id));
@@ -156,9 +280,39 @@ public class LogRepository implements CrudRepository<Log, String> {
         }
     }
 
+    /**
+     * Non-blocking version of {@link #findById(String)}.
+     *
+     * @param id The log entry id
+     * @return A {@link CompletableFuture} completed with the log entry, or completed exceptionally with a
+     * {@link ResponseStatusException} if the log entry cannot be retrieved.
+     */
+    public CompletableFuture<Optional<Log>> findByIdAsync(String id) {
+        CompletableFuture<Log> future;
+        if (logIndexPartitioning.isPartitioned()) {
+            future = asyncClient.search(s -> s.index(logIndexPartitioning.getReadAlias())
+                            .query(q -> q.ids(i -> i.values(id)))
+                            .size(1), Log.class)
+                    .thenApply(resp -> resp.hits().hits().isEmpty() ? null : resp.hits().hits().get(0).source());
+        } else {
+            future = asyncClient.get(g -> g.index(ES_LOG_INDEX).id(id), Log.class)
+                    .thenApply(resp -> resp.found() ? resp.source() : null);
+        }
+        return future.handle((log, e) -> {
+            if (e != null || log == null) {
+                logger.log(Level.SEVERE, "Failed to retrieve log with id: " + id, e);
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to retrieve log with id: " + id);
+            }
+            return Optional.of(log);
+        });
+    }
+
     @Override
     public boolean existsById(String logId) {
         try {
+            if (logIndexPartitioning.isPartitioned()) {
+                return findHit(logId) != null;
+            }
             GetRequest getRequest =
                     GetRequest.of(g ->
                             g.index(ES_LOG_INDEX).id(logId));
@@ -180,6 +334,17 @@ public class LogRepository implements CrudRepository<Log, String> {
     public Iterable<Log> findAllById(Iterable<String> logIds) {
         List<String> ids = new ArrayList<>();
         logIds.forEach(ids::add);
+        if (logIndexPartitioning.isPartitioned()) {
+            try {
+                SearchResponse<Log> resp = client.search(s -> s.index(logIndexPartitioning.getReadAlias())
+                        .query(q -> q.ids(i -> i.values(ids)))
+                        .size(ids.size()), Log.class);
+                return resp.hits().hits().stream().map(Hit::source).collect(Collectors.toList());
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Failed to find logs: " + logIds, e);
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to find logs: " + logIds);
+            }
+        }
         MgetRequest mgetRequest =
                 MgetRequest.of(r -> r.index(ES_LOG_INDEX).ids(ids));
         try {
@@ -230,17 +395,198 @@ public class LogRepository implements CrudRepository<Log, String> {
         SearchRequest searchRequest = logSearchUtil.buildSearchRequest(searchParameters);
         try {
             final SearchResponse<Log> searchResponse = client.search(searchRequest, Log.class);
-            List<Log> result = searchResponse.hits().hits().stream().map(Hit::source).collect(Collectors.toList());
-            SearchResult searchResult = new SearchResult();
-            searchResult.setHitCount(searchResponse.hits().total().value());
-            searchResult.setLogs(result);
-            return searchResult;
+            return toSearchResult(searchResponse);
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Failed to complete search", e);
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to complete search");
         }
     }
 
+    /**
+     * Opens a scroll over all log entries matching the search parameters, in pages of at most
+     * <code>elasticsearch.result.size.search.max</code> log entries. Unlike {@link #search(MultiValueMap)}, the
+     * number of log entries is not limited by <code>index.max_result_window</code>. Paging parameters are ignored.
+     * <p>
+     * The first page is read by this method, so invalid search parameters and failures are reported before the
+     * caller starts consuming log entries.
+     *
+     * @param searchParameters The search parameters
+     * @return A {@link LogScroll}, which must be closed.
+     */
+    public LogScroll scroll(MultiValueMap<String, String> searchParameters) {
+        SearchRequest searchRequest = logSearchUtil.buildSearchRequest(searchParameters);
+        try {
+            SearchResponse<Log> searchResponse = client.search(s -> s.index(searchRequest.index())
+                            .ignoreUnavailable(searchRequest.ignoreUnavailable())
+                            .allowNoIndices(searchRequest.allowNoIndices())
+                            .query(searchRequest.query())
+                            .sort(searchRequest.sort())
+                            .size(maxSearchSize)
+                            .scroll(t -> t.time(LogScroll.SCROLL_KEEP_ALIVE)),
+                    Log.class);
+            return new LogScroll(client, searchResponse);
+        } catch (IOException | ElasticsearchException e) {
+            logger.log(Level.SEVERE, "Failed to complete search", e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to complete search");
+        }
+    }
+
+    /**
+     * Non-blocking version of {@link #search(MultiValueMap)}. Invalid search parameters are reported
+     * by throwing {@link ResponseStatusException} from this method, failures of the search itself by completing
+     * the returned {@link CompletableFuture} exceptionally.
+     *
+     * <p>
+     * Cancelling the returned {@link CompletableFuture} aborts the HTTP request to Elasticsearch, which in turn
+     * cancels the search task in the cluster.
+     *
+     * @param searchParameters The search parameters
+     * @return A {@link CompletableFuture} completed with the {@link SearchResult}
+     */
+    public CompletableFuture<SearchResult> searchAsync(MultiValueMap<String, String> searchParameters) {
+        SearchRequest searchRequest = logSearchUtil.buildSearchRequest(searchParameters);
+        CompletableFuture<SearchResponse<Log>> searchFuture = asyncClient.search(searchRequest, Log.class);
+        CompletableFuture<SearchResult> resultFuture = searchFuture.handle((searchResponse, e) -> {
+            if (e != null) {
+                logger.log(Level.SEVERE, "Failed to complete search", e);
+                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to complete search");
+            }
+            return toSearchResult(searchResponse);
+        });
+        resultFuture.whenComplete((searchResult, e) -> {
+            if (e instanceof CancellationException) {
+                searchFuture.cancel(true);
+            }
+        });
+        return resultFuture;
+    }
+
+    /**
+     * Submits a search for asynchronous execution in Elasticsearch. If the search completes within
+     * <code>elasticsearch.search.async.wait</code> the returned {@link AsyncSearchResult} holds the final result,
+     * otherwise it holds the id to poll using {@link #getAsyncSearch(String)}.
+     *
+     * @param searchParameters The search parameters
+     * @return A {@link CompletableFuture} completed with the state of the submitted search
+     */
+    public CompletableFuture<AsyncSearchResult> submitAsyncSearch(MultiValueMap<String, String> searchParameters) {
+        return asyncClient.asyncSearch()
+                .submit(logSearchUtil.buildAsyncSearchRequest(searchParameters), Log.class)
+                .handle((response, e) -> {
+                    if (e != null) {
+                        logger.log(Level.SEVERE, "Failed to submit async search", e);
+                        throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to submit async search");
+                    }
+                    return toAsyncSearchResult(response);
+                });
+    }
+
+    /**
+     * @param id The id of a search submitted using {@link #submitAsyncSearch(MultiValueMap)}
+     * @return A {@link CompletableFuture} completed with the current state of the search. The future completes
+     * exceptionally with a {@link HttpStatus#NOT_FOUND} {@link ResponseStatusException} if the search does not exist
+     * or has expired.
+     */
+    public CompletableFuture<AsyncSearchResult> getAsyncSearch(String id) {
+        return asyncClient.asyncSearch()
+                .get(g -> g.id(id), Log.class)
+                .handle((response, e) -> {
+                    if (e != null) {
+                        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                        if (cause instanceof ElasticsearchException && ((ElasticsearchException) cause).status() == 404) {
+                            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Async search with id " + id + " not found.");
+                        }
+                        logger.log(Level.SEVERE, "Failed to retrieve async search " + id, e);
+                        throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to retrieve async search " + id);
+                    }
+                    return toAsyncSearchResult(response);
+                });
+    }
+
+    /**
+     * Retrieves all log entries of a log entry group (reply thread) in a single query, sorted by creation date.
+     * The query matches the <code>groupId</code> field, the first entry of the thread (whose id is the group id
+     * if the thread was created by a reply), and entries grouped using the log entry group property only.
+     *
+     * @param groupId The log entry group id
+     * @return The log entries of the group, oldest first. Empty if the group does not exist.
+     */
+    public List<Log> findGroup(String groupId) {
+        Query groupIdQuery = TermQuery.of(t -> t.field("groupId").value(groupId))._toQuery();
+        Query firstEntryQuery = IdsQuery.of(i -> i.values(groupId))._toQuery();
+        Query attributeQuery = NestedQuery.of(n -> n.path("properties.attributes")
+                .query(q -> q.bool(b -> b
+                        .must(TermQuery.of(t -> t.field("properties.attributes.name").value(LogEntryGroupHelper.ATTRIBUTE_ID))._toQuery())
+                        .must(TermQuery.of(t -> t.field("properties.attributes.value").value(groupId))._toQuery())))
+                .scoreMode(ChildScoreMode.None))._toQuery();
+        Query propertyQuery = NestedQuery.of(n -> n.path("properties")
+                .query(q -> q.bool(b -> b
+                        .must(TermQuery.of(t -> t.field("properties.name").value(LogEntryGroupHelper.LOG_ENTRY_GROUP))._toQuery())
+                        .must(attributeQuery)))
+                .scoreMode(ChildScoreMode.None))._toQuery();
+        try {
+            SearchResponse<Log> searchResponse = client.search(s -> s.index(logIndexPartitioning.readTarget())
+                            .query(q -> q.bool(b -> b.should(groupIdQuery, firstEntryQuery, propertyQuery)))
+                            .sort(so -> so.field(f -> f.field("createdDate").order(SortOrder.Asc)))
+                            .size(maxSearchSize),
+                    Log.class);
+            return searchResponse.hits().hits().stream().map(Hit::source).collect(Collectors.toList());
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to retrieve log entry group " + groupId, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to retrieve log entry group " + groupId);
+        }
+    }
+
+    private AsyncSearchResult toAsyncSearchResult(AsyncSearchDocumentResponseBase<Log> response) {
+        List<Log> logs = response.response().hits().hits().stream().map(Hit::source).collect(Collectors.toList());
+        TotalHits totalHits = response.response().hits().total();
+        SearchResult searchResult = new SearchResult(totalHits == null ? logs.size() : totalHits.value(), logs);
+        return new AsyncSearchResult(response.id(),
+                response.isRunning(),
+                response.isPartial(),
+                response.expirationTimeInMillis() == null ? 0 : response.expirationTimeInMillis().toEpochMilli(),
+                searchResult);
+    }
+
+    private SearchResult toSearchResult(SearchResponse<Log> searchResponse) {
+        List<Log> result = searchResponse.hits().hits().stream().map(Hit::source).collect(Collectors.toList());
+        SearchResult searchResult = new SearchResult();
+        searchResult.setHitCount(searchResponse.hits().total().value());
+        searchResult.setLogs(result);
+        return searchResult;
+    }
+
+    /**
+     * Locates a log entry when the log index is partitioned. As the partition holding the entry is not known up front,
+     * an ids query is run against the read alias.
+     *
+     * @param id The log entry id
+     * @return The matching {@link Hit}, or <code>null</code> if not found.
+     * @throws IOException If the search fails
+     */
+    private Hit<Log> findHit(String id) throws IOException {
+        SearchResponse<Log> resp = client.search(s -> s.index(logIndexPartitioning.getReadAlias())
+                .query(q -> q.ids(i -> i.values(id)))
+                .size(1), Log.class);
+        return resp.hits().hits().isEmpty() ? null : resp.hits().hits().get(0);
+    }
+
+    /**
+     * @param id The log entry id
+     * @return The name of the index holding the log entry.
+     * @throws IOException If the entry cannot be located
+     */
+    private String findIndex(String id) throws IOException {
+        if (!logIndexPartitioning.isPartitioned()) {
+            return ES_LOG_INDEX;
+        }
+        Hit<Log> hit = findHit(id);
+        if (hit == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Log with id " + id + " not found.");
+        }
+        return hit.index();
+    }
+
     @Override
     public void deleteAllById(Iterable ids) {
         while (ids.iterator().hasNext()) {
@@ -6,28 +6,35 @@
 package org.phoebus.olog;
 
 import org.apache.commons.collections4.CollectionUtils;
+import org.phoebus.olog.entity.AsyncSearchResult;
 import org.phoebus.olog.entity.Attachment;
 import org.phoebus.olog.entity.Log;
 import org.phoebus.olog.entity.LogEntryGroupHelper;
 import org.phoebus.olog.entity.Property;
 import org.phoebus.olog.entity.SearchResult;
 import org.phoebus.olog.entity.Tag;
+import org.phoebus.olog.entity.UploadSession;
 import org.phoebus.olog.entity.preprocess.LogPropertyProvider;
 import org.phoebus.olog.entity.preprocess.MarkupCleaner;
 import org.phoebus.olog.notification.LogEntryNotifier;
 import org.phoebus.util.time.TimeParser;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
 import org.springframework.core.task.TaskExecutor;
+import org.springframework.http.CacheControl;
 import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.bind.WebDataBinder;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.InitBinder;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -39,23 +46,35 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RequestPart;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.server.ResponseStatusException;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.Principal;
 import java.time.Instant;
 import java.time.temporal.TemporalAmount;
 import java.time.temporal.TemporalUnit;
 import java.time.temporal.UnsupportedTemporalTypeException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -104,6 +123,18 @@ public class LogResource {
     @SuppressWarnings("unused")
     @Autowired
     private Long propertyProvidersTimeout;
+    @Autowired
+    private LogSearchUtil logSearchUtil;
+    @Lazy
+    @Autowired
+    private AttachmentUploads attachmentUploads;
+    @Autowired
+    private NonBlockingAttachmentWriter nonBlockingAttachmentWriter;
+
+    @Value("${spring.servlet.multipart.max-file-size:50MB}")
+    private DataSize maxFileSize;
+    @Value("${spring.servlet.multipart.max-request-size:100MB}")
+    private DataSize maxRequestSize;
 
     /**
      * Custom HTTP header that client may send in order to identify itself. This is logged for some of the
@@ -111,22 +142,55 @@ public class LogResource {
      */
     private static final String OLOG_CLIENT_INFO_HEADER = "X-Olog-Client-Info";
 
+    /**
+     * Custom HTTP header that client may send in order to set the time budget of a search, e.g. "10s". The
+     * <code>timeout</code> search parameter takes precedence. The budget is capped by server configuration.
+     */
+    private static final String OLOG_SEARCH_TIMEOUT_HEADER = "X-Olog-Search-Timeout";
+
+    /**
+     * Time granted to Elasticsearch on top of the search timeout before the search is cancelled.
+     */
+    private static final long SEARCH_TIMEOUT_GRACE_MILLIS = 5000;
+
     private final Object logGroupSyncObject = new Object();
 
+    /**
+     * Retrieves a log entry. The servlet thread is released while Elasticsearch processes the request.
+     *
+     * @param logId The log entry id
+     * @return A {@link CompletableFuture} completed with the log entry.
+     */
     @GetMapping("{logId}")
     @SuppressWarnings("unused")
-    public Log getLog(@PathVariable String logId) {
-        Optional<Log> foundLog = logRepository.findById(logId);
-        if (foundLog.isPresent()) {
-            return foundLog.get();
-        } else {
-            logger.log(Level.SEVERE, "Failed to find log: " + logId, new ResponseStatusException(HttpStatus.NOT_FOUND));
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to find log: " + logId);
-        }
+    public CompletableFuture<Log> getLog(@PathVariable String logId) {
+        return logRepository.findByIdAsync(logId).thenApply(foundLog -> {
+            if (foundLog.isPresent()) {
+                return foundLog.get();
+            } else {
+                logger.log(Level.SEVERE, "Failed to find log: " + logId, new ResponseStatusException(HttpStatus.NOT_FOUND));
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to find log: " + logId);
+            }
+        });
     }
 
+    /**
+     * Downloads an attachment of a log entry. Supports byte range and conditional requests, see {@link AttachmentResponses}.
+     *
+     * @param logId          The log entry id
+     * @param attachmentName The file name of the attachment
+     * @param requestHeaders The request headers, may contain <code>Range</code> and <code>If-Range</code>.
+     * @param request        The request
+     * @param response       The response, written with non-blocking output for large attachments
+     * @return A {@link ResponseEntity} streaming the attachment, or <code>null</code> if the attachment is written
+     * with non-blocking output (see {@link NonBlockingAttachmentWriter}).
+     */
     @GetMapping("/attachments/{logId}/{attachmentName}")
-    public ResponseEntity<Resource> findResources(@PathVariable String logId, @PathVariable String attachmentName) {
+    public ResponseEntity<Resource> findResources(@PathVariable String logId,
+                                                  @PathVariable String attachmentName,
+                                                  @RequestHeader HttpHeaders requestHeaders,
+                                                  HttpServletRequest request,
+                                                  HttpServletResponse response) {
         Optional<Log> log = logRepository.findById(logId);
         if (log.isPresent()) {
             Set<Attachment> attachments = log.get().getAttachments().stream().filter(attachment -> {
@@ -136,19 +200,10 @@ public class LogResource {
                 Attachment attachment = attachments.iterator().next();
                 this.logger.log(Level.INFO, "Requesting attachment " + attachment.getId() + ": " + attachment.getFilename());
                 Attachment foundAttachment = attachmentRepository.findById(attachment.getId()).get();
-                InputStreamResource resource;
                 try {
-                    resource = new InputStreamResource(foundAttachment.getAttachment().getInputStream());
-                    ContentDisposition contentDisposition = ContentDisposition.builder("attachment")
-                            .filename(attachmentName)
-                            .build();
-                    HttpHeaders httpHeaders = new HttpHeaders();
-                    httpHeaders.setContentDisposition(contentDisposition);
-                    MediaType mediaType = ContentTypeResolver.determineMediaType(attachmentName);
-                    if (mediaType != null) {
-                        httpHeaders.setContentType(mediaType);
-                    }
-                    return new ResponseEntity<>(resource, httpHeaders, HttpStatus.OK);
+                    // The attachment identified by log entry and file name may be replaced, so clients must revalidate
+                    ResponseEntity<Resource> download = AttachmentResponses.download(foundAttachment, attachmentName, requestHeaders, CacheControl.noCache().getHeaderValue());
+                    return nonBlockingAttachmentWriter.write(download, request, response) ? null : download;
                 } catch (IOException e) {
                     Logger.getLogger(LogResource.class.getName())
                             .log(Level.WARNING, String.format("Unable to retrieve attachment %s for log id %s", attachmentName, logId), e);
@@ -161,6 +216,66 @@ public class LogResource {
         return null;
     }
 
+    /**
+     * Downloads all attachments of a log entry as a ZIP archive, streamed as the attachments are read.
+     *
+     * @param logId    The log entry id
+     * @param response The response the archive is written to
+     * @throws IOException If the archive cannot be written
+     */
+    @GetMapping("/{logId}/attachments.zip")
+    public void downloadAttachmentsZip(@PathVariable String logId, HttpServletResponse response) throws IOException {
+        Log log = logRepository.findById(logId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to find log: " + logId));
+        prepareZipResponse(response, "log-" + logId + "-attachments.zip");
+        try (AttachmentZipWriter zipWriter = new AttachmentZipWriter(response.getOutputStream(), attachmentRepository)) {
+            zipWriter.addLog(log);
+        }
+    }
+
+    /**
+     * Downloads all attachments of the log entries matching a search as a ZIP archive, streamed as the attachments
+     * are read. The search parameters are the same as for {@link #search(String, String, MultiValueMap)}, except
+     * that <code>from</code> and <code>size</code> are ignored: all matching log entries are exported, fetched one
+     * page at a time with a {@link LogScroll}.
+     *
+     * @param clientInfo       A string sent by client identifying it with respect to version and platform.
+     * @param allRequestParams The search parameters
+     * @param response         The response the archive is written to
+     * @throws IOException If the archive cannot be written
+     */
+    @GetMapping("/export/attachments.zip")
+    public void exportAttachmentsZip(@RequestHeader(value = OLOG_CLIENT_INFO_HEADER, required = false, defaultValue = "n/a") String clientInfo,
+                                     @RequestParam MultiValueMap<String, String> allRequestParams,
+                                     HttpServletResponse response) throws IOException {
+        logSearchRequest(clientInfo, allRequestParams);
+        MultiValueMap<String, String> searchParameters = new LinkedMultiValueMap<>(allRequestParams);
+        // Oldest first unless requested otherwise
+        searchParameters.putIfAbsent("sort", List.of("up"));
+        resolveTimeParameters(searchParameters);
+        // Invalid search parameters are reported before the response is committed
+        try (LogScroll scroll = logRepository.scroll(searchParameters)) {
+            prepareZipResponse(response, "olog-attachments.zip");
+            try (AttachmentZipWriter zipWriter = new AttachmentZipWriter(response.getOutputStream(), attachmentRepository)) {
+                long count = 0;
+                List<Log> page;
+                while (!(page = scroll.nextPage()).isEmpty()) {
+                    for (Log log : page) {
+                        zipWriter.addLog(log);
+                    }
+                    count += page.size();
+                }
+                logger.log(Level.INFO, String.format("Exported %d attachments of %d log entries", zipWriter.getAttachmentCount(), count));
+            }
+        }
+    }
+
+    private static void prepareZipResponse(HttpServletResponse response, String filename) {
+        response.setContentType("application/zip");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.builder("attachment").filename(filename).build().toString());
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().getHeaderValue());
+    }
+
     /**
      * Finds matching log entries based on the specified search parameters.
      *
@@ -172,8 +287,13 @@ public class LogResource {
      */
     @GetMapping()
     @Deprecated
-    public List<Log> findLogs(@RequestHeader(value = OLOG_CLIENT_INFO_HEADER, required = false, defaultValue = "n/a") String clientInfo, @RequestParam MultiValueMap<String, String> allRequestParams) {
+    public DeferredResult<List<Log>> findLogs(@RequestHeader(value = OLOG_CLIENT_INFO_HEADER, required = false, defaultValue = "n/a") String clientInfo,
+                                             @RequestHeader(value = OLOG_SEARCH_TIMEOUT_HEADER, required = false) String searchTimeout,
+                                             @RequestParam MultiValueMap<String, String> allRequestParams) {
         logSearchRequest(clientInfo, allRequestParams);
+        if (searchTimeout != null) {
+            allRequestParams.putIfAbsent("timeout", List.of(searchTimeout));
+        }
         for (String key : allRequestParams.keySet()) {
             if ("start".equalsIgnoreCase(key.toLowerCase()) || "end".equalsIgnoreCase(key.toLowerCase())) {
                 String value = allRequestParams.get(key).get(0);
@@ -187,12 +307,72 @@ public class LogResource {
                 }
             }
         }
-        return logRepository.search(allRequestParams).getLogs();
+        long timeout = logSearchUtil.getSearchTimeout(allRequestParams);
+        return deferSearch(logRepository.searchAsync(allRequestParams), timeout, SearchResult::getLogs);
     }
 
+    /**
+     * Finds matching log entries based on the specified search parameters. The servlet thread is released
+     * while Elasticsearch processes the search.
+     *
+     * The search is cancelled if it does not complete within its time budget, or if the client disconnects.
+     *
+     * @param clientInfo       A string sent by client identifying it with respect to version and platform.
+     * @param searchTimeout    Optional time budget of the search, e.g. "10s".
+     * @param allRequestParams A map of search query parameters.
+     * @return A {@link DeferredResult} completed with the {@link SearchResult}.
+     */
     @GetMapping("/search")
-    public SearchResult search(@RequestHeader(value = OLOG_CLIENT_INFO_HEADER, required = false, defaultValue = "n/a") String clientInfo, @RequestParam MultiValueMap<String, String> allRequestParams) {
+    public DeferredResult<SearchResult> search(@RequestHeader(value = OLOG_CLIENT_INFO_HEADER, required = false, defaultValue = "n/a") String clientInfo,
+                                               @RequestHeader(value = OLOG_SEARCH_TIMEOUT_HEADER, required = false) String searchTimeout,
+                                               @RequestParam MultiValueMap<String, String> allRequestParams) {
         logSearchRequest(clientInfo, allRequestParams);
+        if (searchTimeout != null) {
+            allRequestParams.putIfAbsent("timeout", List.of(searchTimeout));
+        }
+        resolveTimeParameters(allRequestParams);
+        long timeout = logSearchUtil.getSearchTimeout(allRequestParams);
+        return deferSearch(logRepository.searchAsync(allRequestParams), timeout, Function.identity());
+    }
+
+    /**
+     * Submits a search for asynchronous execution, intended for long-running queries exceeding the time budget
+     * of {@link #search(String, String, MultiValueMap)}. The search parameters are the same.
+     * <p>
+     * If the search completes quickly the response holds the final result. Otherwise it holds an id, which client
+     * uses to poll for partial and final results using {@link #getAsyncSearch(String)}. Results are discarded
+     * when the configured keep-alive has elapsed.
+     *
+     * @param clientInfo       A string sent by client identifying it with respect to version and platform.
+     * @param allRequestParams A map of search query parameters.
+     * @return A {@link CompletableFuture} completed with the {@link AsyncSearchResult}.
+     */
+    @PostMapping("/search/async")
+    public CompletableFuture<AsyncSearchResult> submitAsyncSearch(@RequestHeader(value = OLOG_CLIENT_INFO_HEADER, required = false, defaultValue = "n/a") String clientInfo,
+                                                                  @RequestParam MultiValueMap<String, String> allRequestParams) {
+        logSearchRequest(clientInfo, allRequestParams);
+        resolveTimeParameters(allRequestParams);
+        return logRepository.submitAsyncSearch(allRequestParams);
+    }
+
+    /**
+     * @param searchId The id returned by {@link #submitAsyncSearch(String, MultiValueMap)}
+     * @return A {@link CompletableFuture} completed with the current state of the search, or HTTP 404
+     * if the search does not exist or has expired.
+     */
+    @GetMapping("/search/async/{searchId}")
+    public CompletableFuture<AsyncSearchResult> getAsyncSearch(@PathVariable String searchId) {
+        return logRepository.getAsyncSearch(searchId);
+    }
+
+    /**
+     * Replaces the values of the <code>start</code> and <code>end</code> search parameters with formatted
+     * absolute times. Client may specify date/time expressions like "12 hours" or "2 days" as well as formatted
+     * strings like "2021-01-20 12:00:00.123".
+     *
+     * @param allRequestParams A map of search query parameters.
+     */
+    private void resolveTimeParameters(MultiValueMap<String, String> allRequestParams) {
         for (String key : allRequestParams.keySet()) {
             if ("start".equalsIgnoreCase(key) || "end".equalsIgnoreCase(key)) {
                 String value = allRequestParams.get(key).get(0);
@@ -210,8 +390,41 @@ public class LogResource {
                 }
             }
         }
-        SearchResult searchResult = logRepository.search(allRequestParams);
-        return searchResult;
+    }
+
+    /**
+     * Wraps a pending search in a {@link DeferredResult}. If the search does not complete within its time budget,
+     * or if the servlet request fails (e.g. because the client disconnected), the search is cancelled such that
+     * it stops consuming resources in the Elasticsearch cluster.
+     *
+     * @param searchFuture The pending search
+     * @param timeout      The time budget of the search in milliseconds
+     * @param mapper       Maps the {@link SearchResult} to the response body
+     * @return A {@link DeferredResult}
+     */
+    private <T> DeferredResult<T> deferSearch(CompletableFuture<SearchResult> searchFuture, long timeout, Function<SearchResult, T> mapper) {
+        DeferredResult<T> deferredResult = new DeferredResult<>(timeout + SEARCH_TIMEOUT_GRACE_MILLIS);
+        deferredResult.onTimeout(() -> {
+            // Set the result before cancelling, as cancelling completes the future and hence the result below
+            deferredResult.setErrorResult(new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT, "Search did not complete within " + timeout + " ms"));
+            searchFuture.cancel(true);
+        });
+        deferredResult.onError(throwable -> {
+            logger.log(Level.INFO, "Cancelling search", throwable);
+            searchFuture.cancel(true);
+        });
+        searchFuture.whenComplete((searchResult, throwable) -> {
+            if (throwable == null) {
+                deferredResult.setResult(mapper.apply(searchResult));
+            } else if (throwable instanceof CancellationException) {
+                // Cancelled on timeout or error, the result is already set
+            } else if (throwable instanceof CompletionException && throwable.getCause() != null) {
+                deferredResult.setErrorResult(throwable.getCause());
+            } else {
+                deferredResult.setErrorResult(throwable);
+            }
+        });
+        return deferredResult;
     }
 
     /**
@@ -269,30 +482,201 @@ public class LogResource {
         return newLogEntry;
     }
 
+    /**
+     * Creates a new log entry with attachments in a single request. The <code>multipart/form-data</code> request holds
+     * the {@link Log} object as JSON in the <code>logEntry</code> part, and one <code>files</code> part per attachment.
+     * The files are stored concurrently, while the log entry id is allocated, and the log entry is indexed once.
+     * <p>
+     * An attachment listed in the {@link Log} object with the same file name as a <code>files</code> part supplies
+     * the id and description of that attachment. Otherwise the file name and content type of the part are used.
+     * Validation is the same as for {@link #createLog(String, String, Log, String, Principal)}.
+     *
+     * @param clientInfo A string sent by client identifying it with respect to version and platform.
+     * @param markup     Optional string identifying the wanted markup scheme.
+     * @param log        A {@link Log} object to be persisted.
+     * @param files      The files to attach.
+     * @param inReplyTo  Optional log entry id specifying to which log entry the new log entry is a response.
+     * @param principal  The authenticated {@link Principal} of the request.
+     * @return The persisted {@link Log} object.
+     */
+    @PutMapping(value = "/multipart", consumes = "multipart/form-data")
+    public Log createLogWithAttachments(@RequestHeader(value = OLOG_CLIENT_INFO_HEADER, required = false, defaultValue = "n/a") String clientInfo,
+                                       @RequestParam(value = "markup", required = false) String markup,
+                                       @RequestPart("logEntry") Log log,
+                                       @RequestPart(value = "files", required = false) MultipartFile[] files,
+                                       @RequestParam(value = "inReplyTo", required = false, defaultValue = "-1") String inReplyTo,
+                                       @AuthenticationPrincipal Principal principal) {
+        Map<String, Attachment> describedAttachments = new HashMap<>();
+        if (log.getAttachments() != null) {
+            log.getAttachments().stream().filter(attachment -> attachment.getFilename() != null)
+                    .forEach(attachment -> describedAttachments.put(attachment.getFilename(), attachment));
+        }
+        Set<Attachment> attachments = new HashSet<>();
+        if (files != null) {
+            for (MultipartFile file : files) {
+                Attachment described = describedAttachments.get(file.getOriginalFilename());
+                if (described != null) {
+                    attachments.add(new Attachment(described.getId(), file, file.getOriginalFilename(),
+                            described.getFileMetadataDescription() == null || described.getFileMetadataDescription().isEmpty() ?
+                                    file.getContentType() : described.getFileMetadataDescription()));
+                } else {
+                    attachments.add(new Attachment(file, file.getOriginalFilename(), file.getContentType()));
+                }
+            }
+        }
+        log.setAttachments(attachments);
+        return createLog(clientInfo, markup, log, inReplyTo, principal);
+    }
+
     @PostMapping("/attachments/{logId}")
     public Log uploadAttachment(@PathVariable String logId,
                                 @RequestPart("file") MultipartFile file,
                                 @RequestPart("filename") String filename,
                                 @RequestPart(value = "id", required = false) String id,
                                 @RequestPart(value = "fileMetadataDescription", required = false) String fileMetadataDescription) {
-        Optional<Log> foundLog = logRepository.findById(logId);
-        if (logRepository.findById(logId).isPresent()) {
-            filename = filename == null || filename.isEmpty() ? file.getName() : filename;
-            fileMetadataDescription = fileMetadataDescription == null || fileMetadataDescription.isEmpty()
-                    ? file.getContentType()
-                    : fileMetadataDescription;
-            Attachment attachment = new Attachment(id, file, filename, fileMetadataDescription);
-            // Store the attachment
-            Attachment createdAttachement = attachmentRepository.save(attachment);
-            // Update the log entry with the id of the stored attachment
-            Log log = foundLog.get();
-            Set<Attachment> existingAttachments = log.getAttachments();
-            existingAttachments.add(createdAttachement);
-            log.setAttachments(existingAttachments);
-            return logRepository.update(log);
-        } else {
+        if (!logRepository.existsById(logId)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to retrieve log with id: " + logId);
+        }
+        filename = filename == null || filename.isEmpty() ? file.getName() : filename;
+        fileMetadataDescription = fileMetadataDescription == null || fileMetadataDescription.isEmpty()
+                ? file.getContentType()
+                : fileMetadataDescription;
+        return storeAttachments(logId, List.of(new Attachment(id, file, filename, fileMetadataDescription)));
+    }
+
+    /**
+     * Uploads one or more attachments to an existing log entry, streaming each file into the attachment store as it
+     * is received. Unlike {@link #uploadAttachment(String, MultipartFile, String, String, String)}, the request is not
+     * spooled to memory or temporary files first, and the content hash and size are computed while storing.
+     * <p>
+     * The optional form fields <code>id</code>, <code>filename</code> and <code>fileMetadataDescription</code> apply
+     * to the next <code>file</code> part, and must hence precede it. If not set, the file name and content type of
+     * the file part are used.
+     *
+     * @param logId   A (numerical) id of a {@link Log}
+     * @param request The <code>multipart/form-data</code> request
+     * @return The persisted {@link Log} object.
+     */
+    @PostMapping(value = "/attachments-stream/{logId}", consumes = "multipart/form-data")
+    public Log uploadAttachmentsStreaming(@PathVariable String logId, HttpServletRequest request) {
+        if (!logRepository.existsById(logId)) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to retrieve log with id: " + logId);
         }
+        List<Attachment> createdAttachments = new ArrayList<>();
+        try {
+            new StreamingMultipartParser(maxFileSize.toBytes(), maxRequestSize.toBytes()).parse(request, new StreamingMultipartParser.PartHandler() {
+                private final Map<String, String> fields = new HashMap<>();
+
+                @Override
+                public void formField(String name, String value) {
+                    fields.put(name, value);
+                }
+
+                @Override
+                public void file(String name, String filename, String contentType, InputStream content) {
+                    String attachmentFilename = fields.getOrDefault("filename", "").isEmpty() ? filename : fields.get("filename");
+                    String fileMetadataDescription = fields.getOrDefault("fileMetadataDescription", "").isEmpty() ?
+                            contentType : fields.get("fileMetadataDescription");
+                    Attachment attachment = new Attachment(fields.get("id"), new InputStreamResource(content), attachmentFilename, fileMetadataDescription);
+                    fields.clear();
+                    Attachment createdAttachment = attachmentRepository.save(attachment);
+                    if (createdAttachment == null) {
+                        throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to store attachment " + attachmentFilename);
+                    }
+                    createdAttachments.add(createdAttachment);
+                }
+            });
+            if (createdAttachments.isEmpty()) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "No file part in request");
+            }
+            return logRepository.addAttachments(logId, createdAttachments);
+        } catch (RuntimeException e) {
+            // E.g. a size limit exceeded or the client disconnected after some files were stored
+            createdAttachments.forEach(attachmentRepository::delete);
+            throw e;
+        }
+    }
+
+    /**
+     * Starts a resumable upload of an attachment to an existing log entry, see {@link AttachmentUploads}. The content
+     * is then appended with {@link #appendUpload(String, String, long, HttpServletRequest)}, and the upload is
+     * completed with {@link #completeUpload(String, String, String)}.
+     *
+     * @param logId                   A (numerical) id of a {@link Log}
+     * @param filename                The file name of the attachment
+     * @param fileMetadataDescription The description of the attachment, optional
+     * @param id                      The id of the attachment, optional
+     * @param length                  The total length of the content, optional
+     * @return The new upload
+     */
+    @PostMapping("/{logId}/uploads")
+    public UploadSession createUpload(@PathVariable String logId,
+                                      @RequestParam("filename") String filename,
+                                      @RequestParam(value = "fileMetadataDescription", required = false) String fileMetadataDescription,
+                                      @RequestParam(value = "id", required = false) String id,
+                                      @RequestParam(value = "length", required = false) Long length) {
+        if (!logRepository.existsById(logId)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to retrieve log with id: " + logId);
+        }
+        return attachmentUploads.create(logId, filename, fileMetadataDescription, id, length);
+    }
+
+    /**
+     * @param logId    A (numerical) id of a {@link Log}
+     * @param uploadId The id of an upload
+     * @return The upload, in particular the offset at which to continue.
+     */
+    @GetMapping("/{logId}/uploads/{uploadId}")
+    public UploadSession getUpload(@PathVariable String logId, @PathVariable String uploadId) {
+        return attachmentUploads.find(logId, uploadId);
+    }
+
+    /**
+     * Appends the request body to an upload. The body is read as a stream, so it should be sent with a content type
+     * like <code>application/octet-stream</code>, not as form data. If the request fails, the upload continues at
+     * the offset returned by {@link #getUpload(String, String)}.
+     *
+     * @param logId    A (numerical) id of a {@link Log}
+     * @param uploadId The id of an upload
+     * @param offset   The offset of the content, i.e. the number of bytes received so far. HTTP status 409
+     *                 (conflict) is returned if it does not match.
+     * @param request  The request with the content as body
+     * @return The upload with updated offset
+     * @throws IOException If the request body cannot be read
+     */
+    @PutMapping("/{logId}/uploads/{uploadId}")
+    public UploadSession appendUpload(@PathVariable String logId,
+                                      @PathVariable String uploadId,
+                                      @RequestParam("offset") long offset,
+                                      HttpServletRequest request) throws IOException {
+        return attachmentUploads.append(logId, uploadId, offset, request.getInputStream());
+    }
+
+    /**
+     * Completes an upload: its content is stored as attachment and added to the log entry.
+     *
+     * @param logId    A (numerical) id of a {@link Log}
+     * @param uploadId The id of an upload
+     * @param sha256   The hex encoded SHA-256 hash of the content. HTTP status 400 (bad request) is returned if the
+     *                 content received does not match, in which case the upload may be deleted and restarted.
+     * @return The updated {@link Log}
+     */
+    @PostMapping("/{logId}/uploads/{uploadId}")
+    public Log completeUpload(@PathVariable String logId,
+                              @PathVariable String uploadId,
+                              @RequestParam("sha256") String sha256) {
+        return attachmentUploads.complete(logId, uploadId, sha256);
+    }
+
+    /**
+     * Discards an upload and the content received.
+     *
+     * @param logId    A (numerical) id of a {@link Log}
+     * @param uploadId The id of an upload
+     */
+    @DeleteMapping("/{logId}/uploads/{uploadId}")
+    public void deleteUpload(@PathVariable String logId, @PathVariable String uploadId) {
+        attachmentUploads.delete(logId, uploadId);
     }
 
     /**
@@ -343,8 +727,8 @@ public class LogResource {
 
     /**
      * Endpoint supporting upload of multiple files, i.e. saving the client from sending one POST request per file.
-     * Calls {@link #uploadAttachment(String, MultipartFile, String, String, String)} internally, using the original file's
-     * name and content type.
+     * The files are stored concurrently, using the original file's name and content type, and are then added to the
+     * log entry with a single partial update.
      *
      * @param logId A (numerical) id of a {@link Log}
      * @param files The files subject to upload.
@@ -354,21 +738,59 @@ public class LogResource {
     @PostMapping(value = "/attachments-multi/{logId}", consumes = "multipart/form-data")
     public Log uploadMultipleAttachments(@PathVariable String logId,
                                          @RequestPart("file") MultipartFile[] files) {
-        if (logRepository.findById(logId).isPresent()) {
-            for (MultipartFile file : files) {
-                uploadAttachment(logId, file, file.getOriginalFilename(), file.getName(), file.getContentType());
-            }
-            return logRepository.findById(logId).get();
-        } else {
+        if (!logRepository.existsById(logId)) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to retrieve log with id: " + logId);
         }
+        List<Attachment> attachments = Arrays.stream(files)
+                .map(file -> new Attachment(file, file.getOriginalFilename(), file.getContentType()))
+                .collect(Collectors.toList());
+        return storeAttachments(logId, attachments);
+    }
+
+    /**
+     * Stores attachments concurrently, then appends references to all of them to a log entry with a single
+     * partial update, see {@link LogRepository#addAttachments(String, java.util.Collection)}. If an attachment
+     * cannot be stored, or if the log entry cannot be updated, the attachments already stored are deleted.
+     *
+     * @param logId       The log entry id
+     * @param attachments The attachments to store
+     * @return The updated log entry
+     */
+    private Log storeAttachments(String logId, List<Attachment> attachments) {
+        List<CompletableFuture<Attachment>> futures = attachments.stream()
+                .map(attachment -> CompletableFuture.supplyAsync(() -> attachmentRepository.save(attachment), executorService))
+                .collect(Collectors.toList());
+        List<Attachment> createdAttachments = new ArrayList<>();
+        boolean failed = false;
+        for (CompletableFuture<Attachment> future : futures) {
+            try {
+                Attachment createdAttachment = future.join();
+                if (createdAttachment == null) {
+                    failed = true;
+                } else {
+                    createdAttachments.add(createdAttachment);
+                }
+            } catch (CompletionException e) {
+                logger.log(Level.WARNING, "Failed to store attachment for log entry " + logId, e.getCause());
+                failed = true;
+            }
+        }
+        try {
+            if (failed) {
+                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to store attachments for log entry " + logId);
+            }
+            return logRepository.addAttachments(logId, createdAttachments);
+        } catch (ResponseStatusException e) {
+            createdAttachments.forEach(attachmentRepository::delete);
+            throw e;
+        }
     }
 
     @SuppressWarnings("unused")
     @PostMapping(value = "/group")
     public void groupLogEntries(@RequestBody List<Long> logEntryIds) {
         logger.log(Level.INFO, "Grouping log entries: " + logEntryIds.stream().map(id -> Long.toString(id)).collect(Collectors.joining(",")));
-        Property existingLogEntryGroupProperty = null;
+        String existingGroupId = null;
         List<Log> logs = new ArrayList<>();
         // Check prerequisites: if two (or more) log entries are already contained in a group, they must all be contained in
         // the same group. If not, throw exception.
@@ -380,36 +802,54 @@ public class LogResource {
                 } catch (ResponseStatusException exception) {
                     throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Log id " + id + " not found");
                 }
-                Property logEntryGroupProperty = LogEntryGroupHelper.getLogEntryGroupProperty(log.get());
-                if (logEntryGroupProperty != null && existingLogEntryGroupProperty != null &&
-                        !logEntryGroupProperty.getAttribute(LogEntryGroupHelper.ATTRIBUTE_ID).equals(existingLogEntryGroupProperty.getAttribute(LogEntryGroupHelper.ATTRIBUTE_ID))) {
+                String groupId = LogEntryGroupHelper.getGroupId(log.get());
+                // The first entry of a reply thread is not explicitly contained in its group
+                if (groupId == null && logRepository.findGroup(Long.toString(id)).size() > 1) {
+                    groupId = Long.toString(id);
+                }
+                if (groupId != null && existingGroupId != null && !groupId.equals(existingGroupId)) {
                     logger.log(Level.INFO, "Grouping not allowed due to conflicting log entry groups.");
                     throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cannot group: at least two entries already contained in different groups");
                 }
-                if (logEntryGroupProperty != null) {
-                    existingLogEntryGroupProperty = logEntryGroupProperty;
+                if (groupId != null) {
+                    existingGroupId = groupId;
                 }
                 logs.add(log.get());
             }
 
-            final Property logEntryGroupProperty;
             // If no existing log entry group was found, create a new.
-            if (existingLogEntryGroupProperty == null) {
-                logEntryGroupProperty = LogEntryGroupHelper.createNewLogEntryProperty();
-            } else {
-                logEntryGroupProperty = existingLogEntryGroupProperty;
-            }
+            final String groupId = existingGroupId == null ? UUID.randomUUID().toString() : existingGroupId;
 
-            // Now update the log entries by adding the log group property. Except for those that already have it.
+            // Now update the log entries by setting the group id and adding the log group property. Except for those that already have it.
             logs.forEach(log -> {
-                if (LogEntryGroupHelper.getLogEntryGroupProperty(log) == null) {
-                    log.getProperties().add(logEntryGroupProperty);
+                if (!groupId.equals(log.getGroupId())) {
+                    log.setGroupId(groupId);
+                    if (LogEntryGroupHelper.getLogEntryGroupProperty(log) == null) {
+                        log.getProperties().add(LogEntryGroupHelper.createLogEntryGroupProperty(groupId));
+                    }
                     logRepository.update(log);
                 }
             });
         }
     }
 
+    /**
+     * Retrieves all log entries of a log entry group, e.g. a reply thread.
+     *
+     * @param groupId The log entry group id, as found in the <code>groupId</code> field of a log entry.
+     * @return The log entries of the group sorted by creation date, oldest first. HTTP 404 if no log entry is
+     * contained in the group, e.g. if the group id is the id of a log entry without replies.
+     */
+    @GetMapping("/group/{groupId}")
+    public List<Log> getLogEntryGroup(@PathVariable String groupId) {
+        List<Log> logs = logRepository.findGroup(groupId);
+        // The original entry of a reply thread is not tagged, so a group holding it only is no group
+        if (logs.stream().noneMatch(log -> groupId.equals(LogEntryGroupHelper.getGroupId(log)))) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Log entry group " + groupId + " not found");
+        }
+        return logs;
+    }
+
     /**
      * {@link LogEntryNotifier} providers are called for the specified log entry. Since a provider
      * implementation may need some time to do it's job, calling them is done asynchronously. Any
@@ -495,9 +935,9 @@ public class LogResource {
     }
 
     /**
-     * Deals with the log entry group property such that if the original log entry (to which user
-     * replies) does not already contain the property it is added and the original log entry is updated.
-     * Then the reply entry is augmented with the log entry property.
+     * Adds the reply entry to the log entry group of the original log entry. If the original log entry
+     * is not contained in a group, the group id is the id of the original log entry. The original log entry
+     * is never updated.
      *
      * @param originalLogEntryId The (Elastic) id of the log entry user wants to reply to.
      * @param log                The contents of the reply entry.
@@ -505,23 +945,22 @@ public class LogResource {
      *                existing log entry. This will result in the client receiving a HTTP 400 status.
      */
     private void handleReply(String originalLogEntryId, Log log) {
+        Log originalLogEntry;
         try {
-            synchronized (logGroupSyncObject) {
-                Log originalLogEntry = logRepository.findById(originalLogEntryId).get();
-                // Check if the original entry already contains the log entry group property
-                Property logEntryGroupProperty = LogEntryGroupHelper.getLogEntryGroupProperty(originalLogEntry);
-                if (logEntryGroupProperty == null) {
-                    logEntryGroupProperty = LogEntryGroupHelper.createNewLogEntryProperty();
-                    originalLogEntry.getProperties().add(logEntryGroupProperty);
-                    // Update the original log entry
-                    logRepository.update(originalLogEntry);
-                }
-                // Add the log entry group property to the reply entry (i.e. the new entry)
-                log.getProperties().add(logEntryGroupProperty);
-            }
-        } catch (ResponseStatusException exception) {
+            originalLogEntry = logRepository.findById(originalLogEntryId).get();
+        } catch (ResponseStatusException | NoSuchElementException exception) {
             // Log entry not found, return HTTP 400
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cannot reply to log entry " + originalLogEntryId + " as it does not exist");
         }
+        // The original entry is not updated. If not already contained in a group, it becomes the first entry
+        // of a new group identified by its own id.
+        String groupId = LogEntryGroupHelper.getGroupId(originalLogEntry);
+        if (groupId == null) {
+            groupId = Long.toString(originalLogEntry.getId());
+        }
+        log.setGroupId(groupId);
+        // The log entry group property is kept for clients identifying groups by property
+        log.getProperties().removeIf(property -> LogEntryGroupHelper.LOG_ENTRY_GROUP.equals(property.getName()));
+        log.getProperties().add(LogEntryGroupHelper.createLogEntryGroupProperty(groupId));
     }
 }
@@ -0,0 +1,100 @@
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch.core.ScrollResponse;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.core.search.ResponseBody;
+import org.phoebus.olog.entity.Log;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Pages through all log entries matching a search using an Elasticsearch scroll, hence is not limited by the
+ * <code>index.max_result_window</code> setting of the log index like paging with <code>from</code> and
+ * <code>size</code>. Created by {@link LogRepository#scroll(org.springframework.util.MultiValueMap)}.
+ * <p>
+ * The scroll must be closed to release its search context in Elasticsearch before the keep-alive elapses.
+ */
+public class LogScroll implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(LogScroll.class.getName());
+
+    static final String SCROLL_KEEP_ALIVE = "1m";
+
+    private final ElasticsearchClient client;
+    private final long hitCount;
+    private String scrollId;
+    private List<Log> page;
+    private boolean firstPageRead;
+
+    /**
+     * @param client   The client used to read the following pages
+     * @param response The response to the search opening the scroll, holding the first page
+     */
+    LogScroll(ElasticsearchClient client, SearchResponse<Log> response) {
+        this.client = client;
+        this.hitCount = response.hits().total() == null ? 0 : response.hits().total().value();
+        this.scrollId = response.scrollId();
+        this.page = logs(response);
+    }
+
+    /**
+     * @return The number of log entries matching the search.
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return The next page of log entries, empty once all matching log entries have been read.
+     * @throws ResponseStatusException If the page cannot be read.
+     */
+    public List<Log> nextPage() {
+        if (!firstPageRead) {
+            firstPageRead = true;
+            return page;
+        }
+        if (page.isEmpty()) {
+            return page;
+        }
+        try {
+            String currentScrollId = scrollId;
+            ScrollResponse<Log> response = client.scroll(s -> s.scrollId(currentScrollId).scroll(t -> t.time(SCROLL_KEEP_ALIVE)), Log.class);
+            scrollId = response.scrollId();
+            page = logs(response);
+            return page;
+        } catch (IOException | ElasticsearchException e) {
+            logger.log(Level.SEVERE, "Failed to read search results", e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to read search results");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scrollId == null) {
+            return;
+        }
+        String currentScrollId = scrollId;
+        scrollId = null;
+        try {
+            client.clearScroll(c -> c.scrollId(currentScrollId));
+        } catch (IOException | ElasticsearchException e) {
+            logger.log(Level.WARNING, "Failed to clear scroll, it expires after " + SCROLL_KEEP_ALIVE, e);
+        }
+    }
+
+    private static List<Log> logs(ResponseBody<Log> response) {
+        List<Hit<Log>> hits = response.hits().hits();
+        return hits.isEmpty() ? Collections.emptyList() : hits.stream().map(Hit::source).collect(Collectors.toList());
+    }
+}
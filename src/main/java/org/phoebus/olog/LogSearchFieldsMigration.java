@@ -0,0 +1,201 @@
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.Conflicts;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.ChildScoreMode;
+import co.elastic.clients.elasticsearch._types.query_dsl.ExistsQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.NestedQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch.core.UpdateByQueryResponse;
+import co.elastic.clients.elasticsearch.tasks.GetTasksResponse;
+import org.phoebus.olog.entity.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Backfills the flattened search fields <code>tagNames</code>, <code>logbookNames</code> and
+ * <code>flattenedProperties</code> of log entries created before these fields were introduced. New and updated
+ * log entries carry them as they are derived from the {@link Log} object.
+ * <p>
+ * The backfill runs as an update by query task in Elasticsearch, repeated until no log entry lacks the fields.
+ * {@link LogSearchUtil} is then told to use them instead of nested queries.
+ */
+@Component
+public class LogSearchFieldsMigration {
+
+    private static final Logger logger = Logger.getLogger(LogSearchFieldsMigration.class.getName());
+
+    /**
+     * Computes the flattened fields the same way as {@link Log}.
+     */
+    static final String BACKFILL_SCRIPT =
+            "def tagNames = new ArrayList();" +
+            "if (ctx._source.tags != null) { for (t in ctx._source.tags) { tagNames.add(t.name); } }" +
+            "ctx._source.tagNames = tagNames;" +
+            "def logbookNames = new ArrayList();" +
+            "if (ctx._source.logbooks != null) { for (l in ctx._source.logbooks) { logbookNames.add(l.name); } }" +
+            "ctx._source.logbookNames = logbookNames;" +
+            "def flattened = new ArrayList();" +
+            "if (ctx._source.properties != null) { for (p in ctx._source.properties) {" +
+            "  flattened.add(p.name);" +
+            "  if (p.attributes != null) { for (a in p.attributes) {" +
+            "    def path = p.name + '.' + a.name;" +
+            "    flattened.add(path);" +
+            "    if (a.value != null) {" +
+            "      def entry = path + '=' + a.value;" +
+            "      flattened.add(entry.length() > " + Log.FLATTENED_PROPERTY_MAX_LENGTH + " ? path + '" + Log.FLATTENED_LONG_VALUE_SUFFIX + "' : entry);" +
+            "    }" +
+            "  } }" +
+            "} }" +
+            "ctx._source.flattenedProperties = flattened;";
+
+    /**
+     * Bounds of the interval at which a running backfill task is polled.
+     */
+    private static final long MIN_POLL_MILLIS = 1000;
+    private static final long MAX_POLL_MILLIS = 60000;
+
+    @Value("${elasticsearch.log.backfill.flattened:true}")
+    private boolean backfillEnabled;
+
+    @Value("${elasticsearch.log.backfill.retry.interval:10m}")
+    private Duration retryInterval;
+
+    @Autowired
+    @Qualifier("client")
+    private ElasticsearchClient client;
+
+    @Autowired
+    private LogIndexPartitioning logIndexPartitioning;
+
+    @Autowired
+    private LogSearchUtil logSearchUtil;
+
+    @Autowired
+    private ExecutorService executorService;
+
+    private Future<?> migration;
+
+    /**
+     * Backfills log entries until none lacks the flattened fields, then enables them for searches. Log entries
+     * skipped by a backfill run, e.g. because of a concurrent update, and failed runs are retried after
+     * <code>elasticsearch.log.backfill.retry.interval</code>.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrate() {
+        migration = executorService.submit(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        long remaining = countUnmigrated();
+                        if (remaining == 0) {
+                            logSearchUtil.setFlattenedFieldsAvailable(true);
+                            logger.log(Level.INFO, "Log entries carry flattened search fields, searches use them");
+                            return;
+                        }
+                        if (!backfillEnabled) {
+                            logger.log(Level.WARNING, "Log entries lack flattened search fields and backfill is disabled, searches use nested queries");
+                            return;
+                        }
+                        logger.log(Level.INFO, remaining + " log entries lack flattened search fields, backfilling");
+                        backfill();
+                        if (countUnmigrated() == 0) {
+                            continue;
+                        }
+                        logger.log(Level.WARNING, "Log entries still lack flattened search fields, retrying in " + retryInterval);
+                    } catch (IOException | ElasticsearchException e) {
+                        logger.log(Level.WARNING, "Failed to backfill flattened search fields, retrying in " + retryInterval, e);
+                    }
+                    Thread.sleep(retryInterval.toMillis());
+                }
+            } catch (InterruptedException e) {
+                // Shut down
+            }
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (migration != null) {
+            migration.cancel(true);
+        }
+    }
+
+    /**
+     * Runs an update by query task and polls it until completion. Failing to poll does not fail the backfill,
+     * the task keeps running in Elasticsearch.
+     *
+     * @throws IOException          If the task cannot be submitted
+     * @throws InterruptedException If interrupted while waiting for the task
+     */
+    private void backfill() throws IOException, InterruptedException {
+        UpdateByQueryResponse response = client.updateByQuery(u -> u.index(logIndexPartitioning.readTarget())
+                .query(unmigrated())
+                .script(s -> s.inline(i -> i.source(BACKFILL_SCRIPT).lang("painless")))
+                .conflicts(Conflicts.Proceed)
+                .refresh(true)
+                .waitForCompletion(false));
+        String taskId = response.task();
+        logger.log(Level.INFO, "Backfilling flattened search fields, task " + taskId);
+        long pollMillis = MIN_POLL_MILLIS;
+        while (true) {
+            Thread.sleep(pollMillis);
+            pollMillis = Math.min(2 * pollMillis, MAX_POLL_MILLIS);
+            GetTasksResponse task;
+            try {
+                task = client.tasks().get(g -> g.taskId(taskId).waitForCompletion(false));
+            } catch (IOException | ElasticsearchException e) {
+                logger.log(Level.FINE, "Unable to poll backfill task " + taskId + ", still waiting", e);
+                continue;
+            }
+            if (task.completed()) {
+                if (task.error() != null) {
+                    logger.log(Level.WARNING, "Backfill task " + taskId + " failed: " + task.error().reason());
+                }
+                return;
+            }
+        }
+    }
+
+    private long countUnmigrated() throws IOException {
+        return client.count(c -> c.index(logIndexPartitioning.readTarget())
+                .ignoreUnavailable(true)
+                .allowNoIndices(true)
+                .query(unmigrated())).count();
+    }
+
+    /**
+     * Empty arrays are not indexed, so only log entries having tags, logbooks or properties respectively
+     * are expected to have the flattened fields.
+     *
+     * @return A query matching log entries lacking any of the flattened fields.
+     */
+    private static Query unmigrated() {
+        return BoolQuery.of(b -> b
+                .should(missing("tags", "tagNames"))
+                .should(missing("logbooks", "logbookNames"))
+                .should(missing("properties", "flattenedProperties")))._toQuery();
+    }
+
+    private static Query missing(String nestedPath, String flattenedField) {
+        return BoolQuery.of(b -> b
+                .must(NestedQuery.of(n -> n.path(nestedPath)
+                        .query(ExistsQuery.of(e -> e.field(nestedPath + ".name"))._toQuery())
+                        .scoreMode(ChildScoreMode.None))._toQuery())
+                .mustNot(ExistsQuery.of(e -> e.field(flattenedField))._toQuery()))._toQuery();
+    }
+}
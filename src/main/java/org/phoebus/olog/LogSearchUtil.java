@@ -14,7 +14,10 @@ import co.elastic.clients.elasticsearch._types.query_dsl.NestedQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.Query;
 import co.elastic.clients.elasticsearch._types.query_dsl.RangeQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.WildcardQuery;
+import co.elastic.clients.elasticsearch.async_search.SubmitRequest;
 import co.elastic.clients.elasticsearch.core.SearchRequest;
+import org.phoebus.olog.entity.Log;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
@@ -30,6 +33,8 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A utility class for creating a search query for log entries based on time,
@@ -42,6 +47,7 @@ public class LogSearchUtil {
 
     final private static String MILLI_PATTERN = "yyyy-MM-dd HH:mm:ss.SSS";
     final public static DateTimeFormatter MILLI_FORMAT = DateTimeFormatter.ofPattern(MILLI_PATTERN).withZone(ZoneId.systemDefault());
+    final private static Pattern TIMEOUT_PATTERN = Pattern.compile("(\\d{1,9})(ms|s|m)?");
 
     @SuppressWarnings("unused")
     @Value("${elasticsearch.log.index:olog_logs}")
@@ -55,6 +61,156 @@ public class LogSearchUtil {
     @Value("${elasticsearch.result.size.search.max:1000}")
     private int maxSearchSize;
 
+    @Value("${elasticsearch.search.timeout.default:60s}")
+    private String defaultSearchTimeout;
+    @Value("${elasticsearch.search.timeout.max:60s}")
+    private String maxSearchTimeout;
+
+    @Value("${elasticsearch.search.async.keep.alive:1h}")
+    private String asyncSearchKeepAlive;
+    @Value("${elasticsearch.search.async.wait:1s}")
+    private String asyncSearchWait;
+
+    @Value("${elasticsearch.search.flattened:true}")
+    private boolean preferFlattenedFields = true;
+
+    /**
+     * Set once all log entries carry the flattened search fields, see {@link LogSearchFieldsMigration}.
+     */
+    private volatile boolean flattenedFieldsAvailable;
+
+    @Autowired
+    private LogIndexPartitioning logIndexPartitioning;
+
+    /**
+     * @param flattenedFieldsAvailable <code>true</code> if all log entries carry the flattened search fields
+     *                                 <code>tagNames</code>, <code>logbookNames</code> and <code>flattenedProperties</code>.
+     */
+    public void setFlattenedFieldsAvailable(boolean flattenedFieldsAvailable) {
+        this.flattenedFieldsAvailable = flattenedFieldsAvailable;
+    }
+
+    /**
+     * Determines the time budget of a search. Client may request a budget using the <code>timeout</code> search
+     * parameter, e.g. <code>timeout=10s</code>, but it is capped by <code>elasticsearch.search.timeout.max</code>.
+     *
+     * @param searchParameters - the various search parameters
+     * @return The search timeout in milliseconds.
+     */
+    public long getSearchTimeout(MultiValueMap<String, String> searchParameters) {
+        long maxTimeout = parseTimeout(maxSearchTimeout);
+        long timeout = parseTimeout(defaultSearchTimeout);
+        for (Entry<String, List<String>> parameter : searchParameters.entrySet()) {
+            if ("timeout".equals(parameter.getKey().strip().toLowerCase()) && !parameter.getValue().isEmpty()) {
+                timeout = parseTimeout(parameter.getValue().get(0));
+            }
+        }
+        return Math.min(timeout, maxTimeout);
+    }
+
+    /**
+     * @param timeout A time value like "500ms", "10s" or "2m". A plain number is interpreted as milliseconds.
+     * @return The timeout in milliseconds
+     */
+    static long parseTimeout(String timeout) {
+        Matcher matcher = TIMEOUT_PATTERN.matcher(timeout == null ? "" : timeout.strip().toLowerCase());
+        if (!matcher.matches() || Long.parseLong(matcher.group(1)) <= 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid search timeout: " + timeout);
+        }
+        long value = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2);
+        if ("s".equals(unit)) {
+            return value * 1000;
+        } else if ("m".equals(unit)) {
+            return value * 60 * 1000;
+        }
+        return value;
+    }
+
+    /**
+     * Builds a request for the Elasticsearch async search API from the same query, sort order and pagination as
+     * {@link #buildSearchRequest(MultiValueMap)}. Async searches are meant for queries exceeding the regular search
+     * budget, so the <code>timeout</code> search parameter does not apply. The search and its results are kept for
+     * <code>elasticsearch.search.async.keep.alive</code>.
+     *
+     * @param searchParameters - the various search parameters
+     * @return A {@link SubmitRequest} based on the provided search parameters
+     */
+    public SubmitRequest buildAsyncSearchRequest(MultiValueMap<String, String> searchParameters) {
+        SearchRequest searchRequest = buildSearchRequest(searchParameters);
+        return SubmitRequest.of(s -> s.index(searchRequest.index())
+                .ignoreUnavailable(true)
+                .allowNoIndices(true)
+                .query(searchRequest.query())
+                .sort(searchRequest.sort())
+                .size(searchRequest.size())
+                .from(searchRequest.from())
+                .keepAlive(t -> t.time(asyncSearchKeepAlive))
+                .keepOnCompletion(true)
+                .waitForCompletionTimeout(t -> t.time(asyncSearchWait)));
+    }
+
+    /**
+     * Translates a property search pattern, split into property name, attribute name and attribute value,
+     * to a wildcard pattern matching the <code>flattenedProperties</code> field of a log entry.
+     *
+     * @param propertySearchFields Property name, attribute name and attribute value patterns, each may be empty or <code>null</code>.
+     * @return A wildcard pattern
+     */
+    static String flattenedPropertyPattern(String[] propertySearchFields) {
+        String propertyName = propertySearchFields[0] == null || propertySearchFields[0].isBlank() ? "*" : propertySearchFields[0].trim();
+        if (propertySearchFields[1] == null || propertySearchFields[1].isBlank()) {
+            return propertyName;
+        }
+        String pattern = propertyName + "." + propertySearchFields[1].trim();
+        if (propertySearchFields[2] != null && !propertySearchFields[2].isBlank()) {
+            pattern += "=" + propertySearchFields[2].trim();
+        }
+        return pattern;
+    }
+
+    /**
+     * @param propertySearchFields Property name, attribute name and attribute value patterns, each may be empty or <code>null</code>.
+     * @return A query matching the nested <code>properties</code> of a log entry.
+     */
+    static Query nestedPropertyQuery(String[] propertySearchFields) {
+        BoolQuery.Builder bqb = new BoolQuery.Builder();
+        if (propertySearchFields[0] != null && !propertySearchFields[0].isEmpty()) {
+            bqb.must(WildcardQuery.of(w -> w.field("properties.name").value(propertySearchFields[0].trim()))._toQuery());
+        }
+
+        if (propertySearchFields[1] != null && !propertySearchFields[1].isEmpty()) {
+            BoolQuery.Builder bqb2 = new BoolQuery.Builder();
+            bqb2.must(WildcardQuery.of(w -> w.field("properties.attributes.name").value(propertySearchFields[1].trim()))._toQuery());
+            if (propertySearchFields[2] != null && !propertySearchFields[2].isEmpty()) {
+                bqb2.must(WildcardQuery.of(w -> w.field("properties.attributes.value").value(propertySearchFields[2].trim()))._toQuery());
+            }
+            bqb.must(NestedQuery.of(n -> n.path("properties.attributes").query(bqb2.build()._toQuery()).scoreMode(ChildScoreMode.None))._toQuery());
+        }
+        return NestedQuery.of(n -> n.path("properties").query(bqb.build()._toQuery()).scoreMode(ChildScoreMode.None))._toQuery();
+    }
+
+    /**
+     * Matches the <code>flattenedProperties</code> field of a log entry. Attribute values too long to be part of
+     * that field are matched by the nested query, restricted to the log entries marked as having such values.
+     *
+     * @param propertySearchFields Property name, attribute name and attribute value patterns, each may be empty or <code>null</code>.
+     * @return A query matching the flattened properties of a log entry.
+     */
+    static Query flattenedPropertyQuery(String[] propertySearchFields) {
+        String pattern = flattenedPropertyPattern(propertySearchFields);
+        Query flattenedQuery = WildcardQuery.of(w -> w.field("flattenedProperties").value(pattern))._toQuery();
+        int valueIndex = pattern.indexOf('=');
+        if (valueIndex < 0) {
+            return flattenedQuery;
+        }
+        String longValuePattern = pattern.substring(0, valueIndex) + Log.FLATTENED_LONG_VALUE_SUFFIX;
+        Query longValueQuery = BoolQuery.of(b -> b
+                .filter(WildcardQuery.of(w -> w.field("flattenedProperties").value(longValuePattern))._toQuery())
+                .must(nestedPropertyQuery(propertySearchFields)))._toQuery();
+        return BoolQuery.of(b -> b.should(flattenedQuery, longValueQuery))._toQuery();
+    }
+
     /**
      * @param searchParameters - the various search parameters
      * @return A {@link SearchRequest} based on the provided search parameters
@@ -75,6 +231,9 @@ public class LogSearchUtil {
         // Default sort order
         SortOrder sortOrder = null;
 
+        // Prefer plain keyword fields over nested queries, unless older log entries lack them
+        boolean flattened = preferFlattenedFields && flattenedFieldsAvailable;
+
         for (Entry<String, List<String>> parameter : searchParameters.entrySet()) {
             switch (parameter.getKey().strip().toLowerCase()) {
                 case "desc":
@@ -121,10 +280,14 @@ public class LogSearchUtil {
                     List<Query> tagsQueries = new ArrayList<>();
                     for (String value : parameter.getValue()) {
                         for (String pattern : value.split("[\\|,;]")) {
-                            tagsQueries.add(WildcardQuery.of(w -> w.field("tags.name").value(pattern.trim()))._toQuery());
+                            tagsQueries.add(WildcardQuery.of(w -> w.field(flattened ? "tagNames" : "tags.name").value(pattern.trim()))._toQuery());
                         }
                     }
                     Query tagsQuery = tagQuery.queries(tagsQueries).build()._toQuery();
+                    if (flattened) {
+                        boolQueryBuilder.filter(tagsQuery);
+                        break;
+                    }
                     NestedQuery nestedTagsQuery = NestedQuery.of(n -> n.path("tags").query(tagsQuery));
                     boolQueryBuilder.must(nestedTagsQuery._toQuery());
                     break;
@@ -133,10 +296,14 @@ public class LogSearchUtil {
                     List<Query> logbooksQueries = new ArrayList<>();
                     for (String value : parameter.getValue()) {
                         for (String pattern : value.split("[\\|,;]")) {
-                            logbooksQueries.add(WildcardQuery.of(w -> w.field("logbooks.name").value(pattern.trim()))._toQuery());
+                            logbooksQueries.add(WildcardQuery.of(w -> w.field(flattened ? "logbookNames" : "logbooks.name").value(pattern.trim()))._toQuery());
                         }
                     }
                     Query logbooksQuery = logbookQuery.queries(logbooksQueries).build()._toQuery();
+                    if (flattened) {
+                        boolQueryBuilder.filter(logbooksQuery);
+                        break;
+                    }
                     NestedQuery nestedLogbooksQuery = NestedQuery.of(n -> n.path("logbooks").query(logbooksQuery).scoreMode(ChildScoreMode.None));
                     boolQueryBuilder.must(nestedLogbooksQuery._toQuery());
                     break;
@@ -170,20 +337,7 @@ public class LogSearchUtil {
                         for (String pattern : value.split("[\\|,;]")) {
                             String[] propertySearchFields;
                             propertySearchFields = Arrays.copyOf(pattern.split("\\."), 3);
-                            BoolQuery.Builder bqb = new BoolQuery.Builder();
-                            if (propertySearchFields[0] != null && !propertySearchFields[0].isEmpty()) {
-                                bqb.must(WildcardQuery.of(w -> w.field("properties.name").value(propertySearchFields[0].trim()))._toQuery());
-                            }
-
-                            if (propertySearchFields[1] != null && !propertySearchFields[1].isEmpty()) {
-                                BoolQuery.Builder bqb2 = new BoolQuery.Builder();
-                                bqb2.must(WildcardQuery.of(w -> w.field("properties.attributes.name").value(propertySearchFields[1].trim()))._toQuery());
-                                if (propertySearchFields[2] != null && !propertySearchFields[2].isEmpty()) {
-                                    bqb2.must(WildcardQuery.of(w -> w.field("properties.attributes.value").value(propertySearchFields[2].trim()))._toQuery());
-                                }
-                                bqb.must(NestedQuery.of(n -> n.path("properties.attributes").query(bqb2.build()._toQuery()).scoreMode(ChildScoreMode.None))._toQuery());
-                            }
-                            propertyQuery.queries(q -> q.nested(NestedQuery.of(n -> n.path("properties").query(bqb.build()._toQuery()).scoreMode(ChildScoreMode.None))));
+                            propertyQuery.queries(flattened ? flattenedPropertyQuery(propertySearchFields) : nestedPropertyQuery(propertySearchFields));
                         }
                     }
                     boolQueryBuilder.must(propertyQuery.build()._toQuery());
@@ -331,15 +485,27 @@ public class LogSearchUtil {
             boolQueryBuilder.must(levelQuery.build()._toQuery());
         }
 
+        // Only target the partitions overlapping the requested time window. This is not possible if
+        // events are included, as their time is unrelated to the creation date of the log entry.
+        List<String> indices;
+        if (temporalSearch && !includeEvents) {
+            indices = logIndexPartitioning.searchTargets(start, end);
+        } else {
+            indices = List.of(logIndexPartitioning.readTarget());
+        }
+
+        long timeout = getSearchTimeout(searchParameters);
         int _searchResultSize = searchResultSize;
         int _from = from;
         FieldSort.Builder fb = new FieldSort.Builder();
         fb.field("createdDate");
         fb.order(sortOrder);
 
-        return SearchRequest.of(s -> s.index(ES_LOG_INDEX)
+        return SearchRequest.of(s -> s.index(indices)
+                .ignoreUnavailable(true)
+                .allowNoIndices(true)
                 .query(boolQueryBuilder.build()._toQuery())
-                .timeout("60s")
+                .timeout(timeout + "ms")
                 .sort(SortOptions.of(so -> so.field(fb.build())))
                 .size(Math.min(_searchResultSize, maxSearchSize))
                 .from(_from));
@@ -1,7 +1,11 @@
 package org.phoebus.olog;
 
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ReadPreference;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.gridfs.GridFSBucket;
 import com.mongodb.client.gridfs.GridFSBuckets;
 import org.springframework.beans.factory.annotation.Value;
@@ -16,6 +20,9 @@ import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
 import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
 import org.springframework.data.mongodb.gridfs.GridFsTemplate;
 
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
 @Configuration
 @PropertySource("classpath:application.properties")
 @SuppressWarnings("unused")
@@ -27,6 +34,18 @@ public class MongoConfig extends AbstractMongoClientConfiguration {
     private String mongoHost;
     @Value("${mongo.port:27017}")
     private int mongoPort;
+    /**
+     * Full connection string, e.g. listing the members of a replica set. Takes precedence over mongo.host and
+     * mongo.port if set.
+     */
+    @Value("${mongo.uri:}")
+    private String mongoUri;
+    @Value("${mongo.pool.max.size:100}")
+    private int maxPoolSize;
+    @Value("${mongo.pool.min.size:0}")
+    private int minPoolSize;
+    @Value("${mongo.pool.max.wait:2m}")
+    private Duration maxPoolWait;
 
     @SuppressWarnings("unused")
     @Bean
@@ -44,7 +63,15 @@ public class MongoConfig extends AbstractMongoClientConfiguration {
     @SuppressWarnings("unused")
     @Bean
     public GridFSBucket gridFSBucket() {
-        return GridFSBuckets.create(mongoClient().getDatabase(mongoDbName));
+        return GridFSBuckets.create(mongoDatabase());
+    }
+
+    /**
+     * @return The database holding the attachments, i.e. the GridFS bucket and the attachment references.
+     */
+    @Bean
+    public MongoDatabase mongoDatabase() {
+        return mongoClient().getDatabase(mongoDbName);
     }
 
     @Override
@@ -52,10 +79,36 @@ public class MongoConfig extends AbstractMongoClientConfiguration {
         return mongoDbName;
     }
 
+    /**
+     * Creates the client from <code>mongo.uri</code>, or from <code>mongo.host</code> and <code>mongo.port</code>.
+     * Pool options of the connection string (e.g. <code>maxPoolSize</code>) take precedence over the
+     * <code>mongo.pool</code> properties.
+     * <p>
+     * Reads default to the primary, whatever the connection string says, as they are mostly done to update
+     * attachments. Attachment downloads read from secondaries if so configured, see
+     * <code>mongo.attachment.read.preference</code>.
+     */
     @Bean
     @Override
     public MongoClient mongoClient() {
-        return MongoClients.create("mongodb://" + mongoHost + ":" + mongoPort);
+        ConnectionString connectionString = new ConnectionString(mongoUri == null || mongoUri.isBlank() ?
+                "mongodb://" + mongoHost + ":" + mongoPort : mongoUri);
+        MongoClientSettings settings = MongoClientSettings.builder()
+                .applyConnectionString(connectionString)
+                .applyToConnectionPoolSettings(pool -> {
+                    if (connectionString.getMaxConnectionPoolSize() == null) {
+                        pool.maxSize(maxPoolSize);
+                    }
+                    if (connectionString.getMinConnectionPoolSize() == null) {
+                        pool.minSize(minPoolSize);
+                    }
+                    if (connectionString.getMaxWaitTime() == null) {
+                        pool.maxWaitTime(maxPoolWait.toMillis(), TimeUnit.MILLISECONDS);
+                    }
+                })
+                .readPreference(ReadPreference.primary())
+                .build();
+        return MongoClients.create(settings);
     }
 
     @Override
@@ -0,0 +1,285 @@
+package org.phoebus.olog;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes attachment downloads with non-blocking servlet output, such that a download does not hold a servlet
+ * thread for the whole transfer: the servlet thread returns as soon as the response is started, and content
+ * is written only when the connection can take more, i.e. at the pace of the client.
+ * <p>
+ * The attachment store is read with blocking I/O, one chunk at a time, by a small pool of threads shared by all
+ * downloads. A read is submitted only once the previous chunk has been handed over to the connection, so a slow
+ * client holds neither a thread nor more than one chunk of memory, and does not slow down other downloads.
+ * <p>
+ * Only complete (HTTP 200) downloads of attachments at least <code>attachment.download.nonblocking.min.size</code>
+ * long are written this way. Small attachments, byte ranges, conditional requests and attachments served from
+ * local files (with sendfile, see {@link FileChannelResourceHttpMessageConverter}) are left to Spring MVC.
+ */
+@Component
+public class NonBlockingAttachmentWriter {
+
+    private static final Logger logger = Logger.getLogger(NonBlockingAttachmentWriter.class.getName());
+
+    /**
+     * Request headers for which Spring MVC computes a different response, e.g. HTTP 206 or 304.
+     */
+    private static final List<String> DEFERRED_REQUEST_HEADERS = List.of(HttpHeaders.RANGE,
+            HttpHeaders.IF_NONE_MATCH, HttpHeaders.IF_MODIFIED_SINCE, HttpHeaders.IF_MATCH, HttpHeaders.IF_UNMODIFIED_SINCE);
+
+    @Value("${attachment.download.nonblocking:true}")
+    private boolean enabled;
+    @Value("${attachment.download.nonblocking.min.size:1MB}")
+    private DataSize minSize;
+    @Value("${attachment.download.threads:4}")
+    private int threads;
+    @Value("${attachment.download.chunk.size:64KB}")
+    private DataSize chunkSize;
+    /**
+     * Maximum duration of a download, 0 for no limit. Connections on which the client stops reading are closed
+     * by the servlet container's write timeout.
+     */
+    @Value("${attachment.download.timeout:0}")
+    private long timeout;
+
+    private Executor readers;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public NonBlockingAttachmentWriter() {
+    }
+
+    NonBlockingAttachmentWriter(Executor readers, DataSize minSize, DataSize chunkSize) {
+        this.enabled = true;
+        this.readers = readers;
+        this.minSize = minSize;
+        this.chunkSize = chunkSize;
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger count = new AtomicInteger();
+        readers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "attachment-download-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (readers instanceof ExecutorService) {
+            ((ExecutorService) readers).shutdownNow();
+        }
+    }
+
+    /**
+     * @return Number of downloads being written.
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * @return Number of downloads written completely since startup.
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return Number of downloads aborted since startup, typically by the client.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Starts writing a download if it qualifies for non-blocking output.
+     *
+     * @param download A response as computed by {@link AttachmentResponses#download}
+     * @param request  The request
+     * @param response The response
+     * @return <code>true</code> if the download is being written, in which case the request handler must not
+     * return the {@link ResponseEntity}. <code>false</code> if the download must be returned to Spring MVC.
+     * @throws IOException If the attachment content cannot be accessed.
+     */
+    public boolean write(ResponseEntity<Resource> download, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!enabled || download.getStatusCode() != HttpStatus.OK || download.getBody() == null ||
+                download.getBody() instanceof FileAttachmentResource ||
+                !"GET".equals(request.getMethod()) || !request.isAsyncSupported() || request.isAsyncStarted() ||
+                DEFERRED_REQUEST_HEADERS.stream().anyMatch(header -> request.getHeader(header) != null)) {
+            return false;
+        }
+        long length = download.getHeaders().getContentLength();
+        if (length >= 0 && length < minSize.toBytes()) {
+            return false;
+        }
+
+        InputStream inputStream = download.getBody().getInputStream();
+        response.setStatus(download.getStatusCodeValue());
+        download.getHeaders().forEach((name, values) -> values.forEach(value -> response.addHeader(name, value)));
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(timeout);
+        Transfer transfer = new Transfer(asyncContext, response.getOutputStream(), inputStream);
+        asyncContext.addListener(transfer);
+        active.incrementAndGet();
+        // The container calls onWritePossible() once the servlet thread has returned
+        response.getOutputStream().setWriteListener(transfer);
+        return true;
+    }
+
+    /**
+     * Copies the content of one download. Writes happen on the container's threads (onWritePossible) and on the
+     * reader threads (completion of a read), never concurrently, and only while the output is ready.
+     */
+    private class Transfer implements WriteListener, AsyncListener {
+
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream outputStream;
+        private final InputStream inputStream;
+        private final byte[] buffer;
+        /**
+         * Number of bytes in the buffer not yet written
+         */
+        private int pending;
+        private boolean reading;
+        private boolean endOfContent;
+        private boolean done;
+
+        Transfer(AsyncContext asyncContext, ServletOutputStream outputStream, InputStream inputStream) {
+            this.asyncContext = asyncContext;
+            this.outputStream = outputStream;
+            this.inputStream = inputStream;
+            this.buffer = new byte[(int) chunkSize.toBytes()];
+        }
+
+        @Override
+        public void onWritePossible() {
+            pump();
+        }
+
+        /**
+         * Writes while the output is ready. Returns when the output is not ready, in which case the container
+         * calls {@link #onWritePossible()} later, or when the next chunk is being read.
+         */
+        private synchronized void pump() {
+            try {
+                while (!done && !reading) {
+                    if (pending == 0) {
+                        if (endOfContent) {
+                            finish(null);
+                            return;
+                        }
+                        reading = true;
+                        readers.execute(this::read);
+                        return;
+                    }
+                    if (!outputStream.isReady()) {
+                        return;
+                    }
+                    outputStream.write(buffer, 0, pending);
+                    pending = 0;
+                }
+            } catch (IOException | RuntimeException e) {
+                // RejectedExecutionException on shutdown, IllegalStateException if the request has completed
+                finish(e);
+            }
+        }
+
+        private void read() {
+            try {
+                int read = inputStream.readNBytes(buffer, 0, buffer.length);
+                synchronized (this) {
+                    pending = read;
+                    endOfContent = read < buffer.length;
+                    reading = false;
+                }
+                pump();
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    reading = false;
+                    finish(e);
+                }
+            }
+        }
+
+        private synchronized void finish(Throwable error) {
+            if (done) {
+                return;
+            }
+            done = true;
+            active.decrementAndGet();
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Failed to close attachment", e);
+            }
+            if (error == null) {
+                completed.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+                logger.log(error instanceof IOException || error instanceof RejectedExecutionException ? Level.FINE : Level.WARNING,
+                        "Attachment download aborted", error);
+            }
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                // Already completed by the container, e.g. on timeout
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            finish(throwable);
+        }
+
+        @Override
+        public synchronized void onComplete(AsyncEvent event) {
+            // Normally after finish(), unless the container completed the request first
+            finish(endOfContent && pending == 0 ? null : new IOException("Attachment download closed"));
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            finish(new IOException("Attachment download timed out"));
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            finish(event.getThrowable());
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
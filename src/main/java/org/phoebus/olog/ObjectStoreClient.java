@@ -0,0 +1,339 @@
+package org.phoebus.olog;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Minimal client of an S3 compatible object store (Amazon S3, MinIO, Ceph, ...), limited to what
+ * {@link S3AttachmentStore} needs: storing, reading, listing and deleting the objects of one bucket, and
+ * presigning downloads. Requests are signed with {@link SigV4Signer}.
+ */
+public class ObjectStoreClient {
+
+    private static final String SERVICE = "s3";
+    private static final String METADATA_PREFIX = "x-amz-meta-";
+
+    /**
+     * An object as listed, or as returned by {@link #headObject(String)}.
+     */
+    public static class ObjectInfo {
+        private final String key;
+        private final long size;
+        private final Instant lastModified;
+        private final String contentType;
+        private final Map<String, String> metadata;
+
+        ObjectInfo(String key, long size, Instant lastModified, String contentType, Map<String, String> metadata) {
+            this.key = key;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.metadata = metadata;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public Instant getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return The content type of the object, <code>null</code> if listed.
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return The user metadata of the object, by name without the <code>x-amz-meta-</code> prefix. Empty if listed.
+         */
+        public Map<String, String> getMetadata() {
+            return metadata;
+        }
+    }
+
+    private final URI endpoint;
+    private final String bucket;
+    private final boolean pathStyle;
+    private final SigV4Signer signer;
+    private final HttpClient httpClient;
+    private final Duration timeout;
+
+    /**
+     * @param endpoint  The URL of the object store, e.g. <code>http://localhost:9000</code>
+     * @param region    The region of the bucket
+     * @param bucket    The bucket
+     * @param accessKey The access key id
+     * @param secretKey The secret access key
+     * @param pathStyle Whether the bucket is addressed in the path (<code>http://endpoint/bucket/key</code>, as
+     *                  needed by MinIO) or in the host name (<code>http://bucket.endpoint/key</code>).
+     * @param timeout   Timeout of requests, except for the transfer of content
+     */
+    public ObjectStoreClient(URI endpoint, String region, String bucket, String accessKey, String secretKey,
+                             boolean pathStyle, Duration timeout) {
+        this.endpoint = endpoint;
+        this.bucket = bucket;
+        this.pathStyle = pathStyle;
+        this.signer = new SigV4Signer(accessKey, secretKey, region, SERVICE);
+        this.timeout = timeout;
+        this.httpClient = HttpClient.newBuilder().connectTimeout(timeout).build();
+    }
+
+    /**
+     * Creates the bucket unless it exists.
+     *
+     * @param region The region of the bucket
+     * @throws IOException If the bucket cannot be created.
+     */
+    public void createBucketIfMissing(String region) throws IOException {
+        HttpResponse<Void> head = send("HEAD", null, Map.of(), Map.of(), null, SigV4Signer.EMPTY_PAYLOAD,
+                HttpResponse.BodyHandlers.discarding());
+        if (head.statusCode() != 404) {
+            check(head, "HEAD bucket");
+            return;
+        }
+        byte[] configuration = "us-east-1".equals(region) ? new byte[0] :
+                ("<CreateBucketConfiguration xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"><LocationConstraint>" +
+                        region + "</LocationConstraint></CreateBucketConfiguration>").getBytes(StandardCharsets.UTF_8);
+        HttpResponse<String> created = send("PUT", null, Map.of(), Map.of(), HttpRequest.BodyPublishers.ofByteArray(configuration),
+                SigV4Signer.sha256(configuration), HttpResponse.BodyHandlers.ofString());
+        check(created, "PUT bucket");
+    }
+
+    /**
+     * Stores an object, unless an object with the same key exists.
+     *
+     * @param key         The key of the object
+     * @param content     The file holding the content
+     * @param contentHash The hex encoded SHA-256 hash of the content, verified by the object store
+     * @param contentType The content type of the object, may be <code>null</code>
+     * @param metadata    The user metadata of the object
+     * @return <code>false</code> if an object with the same key exists.
+     * @throws IOException If the object cannot be stored.
+     */
+    public boolean putObjectIfAbsent(String key, Path content, String contentHash, String contentType,
+                                     Map<String, String> metadata) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        // Conditional write, not supported by all object stores: the caller checks for an existing key as well
+        headers.put("If-None-Match", "*");
+        if (contentType != null) {
+            headers.put("Content-Type", contentType);
+        }
+        metadata.forEach((name, value) -> headers.put(METADATA_PREFIX + name, SigV4Signer.encode(value, false)));
+        HttpResponse<String> response = send("PUT", key, Map.of(), headers, HttpRequest.BodyPublishers.ofFile(content),
+                contentHash, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() == 412) {
+            return false;
+        }
+        check(response, "PUT " + key);
+        return true;
+    }
+
+    /**
+     * @param key The key of an object
+     * @return The object, or {@link Optional#empty()} if not found.
+     * @throws IOException If the object store cannot be reached.
+     */
+    public Optional<ObjectInfo> headObject(String key) throws IOException {
+        HttpResponse<Void> response = send("HEAD", key, Map.of(), Map.of(), null, SigV4Signer.EMPTY_PAYLOAD,
+                HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 404) {
+            return Optional.empty();
+        }
+        check(response, "HEAD " + key);
+        HttpHeaders headers = response.headers();
+        Map<String, String> metadata = new HashMap<>();
+        headers.map().forEach((name, values) -> {
+            if (name.toLowerCase().startsWith(METADATA_PREFIX) && !values.isEmpty()) {
+                metadata.put(name.toLowerCase().substring(METADATA_PREFIX.length()),
+                        URLDecoder.decode(values.get(0), StandardCharsets.UTF_8));
+            }
+        });
+        Instant lastModified = headers.firstValue("Last-Modified")
+                .map(value -> ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant())
+                .orElse(null);
+        return Optional.of(new ObjectInfo(key, headers.firstValueAsLong("Content-Length").orElse(-1),
+                lastModified, headers.firstValue("Content-Type").orElse(null), metadata));
+    }
+
+    /**
+     * @param key The key of an object
+     * @return The content of the object, to be closed by the caller.
+     * @throws FileNotFoundException If the object does not exist.
+     * @throws IOException           If the object cannot be read.
+     */
+    public InputStream getObject(String key) throws IOException {
+        HttpResponse<InputStream> response = send("GET", key, Map.of(), Map.of(), null, SigV4Signer.EMPTY_PAYLOAD,
+                HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() == 200) {
+            return response.body();
+        }
+        String error = new String(response.body().readAllBytes(), StandardCharsets.UTF_8);
+        response.body().close();
+        if (response.statusCode() == 404) {
+            throw new FileNotFoundException(key);
+        }
+        throw new IOException("GET " + key + " failed with HTTP " + response.statusCode() + ": " + error);
+    }
+
+    /**
+     * Deletes an object. Does nothing if not found.
+     *
+     * @param key The key of an object
+     * @throws IOException If the object cannot be deleted.
+     */
+    public void deleteObject(String key) throws IOException {
+        HttpResponse<String> response = send("DELETE", key, Map.of(), Map.of(), null, SigV4Signer.EMPTY_PAYLOAD,
+                HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 404) {
+            check(response, "DELETE " + key);
+        }
+    }
+
+    /**
+     * Lists objects, one page of up to 1000 objects at a time.
+     *
+     * @param prefix   The prefix of the keys of the objects to list
+     * @param consumer Called with each object
+     * @throws IOException If the objects cannot be listed.
+     */
+    public void listObjects(String prefix, Consumer<ObjectInfo> consumer) throws IOException {
+        String continuationToken = null;
+        do {
+            Map<String, String> query = new TreeMap<>();
+            query.put("list-type", "2");
+            query.put("prefix", prefix);
+            if (continuationToken != null) {
+                query.put("continuation-token", continuationToken);
+            }
+            HttpResponse<InputStream> response = send("GET", null, query, Map.of(), null, SigV4Signer.EMPTY_PAYLOAD,
+                    HttpResponse.BodyHandlers.ofInputStream());
+            Document result;
+            try (InputStream body = response.body()) {
+                if (response.statusCode() != 200) {
+                    throw new IOException("Listing " + prefix + " failed with HTTP " + response.statusCode() + ": " +
+                            new String(body.readAllBytes(), StandardCharsets.UTF_8));
+                }
+                result = parse(body);
+            }
+            NodeList contents = result.getDocumentElement().getElementsByTagName("Contents");
+            for (int i = 0; i < contents.getLength(); i++) {
+                Element object = (Element) contents.item(i);
+                consumer.accept(new ObjectInfo(text(object, "Key"), Long.parseLong(text(object, "Size")),
+                        Instant.parse(text(object, "LastModified")), null, Map.of()));
+            }
+            continuationToken = "true".equals(text(result.getDocumentElement(), "IsTruncated")) ?
+                    text(result.getDocumentElement(), "NextContinuationToken") : null;
+        } while (continuationToken != null);
+    }
+
+    /**
+     * @param key                The key of an object
+     * @param responseParameters Overrides of response headers, e.g. <code>response-content-disposition</code>
+     * @param expiry             Time for which the URL is valid
+     * @param time               The time of signing, i.e. the start of the validity
+     * @return A URL from which a client may download the object without credentials until it expires.
+     */
+    public URI presignGet(String key, Map<String, String> responseParameters, Duration expiry, Instant time) {
+        String query = signer.presign("GET", host(), path(key), responseParameters, expiry, time);
+        return URI.create(base() + SigV4Signer.encodePath(path(key)) + "?" + query);
+    }
+
+    private <T> HttpResponse<T> send(String method, String key, Map<String, String> query, Map<String, String> headers,
+                                     HttpRequest.BodyPublisher body, String payloadHash,
+                                     HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+        String path = path(key);
+        Map<String, String> signedHeaders = signer.sign(method, host(), path, query, headers, payloadHash, Instant.now());
+        String encodedQuery = SigV4Signer.encodeQuery(query);
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(base() + SigV4Signer.encodePath(path) +
+                        (encodedQuery.isEmpty() ? "" : "?" + encodedQuery)))
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody() : body);
+        if (body == null) {
+            // Content is transferred at the pace of the caller
+            request.timeout(timeout);
+        }
+        signedHeaders.forEach(request::header);
+        try {
+            return httpClient.send(request.build(), bodyHandler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(method + " " + path + " interrupted");
+        }
+    }
+
+    /**
+     * @return The <code>Host</code> header sent by the HTTP client, i.e. without default port.
+     */
+    private String host() {
+        String host = pathStyle ? endpoint.getHost() : bucket + "." + endpoint.getHost();
+        int port = endpoint.getPort();
+        boolean defaultPort = port == -1 || ("https".equals(endpoint.getScheme()) && port == 443) ||
+                ("http".equals(endpoint.getScheme()) && port == 80);
+        return defaultPort ? host : host + ":" + port;
+    }
+
+    private String base() {
+        return endpoint.getScheme() + "://" + host();
+    }
+
+    private String path(String key) {
+        String bucketPath = pathStyle ? "/" + bucket : "";
+        return key == null ? (bucketPath.isEmpty() ? "/" : bucketPath) : bucketPath + "/" + key;
+    }
+
+    private static void check(HttpResponse<?> response, String request) throws IOException {
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException(request + " failed with HTTP " + response.statusCode() +
+                    (response.body() instanceof String ? ": " + response.body() : ""));
+        }
+    }
+
+    private static Document parse(InputStream xml) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder().parse(xml);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Invalid object store response", e);
+        }
+    }
+
+    private static String text(Element element, String childName) {
+        NodeList children = element.getElementsByTagName(childName);
+        return children.getLength() == 0 ? null : children.item(0).getTextContent();
+    }
+}
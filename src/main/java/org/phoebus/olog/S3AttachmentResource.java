@@ -0,0 +1,91 @@
+package org.phoebus.olog;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Attachment content stored as an object by {@link S3AttachmentStore}. Each call to {@link #getInputStream()}
+ * downloads the object again.
+ * <p>
+ * If direct downloads are enabled, clients are redirected to a presigned URL of the object. The URL is signed
+ * at the start of a time window of half its validity, such that repeated downloads within the window get the
+ * same URL, and may be served from the cache of the client.
+ */
+public class S3AttachmentResource extends AbstractResource implements HashedResource, DirectDownloadResource {
+
+    private final ObjectStoreClient client;
+    private final ObjectStoreClient.ObjectInfo object;
+    private final Duration directDownloadExpiry;
+
+    /**
+     * @param client               The client of the object store
+     * @param object               The object holding the content
+     * @param directDownloadExpiry Validity of presigned download URLs, or <code>null</code> if clients must
+     *                             download the content through the service.
+     */
+    public S3AttachmentResource(ObjectStoreClient client, ObjectStoreClient.ObjectInfo object, Duration directDownloadExpiry) {
+        this.client = client;
+        this.object = object;
+        this.directDownloadExpiry = directDownloadExpiry;
+    }
+
+    @Override
+    public String getContentHash() {
+        return object.getMetadata().get(S3AttachmentStore.METADATA_SHA256);
+    }
+
+    @Override
+    public boolean isDirectDownload() {
+        return directDownloadExpiry != null;
+    }
+
+    @Override
+    public URI getDirectDownloadUri(String contentDisposition, String contentType, String cacheControl) {
+        Map<String, String> responseParameters = new HashMap<>();
+        responseParameters.put("response-content-disposition", contentDisposition);
+        if (contentType != null) {
+            responseParameters.put("response-content-type", contentType);
+        }
+        if (cacheControl != null) {
+            responseParameters.put("response-cache-control", cacheControl);
+        }
+        long window = Math.max(1, directDownloadExpiry.toSeconds() / 2);
+        Instant signed = Instant.ofEpochSecond(Instant.now().getEpochSecond() / window * window);
+        return client.presignGet(object.getKey(), responseParameters, directDownloadExpiry, signed);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return client.getObject(object.getKey());
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return object.getSize();
+    }
+
+    @Override
+    public long lastModified() throws IOException {
+        if (object.getLastModified() == null) {
+            throw new IOException("Last modification time of " + object.getKey() + " not known");
+        }
+        return object.getLastModified().toEpochMilli();
+    }
+
+    @Override
+    public String getDescription() {
+        return "Object " + object.getKey();
+    }
+}
@@ -0,0 +1,210 @@
+package org.phoebus.olog;
+
+import org.phoebus.olog.entity.Attachment;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link AttachmentStore} keeping attachments in a bucket of an S3 compatible object store, e.g. MinIO. Each
+ * attachment is an object named <code>attachments/&lt;id&gt;</code>, holding the content, with the file name,
+ * description and SHA-256 hash as user metadata. Content is not deduplicated: the object store offers no way to
+ * safely share content between attachments deleted concurrently by several service instances.
+ * <p>
+ * Content is spooled to a temporary file while its hash is computed and its type detected, then uploaded in a
+ * single request that the object store verifies against the hash.
+ * <p>
+ * With <code>attachment.store.s3.direct.download</code>, attachment downloads are redirected to short-lived
+ * presigned URLs of the objects (see {@link S3AttachmentResource}): the service still decides who may download
+ * an attachment, but the content goes straight from the object store to the client.
+ */
+@Component(S3AttachmentStore.NAME + AttachmentStore.BEAN_NAME_SUFFIX)
+@Lazy
+public class S3AttachmentStore implements AttachmentStore {
+
+    /**
+     * Name of this store in <code>attachment.store</code>.
+     */
+    public static final String NAME = "s3";
+    /**
+     * Names of the user metadata of an object.
+     */
+    public static final String METADATA_FILENAME = "filename";
+    public static final String METADATA_DESCRIPTION = "description";
+    public static final String METADATA_SHA256 = "sha256";
+
+    private static final String KEY_PREFIX = "attachments/";
+    private static final Logger logger = Logger.getLogger(S3AttachmentStore.class.getName());
+
+    @Value("${attachment.store.s3.endpoint:http://localhost:9000}")
+    private String endpoint;
+    @Value("${attachment.store.s3.region:us-east-1}")
+    private String region;
+    @Value("${attachment.store.s3.bucket:olog-attachments}")
+    private String bucket;
+    @Value("${attachment.store.s3.access.key:}")
+    private String accessKey;
+    @Value("${attachment.store.s3.secret.key:}")
+    private String secretKey;
+    @Value("${attachment.store.s3.path.style:true}")
+    private boolean pathStyle;
+    @Value("${attachment.store.s3.timeout:30s}")
+    private Duration timeout;
+    @Value("${attachment.store.s3.direct.download:true}")
+    private boolean directDownload;
+    @Value("${attachment.store.s3.direct.download.expiry:5m}")
+    private Duration directDownloadExpiry;
+
+    private ObjectStoreClient client;
+
+    public S3AttachmentStore() {
+    }
+
+    S3AttachmentStore(ObjectStoreClient client, Duration directDownloadExpiry) {
+        this.client = client;
+        this.directDownload = directDownloadExpiry != null;
+        this.directDownloadExpiry = directDownloadExpiry;
+    }
+
+    @PostConstruct
+    public void init() {
+        client = new ObjectStoreClient(URI.create(endpoint), region, bucket, accessKey, secretKey, pathStyle, timeout);
+        try {
+            client.createBucketIfMissing(region);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to access or create bucket " + bucket + " at " + endpoint, e);
+        }
+        logger.log(Level.INFO, "Storing attachments in bucket " + bucket + " at " + endpoint);
+    }
+
+    @Override
+    public Attachment save(Attachment entity) {
+        String id = entity.getId() != null && !entity.getId().isEmpty() ? entity.getId() : UUID.randomUUID().toString();
+        Path tmpContent = null;
+        try {
+            if (client.headObject(key(id)).isPresent()) {
+                logger.log(Level.WARNING, String.format("Unable to persist attachment %s, id %s exists", entity.getFilename(), id));
+                return null;
+            }
+            tmpContent = Files.createTempFile("olog-attachment", null);
+            String contentHash;
+            try (InputStream content = new BufferedInputStream(entity.getAttachment().getInputStream(), ContentTypeResolver.DETECTION_LENGTH)) {
+                entity.setContentType(ContentTypeResolver.detectContentType(content, entity.getFilename()));
+                DigestInputStream inputStream = new DigestInputStream(content, MessageDigest.getInstance("SHA-256"));
+                Files.copy(inputStream, tmpContent, StandardCopyOption.REPLACE_EXISTING);
+                contentHash = AttachmentStore.toHex(inputStream.getMessageDigest().digest());
+            }
+            Map<String, String> metadata = new HashMap<>();
+            metadata.put(METADATA_SHA256, contentHash);
+            if (entity.getFilename() != null) {
+                metadata.put(METADATA_FILENAME, entity.getFilename());
+            }
+            if (entity.getFileMetadataDescription() != null) {
+                metadata.put(METADATA_DESCRIPTION, entity.getFileMetadataDescription());
+            }
+            if (!client.putObjectIfAbsent(key(id), tmpContent, contentHash, entity.getContentType(), metadata)) {
+                logger.log(Level.WARNING, String.format("Unable to persist attachment %s, id %s exists", entity.getFilename(), id));
+                return null;
+            }
+            entity.setId(id);
+            return entity;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            logger.log(Level.WARNING, String.format("Unable to persist attachment %s", entity.getFilename()), e);
+            return null;
+        } finally {
+            if (tmpContent != null) {
+                try {
+                    Files.deleteIfExists(tmpContent);
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Unable to delete " + tmpContent, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Optional<Attachment> findById(String id) {
+        Optional<ObjectStoreClient.ObjectInfo> object;
+        try {
+            object = client.headObject(key(id));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to find attachment " + id, e);
+            return Optional.empty();
+        }
+        return object.map(found -> {
+            Attachment attachment = new Attachment(id,
+                    new S3AttachmentResource(client, found, directDownload ? directDownloadExpiry : null),
+                    found.getMetadata().get(METADATA_FILENAME), found.getMetadata().get(METADATA_DESCRIPTION));
+            attachment.setContentType(found.getContentType());
+            return attachment;
+        });
+    }
+
+    @Override
+    public void deleteById(String id) {
+        try {
+            client.deleteObject(key(id));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to delete attachment " + id, e);
+        }
+    }
+
+    @Override
+    public void forEachId(Consumer<String> consumer) {
+        try {
+            client.listObjects(KEY_PREFIX, object -> consumer.accept(id(object.getKey())));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void forEachIdStoredBefore(Instant storedBefore, BiConsumer<String, Long> consumer) {
+        try {
+            client.listObjects(KEY_PREFIX, object -> {
+                if (object.getLastModified().isBefore(storedBefore)) {
+                    consumer.accept(id(object.getKey()), object.getSize());
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return The key of the object holding an attachment. The id is encoded such that ids holding e.g.
+     * <code>../</code> remain below the prefix.
+     */
+    static String key(String id) {
+        return KEY_PREFIX + SigV4Signer.encode(id, false);
+    }
+
+    static String id(String key) {
+        return URLDecoder.decode(key.substring(KEY_PREFIX.length()), StandardCharsets.UTF_8);
+    }
+}
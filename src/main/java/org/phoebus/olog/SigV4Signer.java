@@ -0,0 +1,189 @@
+package org.phoebus.olog;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Signs requests to an S3 compatible object store with AWS Signature Version 4, either with an
+ * <code>Authorization</code> header or as a presigned URL (query string authentication).
+ * <p>
+ * Paths and query parameters are passed unencoded, they are encoded as required by the signature, see
+ * {@link #encodePath(String)} and {@link #encodeQuery(Map)}.
+ */
+public class SigV4Signer {
+
+    static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    /**
+     * Payload hash of presigned URLs, and of requests whose payload is not signed.
+     */
+    public static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    /**
+     * Hash of an empty payload.
+     */
+    public static final String EMPTY_PAYLOAD = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    private final String accessKey;
+    private final String secretKey;
+    private final String region;
+    private final String service;
+
+    public SigV4Signer(String accessKey, String secretKey, String region, String service) {
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.region = region;
+        this.service = service;
+    }
+
+    /**
+     * Signs a request with an <code>Authorization</code> header.
+     *
+     * @param method      The HTTP method
+     * @param host        The <code>Host</code> header, i.e. host name and non-default port
+     * @param path        The unencoded path
+     * @param query       The unencoded query parameters
+     * @param headers     Headers to sign, other than <code>Host</code>
+     * @param payloadHash The hex encoded SHA-256 hash of the payload, or {@link #UNSIGNED_PAYLOAD}
+     * @param time        The time of the request
+     * @return The headers to send with the request: the signed headers except <code>Host</code>, plus
+     * <code>x-amz-date</code>, <code>x-amz-content-sha256</code> and <code>Authorization</code>.
+     */
+    public Map<String, String> sign(String method, String host, String path, Map<String, String> query,
+                                    Map<String, String> headers, String payloadHash, Instant time) {
+        Map<String, String> signedHeaders = new TreeMap<>();
+        headers.forEach((name, value) -> signedHeaders.put(name.toLowerCase(), value.strip()));
+        signedHeaders.put("host", host);
+        signedHeaders.put("x-amz-content-sha256", payloadHash);
+        signedHeaders.put("x-amz-date", DATE_TIME.format(time));
+        String signedHeaderNames = String.join(";", signedHeaders.keySet());
+        String canonicalRequest = canonicalRequest(method, path, query, signedHeaders, payloadHash);
+
+        Map<String, String> requestHeaders = new TreeMap<>(signedHeaders);
+        requestHeaders.remove("host");
+        requestHeaders.put("Authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope(time) +
+                ", SignedHeaders=" + signedHeaderNames + ", Signature=" + signature(canonicalRequest, time));
+        return requestHeaders;
+    }
+
+    /**
+     * Presigns a request, typically a GET that a client sends without credentials of its own.
+     *
+     * @param method The HTTP method
+     * @param host   The <code>Host</code> header, i.e. host name and non-default port
+     * @param path   The unencoded path
+     * @param query  Additional unencoded query parameters, e.g. <code>response-content-disposition</code>
+     * @param expiry Time for which the URL is valid, at most 7 days
+     * @param time   The time of signing, i.e. the start of the validity
+     * @return The encoded query string, holding the signature.
+     */
+    public String presign(String method, String host, String path, Map<String, String> query, Duration expiry, Instant time) {
+        Map<String, String> signedQuery = new TreeMap<>(query);
+        signedQuery.put("X-Amz-Algorithm", ALGORITHM);
+        signedQuery.put("X-Amz-Credential", accessKey + "/" + scope(time));
+        signedQuery.put("X-Amz-Date", DATE_TIME.format(time));
+        signedQuery.put("X-Amz-Expires", Long.toString(expiry.toSeconds()));
+        signedQuery.put("X-Amz-SignedHeaders", "host");
+        String canonicalRequest = canonicalRequest(method, path, signedQuery, Map.of("host", host), UNSIGNED_PAYLOAD);
+        return encodeQuery(signedQuery) + "&X-Amz-Signature=" + signature(canonicalRequest, time);
+    }
+
+    private static String canonicalRequest(String method, String path, Map<String, String> query,
+                                           Map<String, String> signedHeaders, String payloadHash) {
+        return method + "\n" +
+                encodePath(path) + "\n" +
+                encodeQuery(query) + "\n" +
+                signedHeaders.entrySet().stream().map(header -> header.getKey() + ":" + header.getValue() + "\n")
+                        .collect(Collectors.joining()) + "\n" +
+                String.join(";", signedHeaders.keySet()) + "\n" +
+                payloadHash;
+    }
+
+    private String scope(Instant time) {
+        return DATE.format(time) + "/" + region + "/" + service + "/aws4_request";
+    }
+
+    private String signature(String canonicalRequest, Instant time) {
+        String stringToSign = ALGORITHM + "\n" +
+                DATE_TIME.format(time) + "\n" +
+                scope(time) + "\n" +
+                sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8));
+        byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), DATE.format(time));
+        key = hmac(key, region);
+        key = hmac(key, service);
+        key = hmac(key, "aws4_request");
+        return AttachmentStore.toHex(hmac(key, stringToSign));
+    }
+
+    /**
+     * @return The hex encoded SHA-256 hash.
+     */
+    static String sha256(byte[] content) {
+        try {
+            return AttachmentStore.toHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encodes all characters except the unreserved characters of RFC 3986, as required by the signature.
+     *
+     * @param value        The value to encode
+     * @param keepSlashes  Whether slashes are kept, as in paths
+     * @return The encoded value
+     */
+    static String encode(String value, boolean keepSlashes) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+                    c == '-' || c == '_' || c == '.' || c == '~' || (keepSlashes && c == '/')) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit((c >> 4) & 0xF, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * @param path The unencoded path
+     * @return The encoded path, as used in the request URL and in the signature.
+     */
+    public static String encodePath(String path) {
+        return encode(path, true);
+    }
+
+    /**
+     * @param query The unencoded query parameters
+     * @return The encoded query string, sorted by parameter name as required by the signature.
+     */
+    public static String encodeQuery(Map<String, String> query) {
+        return new TreeMap<>(query).entrySet().stream()
+                .map(parameter -> encode(parameter.getKey(), false) + "=" + encode(parameter.getValue(), false))
+                .collect(Collectors.joining("&"));
+    }
+}
@@ -0,0 +1,151 @@
+package org.phoebus.olog;
+
+import org.apache.tomcat.util.http.fileupload.FileItemIterator;
+import org.apache.tomcat.util.http.fileupload.FileItemStream;
+import org.apache.tomcat.util.http.fileupload.servlet.ServletFileUpload;
+import org.apache.tomcat.util.http.fileupload.servlet.ServletRequestContext;
+import org.apache.tomcat.util.http.fileupload.util.LimitedInputStream;
+import org.apache.tomcat.util.http.fileupload.util.Streams;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses a <code>multipart/form-data</code> request part by part while it is being received. Unlike
+ * {@link org.springframework.web.multipart.MultipartFile}s, which are spooled to memory or temporary files before
+ * the controller is called, file parts are handed over as a stream reading straight from the request body.
+ * Reading slowly (e.g. while writing to the database) slows down the client, nothing is buffered.
+ * <p>
+ * Requests are only parsed this way on paths excluded from multipart resolution, see
+ * {@link StreamingMultipartResolver}. As parts are processed in order, form fields describing a file must be
+ * sent before the file part.
+ */
+public class StreamingMultipartParser {
+
+    /**
+     * Receives the parts of a request, in order.
+     */
+    public interface PartHandler {
+        /**
+         * @param name  The name of the part
+         * @param value The value of the part, decoded as UTF-8.
+         */
+        void formField(String name, String value);
+
+        /**
+         * @param name        The name of the part
+         * @param filename    The file name of the part as set by client, may be <code>null</code>.
+         * @param contentType The content type of the part as set by client, may be <code>null</code>.
+         * @param content     The content of the file. It is only valid until this method returns.
+         * @throws IOException If the content cannot be processed.
+         */
+        void file(String name, String filename, String contentType, InputStream content) throws IOException;
+    }
+
+    private final long maxFileSize;
+    private final long maxRequestSize;
+
+    /**
+     * @param maxFileSize    Maximum size of a file part, or -1 for no limit.
+     * @param maxRequestSize Maximum size of the request, or -1 for no limit.
+     */
+    public StreamingMultipartParser(long maxFileSize, long maxRequestSize) {
+        this.maxFileSize = maxFileSize;
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    /**
+     * @param request A <code>multipart/form-data</code> request
+     * @param handler Receives the parts
+     * @throws ResponseStatusException with HTTP status 413 if a size limit is exceeded, 400 if the request is not
+     *                                 a valid multipart request.
+     */
+    public void parse(HttpServletRequest request, PartHandler handler) {
+        if (maxRequestSize >= 0 && request.getContentLengthLong() > maxRequestSize) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Request exceeds maximum size of " + maxRequestSize + " bytes");
+        }
+        long consumed = 0;
+        try {
+            FileItemIterator items = new ServletFileUpload().getItemIterator(new ServletRequestContext(request));
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                try (CountingInputStream content = new CountingInputStream(item.openStream(), limit(consumed))) {
+                    try {
+                        if (item.isFormField()) {
+                            handler.formField(item.getFieldName(), Streams.asString(content, StandardCharsets.UTF_8.name()));
+                        } else {
+                            handler.file(item.getFieldName(), item.getName(), item.getContentType(), content);
+                        }
+                    } finally {
+                        content.checkLimit();
+                    }
+                    consumed += content.getCount();
+                }
+            }
+        } catch (IOException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid multipart request", e);
+        }
+    }
+
+    /**
+     * @return Number of bytes the next part may contain.
+     */
+    private long limit(long consumed) {
+        long remaining = maxRequestSize < 0 ? Long.MAX_VALUE : maxRequestSize - consumed;
+        return maxFileSize < 0 ? remaining : Math.min(maxFileSize, remaining);
+    }
+
+    /**
+     * Counts bytes read and fails when the limit is exceeded. Consumers of the content may swallow the
+     * {@link IOException}, so the outcome is also recorded for {@link #checkLimit()}.
+     */
+    private static class CountingInputStream extends LimitedInputStream {
+
+        private final long limit;
+        private long count;
+        private boolean exceeded;
+
+        CountingInputStream(InputStream inputStream, long limit) {
+            super(inputStream, limit);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        protected void raiseError(long sizeMax, long count) throws IOException {
+            exceeded = true;
+            throw new IOException("Part exceeds maximum size of " + sizeMax + " bytes");
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        void checkLimit() {
+            if (exceeded) {
+                throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Request part exceeds maximum size of " + limit + " bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.phoebus.olog;
+
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.List;
+
+/**
+ * Resolves multipart requests as {@link StandardServletMultipartResolver}, except for requests to endpoints
+ * parsing the request body themselves with {@link StreamingMultipartParser}. Resolving would spool the
+ * whole body to memory or temporary files before the endpoint is called.
+ */
+public class StreamingMultipartResolver extends StandardServletMultipartResolver {
+
+    /**
+     * Request path prefixes (excluding context path) of streaming endpoints.
+     */
+    static final List<String> STREAMING_PATHS = List.of(
+            "/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/attachments-stream/");
+
+    @Override
+    public boolean isMultipart(HttpServletRequest request) {
+        return !isStreaming(request) && super.isMultipart(request);
+    }
+
+    static boolean isStreaming(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return STREAMING_PATHS.stream().anyMatch(path::startsWith);
+    }
+}
@@ -19,9 +19,14 @@
 package org.phoebus.olog;
 
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.ResourceHttpMessageConverter;
 import org.springframework.web.method.support.HandlerMethodArgumentResolver;
+import org.springframework.web.multipart.MultipartResolver;
+import org.springframework.web.servlet.DispatcherServlet;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 import org.springframework.web.servlet.mvc.method.annotation.PrincipalMethodArgumentResolver;
@@ -47,6 +52,27 @@ public class WebConfig implements WebMvcConfigurer {
                 .allowedOrigins(corsAllowedOrigins);
     }
 
+    /**
+     * Replaces the default {@link MultipartResolver} such that streaming upload endpoints receive the
+     * unparsed request.
+     *
+     * @return A {@link StreamingMultipartResolver}
+     */
+    @Bean(name = DispatcherServlet.MULTIPART_RESOLVER_BEAN_NAME)
+    public MultipartResolver multipartResolver() {
+        return new StreamingMultipartResolver();
+    }
+
+    /**
+     * Replaces the {@link ResourceHttpMessageConverter} such that attachments stored in files are
+     * downloaded without copying them through the JVM heap.
+     */
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        converters.replaceAll(converter -> converter.getClass() == ResourceHttpMessageConverter.class ?
+                new FileChannelResourceHttpMessageConverter() : converter);
+    }
+
     @Override
     public void addArgumentResolvers(List<HandlerMethodArgumentResolver> resolvers){
         resolvers.add(new PrincipalMethodArgumentResolver());
@@ -3,6 +3,7 @@ package org.phoebus.olog;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import org.phoebus.olog.security.CachingSessionRepository;
 import org.phoebus.olog.security.SessionFilter;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.h2.H2ConsoleProperties;
@@ -35,6 +36,9 @@ import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
 import org.springframework.security.ldap.userdetails.DefaultLdapAuthoritiesPopulator;
 import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
+import org.springframework.security.web.util.matcher.AndRequestMatcher;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.NegatedRequestMatcher;
 import org.springframework.session.FindByIndexNameSessionRepository;
 import org.springframework.session.jdbc.JdbcIndexedSessionRepository;
 import org.springframework.transaction.support.TransactionOperations;
@@ -42,6 +46,7 @@ import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.sql.DataSource;
 import java.sql.Driver;
+import java.time.Duration;
 
 @EnableWebSecurity
 @Configuration
@@ -53,6 +58,12 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     @Value("${spring.datasource.url:jdbc:h2:mem:testdb;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=TRUE}")
     private String h2Url;
 
+    @Value("${session.cache.ttl:10s}")
+    private Duration sessionCacheTtl;
+
+    @Value("${session.last.access.write.interval:60s}")
+    private Duration sessionLastAccessWriteInterval;
+
     @Override
     protected void configure(HttpSecurity http) throws Exception {
         http.csrf().disable();
@@ -64,7 +75,9 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     @Override
     public void configure(WebSecurity web) throws Exception {
         // The below lists exceptions for authentication.
-        web.ignoring().antMatchers(HttpMethod.GET, "/**");
+        // Uploads in progress are only visible to authenticated users
+        web.ignoring().requestMatchers(new AndRequestMatcher(new AntPathRequestMatcher("/**", HttpMethod.GET.name()),
+                new NegatedRequestMatcher(new AntPathRequestMatcher("/**/logs/*/uploads/**"))));
         web.ignoring().antMatchers(HttpMethod.POST, "/**/login*");
         web.ignoring().antMatchers(HttpMethod.POST, "/**/logout");
         web.ignoring().antMatchers(HttpMethod.GET, "/**/user");
@@ -214,7 +227,8 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
 
     /**
      * A session repository managing the sessions created when user logs in though the
-     * dedicated endpoint.
+     * dedicated endpoint. Sessions are cached in memory, and their last access time is written in batches,
+     * see {@link CachingSessionRepository}.
      *
      * @return a {@link FindByIndexNameSessionRepository} to manage sessions.
      */
@@ -225,7 +239,8 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
         TransactionOperations transactionOperations =
                 new TransactionTemplate(new DataSourceTransactionManager(dataSource()));
 
-        return new JdbcIndexedSessionRepository(jdbcOperations, transactionOperations);
+        return new CachingSessionRepository(new JdbcIndexedSessionRepository(jdbcOperations, transactionOperations),
+                sessionCacheTtl, sessionLastAccessWriteInterval);
     }
 
     @Bean
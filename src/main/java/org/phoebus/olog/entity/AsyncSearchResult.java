@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog.entity;
+
+/**
+ * State of a search submitted for asynchronous execution. Clients poll using the {@link #id} until
+ * {@link #running} is <code>false</code>.
+ */
+public class AsyncSearchResult {
+
+    /**
+     * Identifies the search when polling for results. May be <code>null</code> if the search completed
+     * before the submit request returned.
+     */
+    private String id;
+
+    /**
+     * <code>true</code> while the search is still executing.
+     */
+    private boolean running;
+
+    /**
+     * <code>true</code> if {@link #searchResult} does not yet cover all shards, or if the search failed on some shards.
+     */
+    private boolean partial;
+
+    /**
+     * Epoch millis after which the search and its results are discarded.
+     */
+    private long expirationTime;
+
+    /**
+     * The (partial) result of the search.
+     */
+    private SearchResult searchResult;
+
+    public AsyncSearchResult() {
+
+    }
+
+    public AsyncSearchResult(String id, boolean running, boolean partial, long expirationTime, SearchResult searchResult) {
+        this.id = id;
+        this.running = running;
+        this.partial = partial;
+        this.expirationTime = expirationTime;
+        this.searchResult = searchResult;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void setRunning(boolean running) {
+        this.running = running;
+    }
+
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    public void setExpirationTime(long expirationTime) {
+        this.expirationTime = expirationTime;
+    }
+
+    public SearchResult getSearchResult() {
+        return searchResult;
+    }
+
+    public void setSearchResult(SearchResult searchResult) {
+        this.searchResult = searchResult;
+    }
+}
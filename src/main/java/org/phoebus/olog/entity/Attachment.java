@@ -21,6 +21,7 @@ public class Attachment
     private String id;
     private String filename;
     private String fileMetadataDescription;
+    private String contentType;
     @JsonIgnore
     private InputStreamSource attachment;
 
@@ -139,4 +140,24 @@ public class Attachment
     {
         this.fileMetadataDescription = fileMetadataDescription;
     }
+
+    /**
+     * Getter for the content type detected from the content when the attachment was stored
+     *
+     * @return the content type, or <code>null</code> for attachments stored before detection was introduced
+     */
+    public String getContentType()
+    {
+        return contentType;
+    }
+
+    /**
+     * Setter for the content type
+     *
+     * @param contentType - the content type, e.g. image/png
+     */
+    public void setContentType(String contentType)
+    {
+        this.contentType = contentType;
+    }
 }
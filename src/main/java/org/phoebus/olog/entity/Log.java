@@ -11,9 +11,11 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.springframework.data.annotation.Id;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreType;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
@@ -31,6 +33,17 @@ public class Log implements Serializable
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Maximum length of a <code>flattenedProperties</code> entry, set as <code>ignore_above</code> in the log
+     * entry mapping such that entries fit the Lucene term size limit.
+     */
+    public static final int FLATTENED_PROPERTY_MAX_LENGTH = 8191;
+    /**
+     * Appended to <code>property.attribute</code> in place of <code>=value</code> when the resulting
+     * <code>flattenedProperties</code> entry would exceed {@link #FLATTENED_PROPERTY_MAX_LENGTH}.
+     */
+    public static final String FLATTENED_LONG_VALUE_SUFFIX = "#long";
+
     @Id
     private Long id;
 
@@ -63,6 +76,12 @@ public class Log implements Serializable
 
     private Set<Attachment> attachments = new HashSet<Attachment>();
 
+    /**
+     * Identifies the log entry group (reply thread) this entry belongs to, if any. The first entry of a reply
+     * thread is not updated when replied to, the group id of such a thread is the id of its first entry.
+     */
+    private String groupId;
+
     private Log()
     {
     }
@@ -335,6 +354,92 @@ public class Log implements Serializable
         this.attachments = attachments;
     }
 
+    /**
+     * Names of the log entry tags, indexed as a plain keyword array such that tag searches do not need
+     * a nested query. Derived from {@link #getTags()}, values sent by clients are ignored. Only written to the
+     * Elasticsearch document, not part of the REST API.
+     *
+     * @return the tag names
+     */
+    @JsonIgnore
+    public List<String> getTagNames()
+    {
+        if (tags == null)
+        {
+            return new ArrayList<>();
+        }
+        return tags.stream().map(Tag::getName).collect(Collectors.toList());
+    }
+
+    /**
+     * Names of the log entry logbooks, see {@link #getTagNames()}.
+     *
+     * @return the logbook names
+     */
+    @JsonIgnore
+    public List<String> getLogbookNames()
+    {
+        if (logbooks == null)
+        {
+            return new ArrayList<>();
+        }
+        return logbooks.stream().map(Logbook::getName).collect(Collectors.toList());
+    }
+
+    /**
+     * The log entry properties flattened to a plain keyword array, such that property searches do not need
+     * a doubly nested query. Each property contributes its name, and each of its attributes the
+     * values <code>property.attribute</code> and <code>property.attribute=value</code>. Values too long to be
+     * indexed are replaced by the <code>property.attribute#long</code> marker, see {@link #FLATTENED_LONG_VALUE_SUFFIX}.
+     * Derived from {@link #getProperties()}, values sent by clients are ignored.
+     *
+     * @return the flattened properties
+     */
+    @JsonIgnore
+    public List<String> getFlattenedProperties()
+    {
+        List<String> flattened = new ArrayList<>();
+        if (properties == null)
+        {
+            return flattened;
+        }
+        for (Property property : properties)
+        {
+            flattened.add(property.getName());
+            if (property.getAttributes() == null)
+            {
+                continue;
+            }
+            for (Attribute attribute : property.getAttributes())
+            {
+                String path = property.getName() + "." + attribute.getName();
+                flattened.add(path);
+                if (attribute.getValue() != null)
+                {
+                    String entry = path + "=" + attribute.getValue();
+                    flattened.add(entry.length() > FLATTENED_PROPERTY_MAX_LENGTH ? path + FLATTENED_LONG_VALUE_SUFFIX : entry);
+                }
+            }
+        }
+        return flattened;
+    }
+
+    /**
+     * @return the id of the log entry group, or <code>null</code>
+     */
+    public String getGroupId()
+    {
+        return groupId;
+    }
+
+    /**
+     * @param groupId - the id of the log entry group
+     */
+    public void setGroupId(String groupId)
+    {
+        this.groupId = groupId;
+    }
+
     /**
      * @return the serialversionuid
      */
@@ -400,6 +505,8 @@ public class Log implements Serializable
         private Set<Tag> tags = new HashSet<Tag>();
         private Set<Attachment> attachments = new HashSet<Attachment>();
 
+        private String groupId;
+
         public LogBuilder()
         {
         }
@@ -434,6 +541,8 @@ public class Log implements Serializable
             this.tags = log.getTags();
 
             this.attachments = log.getAttachments();
+
+            this.groupId = log.getGroupId();
         }
 
         public LogBuilder(String source)
@@ -607,6 +716,11 @@ public class Log implements Serializable
             return this;
         }
 
+        public LogBuilder groupId(String groupId){
+            this.groupId = groupId;
+            return this;
+        }
+
         /**
          * Create the log entry
          * 
@@ -634,6 +748,7 @@ public class Log implements Serializable
             log.setTags(tags);
             log.setProperties(properties);
             log.setAttachments(attachments);
+            log.setGroupId(groupId);
             return log;
         }
     }
@@ -51,7 +51,35 @@ public class LogEntryGroupHelper {
      * one with the title of the original entry.
      */
     public static Property createNewLogEntryProperty(){
-        Attribute idAttribute = new Attribute(ATTRIBUTE_ID, UUID.randomUUID().toString());
+        return createLogEntryGroupProperty(UUID.randomUUID().toString());
+    }
+
+    /**
+     * @param groupId A log entry group id
+     * @return A {@link Property} containing an {@link Attribute} with the log entry group id.
+     */
+    public static Property createLogEntryGroupProperty(String groupId){
+        Attribute idAttribute = new Attribute(ATTRIBUTE_ID, groupId);
         return new Property(LOG_ENTRY_GROUP, Set.of(idAttribute));
     }
+
+    /**
+     * Determines the log entry group of a log entry, either from the <code>groupId</code> field or,
+     * for entries grouped before that field was introduced, from the log entry group property.
+     * @param logEntry A log entry
+     * @return The log entry group id, or <code>null</code> if the log entry is not explicitly contained in a group.
+     */
+    public static String getGroupId(Log logEntry){
+        if(logEntry.getGroupId() != null){
+            return logEntry.getGroupId();
+        }
+        if(logEntry.getProperties() == null){
+            return null;
+        }
+        Property property = getLogEntryGroupProperty(logEntry);
+        if(property == null){
+            return null;
+        }
+        return property.getAttribute(ATTRIBUTE_ID).stream().map(Attribute::getValue).findFirst().orElse(null);
+    }
 }
@@ -0,0 +1,110 @@
+package org.phoebus.olog.entity;
+
+/**
+ * State of a resumable attachment upload. Clients append content at {@link #offset}, which after an interrupted
+ * transfer tells where to resume.
+ */
+public class UploadSession {
+
+    /**
+     * Identifies the upload in the URLs used to append content and to complete the upload.
+     */
+    private String id;
+
+    /**
+     * Id of the log entry the attachment is added to when the upload completes.
+     */
+    private String logId;
+
+    private String filename;
+
+    private String fileMetadataDescription;
+
+    /**
+     * Id requested for the attachment, may be <code>null</code>.
+     */
+    private String attachmentId;
+
+    /**
+     * Total length announced by the client, may be <code>null</code> if not known in advance.
+     */
+    private Long length;
+
+    /**
+     * Number of bytes received, i.e. the offset at which the next content must be appended.
+     */
+    private long offset;
+
+    /**
+     * Epoch millis after which the upload is discarded unless more content is received.
+     */
+    private long expirationTime;
+
+    public UploadSession() {
+
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getLogId() {
+        return logId;
+    }
+
+    public void setLogId(String logId) {
+        this.logId = logId;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    public String getFileMetadataDescription() {
+        return fileMetadataDescription;
+    }
+
+    public void setFileMetadataDescription(String fileMetadataDescription) {
+        this.fileMetadataDescription = fileMetadataDescription;
+    }
+
+    public String getAttachmentId() {
+        return attachmentId;
+    }
+
+    public void setAttachmentId(String attachmentId) {
+        this.attachmentId = attachmentId;
+    }
+
+    public Long getLength() {
+        return length;
+    }
+
+    public void setLength(Long length) {
+        this.length = length;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    public void setExpirationTime(long expirationTime) {
+        this.expirationTime = expirationTime;
+    }
+}
@@ -0,0 +1,171 @@
+package org.phoebus.olog.security;
+
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.Session;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link FindByIndexNameSessionRepository} keeping the sessions found in the underlying (JDBC) repository in
+ * memory for a short time, such that authenticating a request with a session cookie is a map lookup rather
+ * than a database transaction.
+ * <p>
+ * Last access times are recorded in memory by {@link #touch(Session)} and persisted by a background flusher:
+ * every write interval, the sessions accessed since the previous run are saved in one batch, hence each session
+ * is written at most once per interval. The write interval should be well below the session timeout, as the
+ * underlying repository expires sessions based on the persisted last access time.
+ * <p>
+ * Sessions deleted or saved through this repository are evicted or refreshed immediately. Sessions deleted by
+ * another service instance sharing the database remain usable here for at most the time to live of the cache.
+ */
+public class CachingSessionRepository implements FindByIndexNameSessionRepository<Session> {
+
+    private static final Logger logger = Logger.getLogger(CachingSessionRepository.class.getName());
+
+    private static class CachedSession {
+        private final Session session;
+        private final Instant cachedAt = Instant.now();
+
+        private CachedSession(Session session) {
+            this.session = session;
+        }
+    }
+
+    private final FindByIndexNameSessionRepository<Session> delegate;
+    private final Duration timeToLive;
+    private final Map<String, CachedSession> cache = new ConcurrentHashMap<>();
+    private final Map<String, Session> accessed = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * @param delegate      The repository holding the sessions
+     * @param timeToLive    Time for which a session found in the repository is used without looking it up again.
+     *                      Zero disables the cache.
+     * @param writeInterval Interval at which last access times are persisted. Zero persists them on each access.
+     */
+    @SuppressWarnings("unchecked")
+    public CachingSessionRepository(FindByIndexNameSessionRepository<? extends Session> delegate,
+                                    Duration timeToLive, Duration writeInterval) {
+        this.delegate = (FindByIndexNameSessionRepository<Session>) delegate;
+        this.timeToLive = timeToLive;
+        if (writeInterval.isZero() || writeInterval.isNegative()) {
+            flusher = null;
+        } else {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "session-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, writeInterval.toMillis(), writeInterval.toMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public Session createSession() {
+        return delegate.createSession();
+    }
+
+    @Override
+    public void save(Session session) {
+        accessed.remove(session.getId());
+        delegate.save(session);
+        cache(session);
+    }
+
+    @Override
+    public Session findById(String id) {
+        CachedSession cached = cache.get(id);
+        if (cached != null && cached.cachedAt.plus(timeToLive).isAfter(Instant.now())) {
+            if (!cached.session.isExpired()) {
+                return cached.session;
+            }
+            cache.remove(id, cached);
+        }
+        Session session = delegate.findById(id);
+        if (session == null) {
+            cache.remove(id);
+            accessed.remove(id);
+        } else {
+            cache(session);
+        }
+        return session;
+    }
+
+    @Override
+    public void deleteById(String id) {
+        cache.remove(id);
+        accessed.remove(id);
+        delegate.deleteById(id);
+    }
+
+    @Override
+    public Map<String, Session> findByIndexNameAndIndexValue(String indexName, String indexValue) {
+        return delegate.findByIndexNameAndIndexValue(indexName, indexValue);
+    }
+
+    /**
+     * Sets the last access time of a session to now. The session is persisted by the next run of the flusher,
+     * or immediately if there is no flusher.
+     *
+     * @param session A session returned by {@link #findById(String)}
+     */
+    public void touch(Session session) {
+        session.setLastAccessedTime(Instant.now());
+        if (flusher == null) {
+            save(session);
+        } else {
+            accessed.put(session.getId(), session);
+        }
+    }
+
+    /**
+     * Persists the last access time of the sessions accessed since the previous flush, and evicts stale
+     * entries from the cache.
+     */
+    void flush() {
+        int count = 0;
+        Iterator<Map.Entry<String, Session>> iterator = accessed.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next().getValue();
+            iterator.remove();
+            try {
+                delegate.save(session);
+                count++;
+            } catch (RuntimeException e) {
+                // E.g. the session was deleted meanwhile
+                logger.log(Level.FINE, "Unable to persist last access time of a session", e);
+            }
+        }
+        if (count > 0) {
+            logger.log(Level.FINE, "Persisted last access time of " + count + " sessions");
+        }
+        Instant now = Instant.now();
+        cache.values().removeIf(cached -> !cached.cachedAt.plus(timeToLive).isAfter(now));
+    }
+
+    /**
+     * Persists pending last access times and stops the flusher. Called by Spring when the context is closed.
+     */
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            flush();
+        }
+    }
+
+    private void cache(Session session) {
+        if (!timeToLive.isZero() && !timeToLive.isNegative()) {
+            cache.put(session.getId(), new CachedSession(session));
+        }
+    }
+}
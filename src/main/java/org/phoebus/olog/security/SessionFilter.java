@@ -74,7 +74,8 @@ public class SessionFilter extends GenericFilterBean {
      * <ol>
      *     <li>If the request contains a cookie named SESSION, the session repository is queried to check if
      *     a session associated with the cookie value exists and is not expired. A non-expired session will be
-     *     used to set the {@link Authentication} in the security context.</li>
+     *     used to set the {@link Authentication} in the security context. With a {@link CachingSessionRepository},
+     *     this is a lookup in memory, and the last access time of the session is persisted later.</li>
      *     <li>If there is no SESSION cookie, or if the session associated with such a cookie is expired,
      *     the request is checked for a Authorization header. If it exists, its decoded username and password values
      *     are provided to the {@link AuthenticationManager} authentication. A successful authentication will then return
@@ -148,8 +149,12 @@ public class SessionFilter extends GenericFilterBean {
                     continue;
                 }
                 // Update last access time, repository does not do it automatically.
-                session.setLastAccessedTime(Instant.now());
-                sessionRepository.save(session);
+                if (sessionRepository instanceof CachingSessionRepository) {
+                    ((CachingSessionRepository) sessionRepository).touch(session);
+                } else {
+                    session.setLastAccessedTime(Instant.now());
+                    sessionRepository.save(session);
+                }
                 List<String> roles = session.getAttribute(WebSecurityConfig.ROLES_ATTRIBUTE_NAME);
                 String userName = session.getAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME);
                 List<GrantedAuthority> grantedAuthorities =
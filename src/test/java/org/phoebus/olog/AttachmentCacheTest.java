@@ -0,0 +1,169 @@
+package org.phoebus.olog;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.phoebus.olog.entity.Attachment;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AttachmentCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AttachmentCache cache;
+
+    /**
+     * Content as found in a remote attachment store.
+     */
+    private static class StoredResource extends ByteArrayResource implements HashedResource {
+        private final String contentHash;
+
+        StoredResource(String content, String contentHash) {
+            super(content.getBytes(StandardCharsets.UTF_8));
+            this.contentHash = contentHash;
+        }
+
+        @Override
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        @Override
+        public long lastModified() {
+            return 1000L;
+        }
+    }
+
+    private static Attachment attachment(String content, String contentHash) {
+        return new Attachment("id-" + contentHash, new StoredResource(content, contentHash), "file.txt", "text/plain");
+    }
+
+    private static String download(Attachment attachment) throws Exception {
+        try (InputStream inputStream = attachment.getAttachment().getInputStream()) {
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Before
+    public void setup() {
+        cache = new AttachmentCache(folder.getRoot().getAbsolutePath(), DataSize.ofBytes(20), DataSize.ofBytes(10));
+        cache.init();
+    }
+
+    @Test
+    public void testReadThrough() throws Exception {
+        Attachment first = cache.readThrough(attachment("0123456789", "aa01"));
+        assertTrue(AttachmentCache.isCacheResource(first.getAttachment()));
+        assertEquals("0123456789", download(first));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(10, cache.getSize());
+
+        Attachment second = cache.readThrough(attachment("0123456789", "aa01"));
+        assertTrue(second.getAttachment() instanceof FileAttachmentResource);
+        assertEquals("0123456789", download(second));
+        assertEquals(1000L, ((FileAttachmentResource) second.getAttachment()).lastModified());
+        assertEquals("id-aa01", second.getId());
+        assertEquals(1, cache.getHits());
+        assertEquals(10, cache.getBytesSaved());
+    }
+
+    @Test
+    public void testPartialReadNotCached() throws Exception {
+        Attachment attachment = cache.readThrough(attachment("0123456789", "bb01"));
+        try (InputStream inputStream = attachment.getAttachment().getInputStream()) {
+            inputStream.skip(5);
+            inputStream.readAllBytes();
+        }
+        assertEquals(0, cache.getEntryCount());
+        assertFalse(cache.readThrough(attachment("0123456789", "bb01")).getAttachment() instanceof FileAttachmentResource);
+    }
+
+    @Test
+    public void testLargeFileNotCached() {
+        Attachment attachment = attachment("0123456789abc", "cc01");
+        assertSame(attachment, cache.readThrough(attachment));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        download(cache.readThrough(attachment("0123456789", "dd01")));
+        download(cache.readThrough(attachment("0123456789", "dd02")));
+        // Use dd01, dd02 is then least recently used
+        download(cache.readThrough(attachment("0123456789", "dd01")));
+        download(cache.readThrough(attachment("0123456789", "dd03")));
+
+        assertEquals(20, cache.getSize());
+        assertTrue(cache.readThrough(attachment("0123456789", "dd01")).getAttachment() instanceof FileAttachmentResource);
+        assertTrue(cache.readThrough(attachment("0123456789", "dd03")).getAttachment() instanceof FileAttachmentResource);
+        assertFalse(cache.readThrough(attachment("0123456789", "dd02")).getAttachment() instanceof FileAttachmentResource);
+
+        // Index is rebuilt on restart
+        AttachmentCache restarted = new AttachmentCache(folder.getRoot().getAbsolutePath(), DataSize.ofBytes(20), DataSize.ofBytes(10));
+        restarted.init();
+        assertEquals(2, restarted.getEntryCount());
+    }
+
+    @Test
+    public void testLeasedContentDeletedAfterLease() throws Exception {
+        download(cache.readThrough(attachment("0123456789", "ee01")));
+        download(cache.readThrough(attachment("0123456789", "ee02")));
+        // Looked up, e.g. by a response about to open the file
+        Attachment leased = cache.readThrough(attachment("0123456789", "ee01"));
+        download(cache.readThrough(attachment("0123456789", "ee02")));
+        download(cache.readThrough(attachment("0123456789", "ee03")));
+
+        // Evicted, but not deleted yet
+        assertEquals(20, cache.getSize());
+        assertFalse(cache.readThrough(attachment("0123456789", "ee01")).getAttachment() instanceof FileAttachmentResource);
+        assertEquals("0123456789", download(leased));
+
+        cache.leaseMillis = 0;
+        cache.readThrough(attachment("0123456789", "ee02"));
+        assertFalse(((FileAttachmentResource) leased.getAttachment()).exists());
+    }
+
+    @Test
+    public void testCompressedContent() throws Exception {
+        class CompressedStoredResource extends StoredResource implements CompressedResource {
+            CompressedStoredResource(String content, String contentHash) {
+                super(content, contentHash);
+            }
+
+            @Override
+            public String getContentEncoding() {
+                return CompressedResource.GZIP;
+            }
+
+            @Override
+            public InputStream getEncodedInputStream() {
+                return new ByteArrayInputStream("encoded".getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public long encodedLength() {
+                return 7;
+            }
+        }
+        Attachment attachment = cache.readThrough(new Attachment("id-ff01", new CompressedStoredResource("0123456789", "ff01"), "file.txt", "text/plain"));
+        assertTrue(AttachmentCache.isCacheResource(attachment.getAttachment()));
+        assertTrue(attachment.getAttachment() instanceof CompressedResource);
+        assertEquals(CompressedResource.GZIP, ((CompressedResource) attachment.getAttachment()).getContentEncoding());
+        assertEquals(7, ((CompressedResource) attachment.getAttachment()).encodedLength());
+
+        assertEquals("0123456789", download(attachment));
+        assertEquals(1, cache.getEntryCount());
+    }
+}
@@ -0,0 +1,54 @@
+package org.phoebus.olog;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AttachmentRenditionsTest {
+
+    @Test
+    public void testParseRenditions() {
+        Map<String, Integer> renditions = AttachmentRenditions.parseRenditions("thumb:128, preview:512");
+        assertEquals(List.of("thumb", "preview"), List.copyOf(renditions.keySet()));
+        assertEquals(128, (int) renditions.get("thumb"));
+        assertEquals(512, (int) renditions.get("preview"));
+
+        assertTrue(AttachmentRenditions.parseRenditions("").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidRenditions() {
+        AttachmentRenditions.parseRenditions("thumb");
+    }
+
+    @Test
+    public void testScale() {
+        BufferedImage scaled = AttachmentRenditions.scale(new BufferedImage(1000, 500, BufferedImage.TYPE_INT_RGB), 128);
+        assertEquals(128, scaled.getWidth());
+        assertEquals(64, scaled.getHeight());
+        assertFalse(scaled.getColorModel().hasAlpha());
+
+        scaled = AttachmentRenditions.scale(new BufferedImage(100, 400, BufferedImage.TYPE_INT_ARGB), 128);
+        assertEquals(32, scaled.getWidth());
+        assertEquals(128, scaled.getHeight());
+        assertTrue(scaled.getColorModel().hasAlpha());
+
+        // Not enlarged
+        scaled = AttachmentRenditions.scale(new BufferedImage(50, 40, BufferedImage.TYPE_INT_RGB), 128);
+        assertEquals(50, scaled.getWidth());
+    }
+
+    @Test
+    public void testIsSupported() {
+        assertTrue(AttachmentRenditions.isSupported("image.png"));
+        assertTrue(AttachmentRenditions.isSupported("image.jpg"));
+        assertFalse(AttachmentRenditions.isSupported("document.pdf"));
+        assertFalse(AttachmentRenditions.isSupported(null));
+    }
+}
@@ -8,6 +8,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.phoebus.olog.entity.Attachment;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.gridfs.GridFsOperations;
@@ -17,12 +18,28 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @ContextConfiguration(classes = ElasticConfig.class)
@@ -98,6 +115,7 @@ public class AttachmentRepositoryIT {
             Attachment testAttachment = new Attachment(mock, "SampleTextFile_100kb.txt", "");
 
             Attachment createdAttachment = attachmentRepository.save(testAttachment);
+            assertEquals("text/plain", createdAttachment.getContentType());
 
             // Directly retrieve the attached file to verify if it was recorded correctly
 
@@ -107,7 +125,10 @@ public class AttachmentRepositoryIT {
                 public void accept(GridFSFile t) {
                     try {
                         File createdFile = new File("test_attachment_" + createdAttachment.getId() + "_" + createdAttachment.getFilename());
-                        InputStream st = gridOperation.getResource(t).getInputStream();
+                        assertEquals("text/plain", t.getMetadata().getString(GridFsAttachmentStore.METADATA_CONTENT_TYPE));
+                        // Text is stored compressed
+                        assertEquals(CompressedResource.GZIP, t.getMetadata().getString(GridFsAttachmentStore.METADATA_CONTENT_ENCODING));
+                        InputStream st = new GZIPInputStream(gridOperation.getResource(t).getInputStream());
                         Files.copy(st, createdFile.toPath());
                         FileAssert.assertBinaryEquals("failed to create log entry with attachment", testFile, createdFile);
                         Files.delete(createdFile.toPath());
@@ -150,4 +171,81 @@ public class AttachmentRepositoryIT {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Test that identical content is stored once, and deleted when no longer referenced
+     */
+    @Test
+    public void deduplicateAttachment() throws IOException {
+        File testFile = new File("src/test/resources/Tulips.jpg");
+        Attachment first = attachmentRepository.save(new Attachment(new MockMultipartFile(testFile.getName(), new FileInputStream(testFile)), "Tulips.jpg", "image"));
+        Attachment second = attachmentRepository.save(new Attachment(new MockMultipartFile(testFile.getName(), new FileInputStream(testFile)), "Copy.jpg", "image"));
+
+        assertNotEquals(first.getId(), second.getId());
+        // No GridFS file for the second attachment
+        assertNull(gridOperation.findOne(new Query(Criteria.where("_id").is(second.getId()))));
+
+        Attachment found = attachmentRepository.findById(second.getId()).get();
+        assertEquals("Copy.jpg", found.getFilename());
+        File foundTestFile = new File("test_attachment_" + second.getId() + "_" + second.getFilename());
+        Files.copy(found.getAttachment().getInputStream(), foundTestFile.toPath());
+        FileAssert.assertBinaryEquals("failed to retrieve deduplicated attachment", testFile, foundTestFile);
+        Files.delete(foundTestFile.toPath());
+
+        // Content still referenced by the second attachment
+        attachmentRepository.deleteById(first.getId());
+        assertTrue(attachmentRepository.findById(first.getId()).isEmpty());
+        assertTrue(attachmentRepository.findById(second.getId()).isPresent());
+
+        attachmentRepository.deleteById(second.getId());
+        assertTrue(attachmentRepository.findById(second.getId()).isEmpty());
+        assertNull(gridOperation.findOne(new Query(Criteria.where("_id").is(first.getId()))));
+    }
+
+    /**
+     * Test that identical content saved concurrently, hashed while uploading, remains readable from both
+     * attachments, and is stored once
+     */
+    @Test
+    public void deduplicateConcurrentAttachments() throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            for (int round = 0; round < 10; round++) {
+                byte[] content = new byte[256 * 1024];
+                new Random().nextBytes(content);
+                CyclicBarrier barrier = new CyclicBarrier(2);
+                List<Future<Attachment>> saved = new ArrayList<>();
+                for (int i = 0; i < 2; i++) {
+                    String filename = "concurrent" + i + ".bin";
+                    saved.add(executorService.submit(() -> {
+                        barrier.await();
+                        return attachmentRepository.save(new Attachment(
+                                new InputStreamResource(new ByteArrayInputStream(content)), filename, "application/octet-stream"));
+                    }));
+                }
+                List<String> ids = new ArrayList<>();
+                for (Future<Attachment> attachment : saved) {
+                    ids.add(attachment.get().getId());
+                }
+                for (String id : ids) {
+                    Attachment found = attachmentRepository.findById(id).get();
+                    try (InputStream inputStream = found.getAttachment().getInputStream()) {
+                        assertArrayEquals(content, inputStream.readAllBytes());
+                    }
+                }
+                String contentHash = AttachmentStore.toHex(MessageDigest.getInstance("SHA-256").digest(content));
+                Query byHash = new Query(Criteria.where("metadata." + GridFsAttachmentStore.METADATA_SHA256).is(contentHash));
+                List<GridFSFile> files = new ArrayList<>();
+                gridOperation.find(byHash).into(files);
+                assertTrue(files.size() >= 1);
+
+                ids.forEach(attachmentRepository::deleteById);
+                files.clear();
+                gridOperation.find(byHash).into(files);
+                assertTrue(files.isEmpty());
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
 }
@@ -18,6 +18,11 @@
 
 package org.phoebus.olog;
 
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
@@ -25,7 +30,10 @@ import org.phoebus.olog.entity.Attachment;
 import org.phoebus.olog.entity.Log;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.ContextHierarchy;
 import org.springframework.test.context.TestPropertySource;
@@ -34,12 +42,25 @@ import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.Date;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasItem;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -55,6 +76,12 @@ public class AttachmentResourceTest extends ResourcesTestBase {
     @Autowired
     private AttachmentRepository attachmentRepository;
 
+    @Autowired
+    private GridFSBucket gridFSBucket;
+
+    @Autowired
+    private AttachmentRenditions attachmentRenditions;
+
     @Test
     public void testGetAttachment() throws Exception {
         Attachment attachment = Mockito.mock(Attachment.class);
@@ -70,6 +97,194 @@ public class AttachmentResourceTest extends ResourcesTestBase {
         assertEquals("data", responseData);
     }
 
+    @Test
+    public void testGetAttachmentDetectedContentType() throws Exception {
+        Attachment attachment = new Attachment("detected", new ByteArrayResource("data".getBytes()), "file.jpg", null);
+        attachment.setContentType("image/png");
+        when(attachmentRepository.findById("detected")).thenReturn(Optional.of(attachment));
+        MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.ATTACHMENT_URI + "/detected");
+        mockMvc.perform(request).andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, "image/png"));
+    }
+
+    @Test
+    public void testGetAttachmentRange() throws Exception {
+        Instant uploadDate = Instant.parse("2022-05-01T12:00:00Z");
+        Resource resource = new ByteArrayResource("0123456789".getBytes()) {
+            @Override
+            public long lastModified() {
+                return uploadDate.toEpochMilli();
+            }
+        };
+        Attachment attachment = new Attachment("valid", resource, "file.bin", null);
+        when(attachmentRepository.findById("valid")).thenReturn(Optional.of(attachment));
+
+        MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.ATTACHMENT_URI + "/valid")
+                .header(HttpHeaders.RANGE, "bytes=2-4");
+        MvcResult result = mockMvc.perform(request).andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 2-4/10"))
+                .andReturn();
+        assertEquals("234", result.getResponse().getContentAsString());
+
+        // Multiple ranges
+        request = get("/" + OlogResourceDescriptors.ATTACHMENT_URI + "/valid")
+                .header(HttpHeaders.RANGE, "bytes=0-1,8-");
+        result = mockMvc.perform(request).andExpect(status().isPartialContent()).andReturn();
+        assertTrue(result.getResponse().getContentType().startsWith("multipart/byteranges"));
+
+        // Unsatisfiable range
+        request = get("/" + OlogResourceDescriptors.ATTACHMENT_URI + "/valid")
+                .header(HttpHeaders.RANGE, "bytes=20-30");
+        mockMvc.perform(request).andExpect(status().isRequestedRangeNotSatisfiable());
+
+        // If-Range matching last modified date
+        HttpHeaders headers = new HttpHeaders();
+        headers.setLastModified(uploadDate.toEpochMilli());
+        request = get("/" + OlogResourceDescriptors.ATTACHMENT_URI + "/valid")
+                .header(HttpHeaders.RANGE, "bytes=2-4")
+                .header(HttpHeaders.IF_RANGE, headers.getFirst(HttpHeaders.LAST_MODIFIED));
+        mockMvc.perform(request).andExpect(status().isPartialContent());
+
+        // If-Range not matching: full content
+        headers.setLastModified(uploadDate.minusSeconds(60).toEpochMilli());
+        request = get("/" + OlogResourceDescriptors.ATTACHMENT_URI + "/valid")
+                .header(HttpHeaders.RANGE, "bytes=2-4")
+                .header(HttpHeaders.IF_RANGE, headers.getFirst(HttpHeaders.LAST_MODIFIED));
+        result = mockMvc.perform(request).andExpect(status().isOk()).andReturn();
+        assertEquals("0123456789", result.getResponse().getContentAsString());
+    }
+
+    @Test
+    public void testGetAttachmentNotModified() throws Exception {
+        GridFSFile gridFSFile = new GridFSFile(new BsonString("valid"), "file.jpg", 4, 255 * 1024,
+                new Date(), new Document(GridFsAttachmentStore.METADATA_SHA256, "abcdef"));
+        Attachment attachment = new Attachment("valid", new GridFsAttachmentResource(gridFSBucket, gridFSFile), "file.jpg", null);
+        when(attachmentRepository.findById("valid")).thenReturn(Optional.of(attachment));
+
+        MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.ATTACHMENT_URI + "/valid")
+                .header(HttpHeaders.IF_NONE_MATCH, "\"abcdef\"");
+        mockMvc.perform(request).andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"abcdef\""))
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, containsString("immutable")));
+        // Content is not read
+        verify(gridFSBucket, never()).openDownloadStream(Mockito.any(BsonValue.class));
+
+        // Also when If-Range does not match, in which case the full content would be sent
+        request = get("/" + OlogResourceDescriptors.ATTACHMENT_URI + "/valid")
+                .header(HttpHeaders.IF_NONE_MATCH, "\"abcdef\"")
+                .header(HttpHeaders.RANGE, "bytes=0-1")
+                .header(HttpHeaders.IF_RANGE, "\"other\"");
+        mockMvc.perform(request).andExpect(status().isNotModified());
+        verify(gridFSBucket, never()).openDownloadStream(Mockito.any(BsonValue.class));
+    }
+
+    @Test
+    public void testGetCompressedAttachment() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipStream = new GZIPOutputStream(compressed)) {
+            gzipStream.write("0123456789".getBytes());
+        }
+        AtomicInteger encodedStreams = new AtomicInteger();
+        class StoredCompressed extends ByteArrayResource implements CompressedResource, HashedResource {
+            StoredCompressed() {
+                super("0123456789".getBytes());
+            }
+
+            @Override
+            public String getContentEncoding() {
+                return CompressedResource.GZIP;
+            }
+
+            @Override
+            public InputStream getEncodedInputStream() {
+                encodedStreams.incrementAndGet();
+                return new ByteArrayInputStream(compressed.toByteArray());
+            }
+
+            @Override
+            public long encodedLength() {
+                return compressed.size();
+            }
+
+            @Override
+            public String getContentHash() {
+                return "abcdef";
+            }
+        }
+        Attachment attachment = new Attachment("valid", new StoredCompressed(), "file.txt", null);
+        when(attachmentRepository.findById("valid")).thenReturn(Optional.of(attachment));
+
+        MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.ATTACHMENT_URI + "/valid")
+                .header(HttpHeaders.ACCEPT_ENCODING, "deflate, gzip;q=0.8");
+        MvcResult result = mockMvc.perform(request).andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andExpect(header().string(HttpHeaders.ETAG, "\"abcdef-gzip\""))
+                .andExpect(header().stringValues(HttpHeaders.VARY, hasItem(HttpHeaders.ACCEPT_ENCODING)))
+                .andReturn();
+        assertArrayEquals(compressed.toByteArray(), result.getResponse().getContentAsByteArray());
+        assertEquals(1, encodedStreams.get());
+
+        // Compressed content still held by client: not opened
+        request = get("/" + OlogResourceDescriptors.ATTACHMENT_URI + "/valid")
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                .header(HttpHeaders.IF_NONE_MATCH, "\"abcdef-gzip\"");
+        mockMvc.perform(request).andExpect(status().isNotModified());
+        assertEquals(1, encodedStreams.get());
+
+        // Decompressed for clients not accepting gzip
+        request = get("/" + OlogResourceDescriptors.ATTACHMENT_URI + "/valid")
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0, *");
+        result = mockMvc.perform(request).andExpect(status().isOk())
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andExpect(header().string(HttpHeaders.ETAG, "\"abcdef\""))
+                .andReturn();
+        assertEquals("0123456789", result.getResponse().getContentAsString());
+
+        // Ranges refer to the decompressed content
+        request = get("/" + OlogResourceDescriptors.ATTACHMENT_URI + "/valid")
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                .header(HttpHeaders.RANGE, "bytes=2-4");
+        result = mockMvc.perform(request).andExpect(status().isPartialContent())
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andReturn();
+        assertEquals("234", result.getResponse().getContentAsString());
+    }
+
+    @Test
+    public void testGetAttachmentRendition() throws Exception {
+        Attachment attachment = new Attachment("valid", new ByteArrayResource("original".getBytes()), "file.png", null);
+        Attachment rendition = new Attachment("valid", new ByteArrayResource("thumb".getBytes()), "file_thumb.png", null);
+        when(attachmentRepository.findById("valid")).thenReturn(Optional.of(attachment));
+        when(attachmentRenditions.isDefined("thumb")).thenReturn(true);
+
+        // Not yet generated: original, not to be cached
+        when(attachmentRepository.findRendition(attachment, "thumb")).thenReturn(Optional.empty());
+        when(attachmentRepository.hasRenditions(attachment)).thenReturn(true);
+        MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.ATTACHMENT_URI + "/valid")
+                .param("rendition", "thumb");
+        MvcResult result = mockMvc.perform(request).andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "no-cache"))
+                .andReturn();
+        assertEquals("original", result.getResponse().getContentAsString());
+
+        // Never generated, e.g. by a store not supporting renditions: original, cached as usual
+        when(attachmentRepository.hasRenditions(attachment)).thenReturn(false);
+        result = mockMvc.perform(request).andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, containsString("immutable")))
+                .andReturn();
+        assertEquals("original", result.getResponse().getContentAsString());
+
+        when(attachmentRepository.findRendition(attachment, "thumb")).thenReturn(Optional.of(rendition));
+        result = mockMvc.perform(request).andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, containsString("immutable")))
+                .andReturn();
+        assertEquals("thumb", result.getResponse().getContentAsString());
+
+        request = get("/" + OlogResourceDescriptors.ATTACHMENT_URI + "/valid")
+                .param("rendition", "undefined");
+        mockMvc.perform(request).andExpect(status().isBadRequest());
+    }
+
     @Test
     public void testGetAttachmentIOException() throws Exception {
         Attachment attachment = Mockito.mock(Attachment.class);
@@ -0,0 +1,126 @@
+package org.phoebus.olog;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+import org.phoebus.olog.AttachmentSweeper.Action;
+import org.phoebus.olog.entity.Attachment;
+import org.springframework.core.io.ByteArrayResource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AttachmentSweeperTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AttachmentRepository attachmentRepository;
+
+    /**
+     * Batches of ids looked up in the log index
+     */
+    private final List<Collection<String>> lookups = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        attachmentRepository = Mockito.mock(AttachmentRepository.class);
+        doAnswer(invocation -> {
+            BiConsumer<String, Long> consumer = invocation.getArgument(1);
+            consumer.accept("a", 10L);
+            consumer.accept("orphan1", 20L);
+            consumer.accept("b", 30L);
+            consumer.accept("orphan2", 40L);
+            consumer.accept("c", 50L);
+            return null;
+        }).when(attachmentRepository).forEachIdStoredBefore(any(), any());
+    }
+
+    private AttachmentSweeper sweeper(Action action) {
+        return new AttachmentSweeper(attachmentRepository, action, folder.getRoot().getAbsolutePath()) {
+            @Override
+            Set<String> findReferenced(Collection<String> ids) {
+                lookups.add(new ArrayList<>(ids));
+                return ids.stream().filter(id -> !id.startsWith("orphan")).collect(Collectors.toSet());
+            }
+        };
+    }
+
+    @Test
+    public void testReport() throws Exception {
+        AttachmentSweeper sweeper = sweeper(Action.REPORT);
+        sweeper.sweep(Instant.now());
+
+        // Batches of two
+        assertEquals(3, lookups.size());
+        assertEquals(Set.of("a", "orphan1", "b", "orphan2", "c"),
+                lookups.stream().flatMap(Collection::stream).collect(Collectors.toSet()));
+        assertEquals(2, sweeper.getOrphans());
+        assertEquals(0, sweeper.getBytesReclaimed());
+        assertEquals(1, sweeper.getSweeps());
+        verify(attachmentRepository, never()).deleteById(anyString());
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        AttachmentSweeper sweeper = sweeper(Action.DELETE);
+        sweeper.sweep(Instant.now());
+
+        verify(attachmentRepository).deleteById("orphan1");
+        verify(attachmentRepository).deleteById("orphan2");
+        verify(attachmentRepository, never()).deleteById("a");
+        assertEquals(60, sweeper.getBytesReclaimed());
+    }
+
+    @Test
+    public void testQuarantine() throws Exception {
+        when(attachmentRepository.findById("orphan1")).thenReturn(Optional.of(
+                new Attachment("orphan1", new ByteArrayResource("content".getBytes()), "../notes.txt", "text/plain")));
+        when(attachmentRepository.findById("orphan2")).thenReturn(Optional.empty());
+        AttachmentSweeper sweeper = sweeper(Action.QUARANTINE);
+        sweeper.sweep(Instant.now());
+
+        Path quarantined = folder.getRoot().toPath().resolve("orphan1").resolve("__notes.txt");
+        assertTrue(Files.exists(quarantined));
+        assertEquals("content", Files.readString(quarantined));
+        verify(attachmentRepository).deleteById("orphan1");
+        // Gone meanwhile
+        verify(attachmentRepository, never()).deleteById("orphan2");
+        assertEquals(20, sweeper.getBytesReclaimed());
+        assertEquals(Set.of("orphan1"), Set.of(folder.getRoot().list()));
+    }
+
+    @Test
+    public void testAbortWhenLogIndexUnavailable() throws Exception {
+        AttachmentSweeper sweeper = new AttachmentSweeper(attachmentRepository, Action.DELETE, folder.getRoot().getAbsolutePath()) {
+            @Override
+            Set<String> findReferenced(Collection<String> ids) throws IOException {
+                throw new IOException("Log index search failed on 1 of 1 shards");
+            }
+        };
+        assertThrows(IOException.class, () -> sweeper.sweep(Instant.now()));
+        verify(attachmentRepository, never()).deleteById(anyString());
+        assertEquals(0, sweeper.getSweeps());
+    }
+}
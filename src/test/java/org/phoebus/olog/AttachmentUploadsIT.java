@@ -0,0 +1,134 @@
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.Refresh;
+import co.elastic.clients.elasticsearch.core.DeleteRequest;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.phoebus.olog.entity.Attachment;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.Logbook;
+import org.phoebus.olog.entity.State;
+import org.phoebus.olog.entity.UploadSession;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = ElasticConfig.class)
+@TestPropertySource(locations = "classpath:test_application.properties")
+public class AttachmentUploadsIT {
+
+    @Autowired
+    private LogbookRepository logbookRepository;
+    @Autowired
+    private LogRepository logRepository;
+    @Autowired
+    private AttachmentRepository attachmentRepository;
+    @Autowired
+    private AttachmentUploads attachmentUploads;
+
+    @Autowired
+    @Qualifier("client")
+    ElasticsearchClient client;
+
+    @Value("${elasticsearch.logbook.index:olog_logbooks}")
+    private String ES_LOGBOOK_INDEX;
+    @Value("${elasticsearch.log.index:olog_logs}")
+    private String ES_LOG_INDEX;
+
+    private static final Logbook testLogbook = new Logbook("test-logbook-uploads", "test-owner", State.Active);
+
+    /**
+     * Fails after reading part of the content, like a dropped connection.
+     */
+    private static InputStream interrupted(byte[] content, int failAfter) {
+        return new ByteArrayInputStream(content) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                if (pos >= failAfter) {
+                    throw new IllegalStateException("Connection dropped");
+                }
+                return super.read(b, off, Math.min(len, failAfter - pos));
+            }
+        };
+    }
+
+    @Test
+    public void resumeAndComplete() throws Exception {
+        logbookRepository.save(testLogbook);
+        Log createdLog = logRepository.save(Log.LogBuilder.createLog("Upload test").owner("test-owner").withLogbook(testLogbook).build());
+        String logId = createdLog.getId().toString();
+        try {
+            byte[] content = new byte[3 * AttachmentUploads.CHUNK_SIZE + 1000];
+            new Random(1).nextBytes(content);
+            String sha256 = AttachmentStore.toHex(MessageDigest.getInstance("SHA-256").digest(content));
+
+            UploadSession upload = attachmentUploads.create(logId, "dump.bin", "application/octet-stream", null, (long) content.length);
+            assertEquals(0, upload.getOffset());
+
+            // Interrupted in the middle of the second chunk: only complete chunks are kept
+            try {
+                attachmentUploads.append(logId, upload.getId(), 0, interrupted(content, AttachmentUploads.CHUNK_SIZE + 100));
+                fail("Interrupted");
+            } catch (IllegalStateException | IOException e) {
+                // Expected
+            }
+            long offset = attachmentUploads.find(logId, upload.getId()).getOffset();
+            assertEquals(AttachmentUploads.CHUNK_SIZE, offset);
+
+            try {
+                attachmentUploads.append(logId, upload.getId(), 0, new ByteArrayInputStream(content));
+                fail("Wrong offset");
+            } catch (ResponseStatusException e) {
+                assertEquals(HttpStatus.CONFLICT, e.getStatus());
+            }
+
+            upload = attachmentUploads.append(logId, upload.getId(), offset,
+                    new ByteArrayInputStream(Arrays.copyOfRange(content, (int) offset, content.length)));
+            assertEquals(content.length, upload.getOffset());
+
+            try {
+                attachmentUploads.complete(logId, upload.getId(), "0".repeat(64));
+                fail("Wrong hash");
+            } catch (ResponseStatusException e) {
+                assertEquals(HttpStatus.BAD_REQUEST, e.getStatus());
+            }
+
+            Log updatedLog = attachmentUploads.complete(logId, upload.getId(), sha256);
+            assertEquals(1, updatedLog.getAttachments().size());
+            Attachment attachment = attachmentRepository.findById(updatedLog.getAttachments().iterator().next().getId()).get();
+            try (InputStream inputStream = attachment.getAttachment().getInputStream()) {
+                assertArrayEquals(content, inputStream.readAllBytes());
+            }
+            attachmentRepository.deleteById(attachment.getId());
+
+            // Discarded once completed
+            try {
+                attachmentUploads.find(logId, upload.getId());
+                fail("Completed");
+            } catch (ResponseStatusException e) {
+                assertEquals(HttpStatus.NOT_FOUND, e.getStatus());
+            }
+        } finally {
+            client.delete(DeleteRequest.of(d -> d.index(ES_LOG_INDEX).id(logId).refresh(Refresh.True)));
+            client.delete(DeleteRequest.of(d -> d.index(ES_LOGBOOK_INDEX).id(testLogbook.getName()).refresh(Refresh.True)));
+        }
+    }
+}
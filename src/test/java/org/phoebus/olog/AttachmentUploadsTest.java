@@ -0,0 +1,202 @@
+package org.phoebus.olog;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.phoebus.olog.entity.Attachment;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.UploadSession;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AttachmentUploadsTest {
+
+    private MongoCollection<Document> uploads;
+    private MongoCollection<Document> chunks;
+    private AttachmentRepository attachmentRepository;
+    private LogRepository logRepository;
+    private AttachmentUploads attachmentUploads;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        uploads = mock(MongoCollection.class);
+        chunks = mock(MongoCollection.class);
+        MongoDatabase mongoDatabase = mock(MongoDatabase.class);
+        when(mongoDatabase.getCollection(AttachmentUploads.UPLOADS_COLLECTION)).thenReturn(uploads);
+        when(mongoDatabase.getCollection(AttachmentUploads.CHUNKS_COLLECTION)).thenReturn(chunks);
+        when(uploads.updateOne(any(), any(Bson.class))).thenReturn(UpdateResult.acknowledged(1, 1L, null));
+        attachmentRepository = mock(AttachmentRepository.class);
+        logRepository = mock(LogRepository.class);
+        attachmentUploads = new AttachmentUploads(mongoDatabase, attachmentRepository, logRepository,
+                Duration.ofHours(1), DataSize.ofMegabytes(1));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static FindIterable<Document> found(List<Document> documents) {
+        FindIterable<Document> findIterable = mock(FindIterable.class);
+        when(findIterable.first()).thenReturn(documents.isEmpty() ? null : documents.get(0));
+        when(findIterable.projection(any())).thenReturn(findIterable);
+        when(findIterable.sort(any())).thenReturn(findIterable);
+        when(findIterable.iterator()).thenAnswer(invocation -> {
+            Iterator<Document> iterator = documents.iterator();
+            MongoCursor<Document> cursor = mock(MongoCursor.class);
+            when(cursor.hasNext()).thenAnswer(i -> iterator.hasNext());
+            when(cursor.next()).thenAnswer(i -> iterator.next());
+            return cursor;
+        });
+        return findIterable;
+    }
+
+    private static Document upload(Long length, long offset, Date updated) {
+        return new Document("_id", "u1")
+                .append("logId", "1")
+                .append("filename", "dump.bin")
+                .append("length", length)
+                .append("offset", offset)
+                .append("updated", updated);
+    }
+
+    private void givenUpload(Long length, long offset) {
+        FindIterable<Document> found = found(List.of(upload(length, offset, new Date())));
+        when(uploads.find(any(Bson.class))).thenReturn(found);
+    }
+
+    @Test
+    public void testAppendStagesChunks() throws Exception {
+        givenUpload(null, 0L);
+        byte[] content = new byte[AttachmentUploads.CHUNK_SIZE + 5];
+        UploadSession session = attachmentUploads.append("1", "u1", 0, new ByteArrayInputStream(content));
+
+        assertEquals(AttachmentUploads.CHUNK_SIZE + 5, session.getOffset());
+        ArgumentCaptor<Document> staged = ArgumentCaptor.forClass(Document.class);
+        verify(chunks, times(2)).replaceOne(any(Bson.class), staged.capture(), any(ReplaceOptions.class));
+        assertEquals(0L, staged.getAllValues().get(0).get("offset"));
+        assertEquals((long) AttachmentUploads.CHUNK_SIZE, staged.getAllValues().get(1).get("offset"));
+        assertEquals(5, staged.getAllValues().get(1).get("data", Binary.class).length());
+    }
+
+    @Test
+    public void testAppendAtWrongOffset() {
+        givenUpload(null, 10L);
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> attachmentUploads.append("1", "u1", 0, new ByteArrayInputStream(new byte[10])));
+        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+        verify(chunks, never()).replaceOne(any(Bson.class), any(Document.class), any(ReplaceOptions.class));
+    }
+
+    @Test
+    public void testAppendBeyondLength() {
+        givenUpload(10L, 0L);
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> attachmentUploads.append("1", "u1", 0, new ByteArrayInputStream(new byte[20])));
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, exception.getStatus());
+    }
+
+    @Test
+    public void testAppendModifiedConcurrently() {
+        givenUpload(null, 0L);
+        when(uploads.updateOne(any(), any(Bson.class))).thenReturn(UpdateResult.acknowledged(0, 0L, null));
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> attachmentUploads.append("1", "u1", 0, new ByteArrayInputStream(new byte[10])));
+        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+    }
+
+    @Test
+    public void testExpiredUploadNotFound() {
+        FindIterable<Document> found = found(List.of(upload(null, 0L, new Date(System.currentTimeMillis() - Duration.ofHours(2).toMillis()))));
+        when(uploads.find(any(Bson.class))).thenReturn(found);
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> attachmentUploads.find("1", "u1"));
+        assertEquals(HttpStatus.NOT_FOUND, exception.getStatus());
+        // Uploads belong to their log entry
+        givenUpload(null, 0L);
+        exception = assertThrows(ResponseStatusException.class, () -> attachmentUploads.find("2", "u1"));
+        assertEquals(HttpStatus.NOT_FOUND, exception.getStatus());
+    }
+
+    @Test
+    public void testPurgeExpired() {
+        FindIterable<Document> expired = found(List.of(new Document("_id", "u1"), new Document("_id", "u2")));
+        when(uploads.find(any(Bson.class))).thenReturn(expired);
+        attachmentUploads.purgeExpired();
+        verify(chunks, times(2)).deleteMany(any());
+        verify(uploads, times(2)).deleteOne(any());
+    }
+
+    @Test
+    public void testCompleteIncomplete() {
+        givenUpload(100L, 50L);
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> attachmentUploads.complete("1", "u1", "00"));
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+        verify(attachmentRepository, never()).save(any());
+    }
+
+    private void givenStagedContent(byte[] content) {
+        givenUpload((long) content.length, content.length);
+        FindIterable<Document> staged = found(List.of(new Document("upload", "u1").append("offset", 0L).append("data", new Binary(content))));
+        when(chunks.find(any(Bson.class))).thenReturn(staged);
+        when(attachmentRepository.save(any())).thenAnswer(invocation -> {
+            Attachment attachment = invocation.getArgument(0);
+            try (InputStream inputStream = attachment.getAttachment().getInputStream()) {
+                inputStream.readAllBytes();
+            }
+            return new Attachment("a1", null, attachment.getFilename(), null);
+        });
+    }
+
+    @Test
+    public void testComplete() throws Exception {
+        byte[] content = "content".getBytes();
+        givenStagedContent(content);
+        Log log = Log.LogBuilder.createLog().id(1L).build();
+        when(logRepository.addAttachments(anyString(), any())).thenReturn(log);
+
+        String sha256 = AttachmentStore.toHex(MessageDigest.getInstance("SHA-256").digest(content));
+        assertSame(log, attachmentUploads.complete("1", "u1", sha256));
+        verify(attachmentRepository, never()).deleteById(anyString());
+        verify(chunks).deleteMany(any());
+        verify(uploads).deleteOne(any());
+    }
+
+    @Test
+    public void testCompleteHashMismatch() {
+        givenStagedContent("content".getBytes());
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> attachmentUploads.complete("1", "u1", "00"));
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+        // The stored attachment is deleted, the upload is kept
+        verify(attachmentRepository).deleteById("a1");
+        verify(logRepository, never()).addAttachments(anyString(), any());
+        verify(uploads, never()).deleteOne(any());
+    }
+}
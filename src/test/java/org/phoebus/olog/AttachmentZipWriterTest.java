@@ -0,0 +1,82 @@
+package org.phoebus.olog;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.phoebus.olog.entity.Attachment;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.Log.LogBuilder;
+import org.springframework.core.io.ByteArrayResource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+public class AttachmentZipWriterTest {
+
+    private static Attachment reference(String id, String filename) {
+        return new Attachment(id, null, filename, null);
+    }
+
+    @Test
+    public void testWriteZip() throws Exception {
+        AttachmentRepository attachmentRepository = Mockito.mock(AttachmentRepository.class);
+        String text = "text ".repeat(1000);
+        when(attachmentRepository.findById("a")).thenReturn(Optional.of(
+                new Attachment("a", new ByteArrayResource(text.getBytes()), "notes.txt", "text/plain")));
+        when(attachmentRepository.findById("b")).thenReturn(Optional.of(
+                new Attachment("b", new ByteArrayResource(text.getBytes()), "notes.txt", "text/plain")));
+        when(attachmentRepository.findById("c")).thenReturn(Optional.of(
+                new Attachment("c", new ByteArrayResource("image".getBytes()), "../screenshot.png", "image/png")));
+        when(attachmentRepository.findById("missing")).thenReturn(Optional.empty());
+
+        Log log1 = LogBuilder.createLog().id(1L).build();
+        log1.setAttachments(Set.of(reference("a", "notes.txt"), reference("b", "notes.txt"), reference("missing", "gone.txt")));
+        Log log2 = LogBuilder.createLog().id(2L).build();
+        log2.setAttachments(Set.of(reference("c", "../screenshot.png")));
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (AttachmentZipWriter zipWriter = new AttachmentZipWriter(outputStream, attachmentRepository)) {
+            zipWriter.addLog(log1);
+            zipWriter.addLog(log2);
+            assertEquals(3, zipWriter.getAttachmentCount());
+        }
+
+        Map<String, String> entries = new HashMap<>();
+        Map<String, Long> compressedSizes = new HashMap<>();
+        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                entries.put(entry.getName(), new String(zipInputStream.readAllBytes(), StandardCharsets.UTF_8));
+                compressedSizes.put(entry.getName(), entry.getCompressedSize());
+            }
+        }
+        assertEquals(3, entries.size());
+        // Duplicate file names are made unique
+        assertTrue(entries.containsKey("1/notes.txt"));
+        assertTrue(entries.keySet().stream().anyMatch(name -> name.matches("1/[ab]_notes.txt")));
+        // File names cannot escape the directory of the log entry
+        assertEquals("image", entries.get("2/__screenshot.png"));
+        assertEquals(text, entries.get("1/notes.txt"));
+        assertTrue(compressedSizes.get("1/notes.txt") < text.length());
+    }
+
+    @Test
+    public void testIsCompressed() {
+        assertTrue(AttachmentZipWriter.isCompressed("image.jpg"));
+        assertTrue(AttachmentZipWriter.isCompressed("image.png"));
+        assertTrue(AttachmentZipWriter.isCompressed("archive.zip"));
+        assertFalse(AttachmentZipWriter.isCompressed("notes.txt"));
+        assertFalse(AttachmentZipWriter.isCompressed("image.bmp"));
+    }
+}
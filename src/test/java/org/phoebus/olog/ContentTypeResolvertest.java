@@ -21,6 +21,10 @@ package org.phoebus.olog;
 import org.junit.Test;
 import org.springframework.http.MediaType;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -73,4 +77,27 @@ public class ContentTypeResolvertest {
         assertEquals("application", mediaType.getType());
         assertEquals("pdf", mediaType.getSubtype());
     }
+
+    @Test
+    public void testDetectContentType() throws Exception {
+        byte[] png = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0, 0, 0, 0x0D, 'I', 'H', 'D', 'R'};
+        InputStream inputStream = new BufferedInputStream(new ByteArrayInputStream(png));
+        // Magic bytes win over the file name
+        assertEquals("image/png", ContentTypeResolver.detectContentType(inputStream, "screenshot.jpg"));
+        // Stream is reset
+        assertEquals(png.length, inputStream.readAllBytes().length);
+
+        // Not recognized from the content, by file name
+        assertEquals("text/csv", ContentTypeResolver.detectContentType(
+                new BufferedInputStream(new ByteArrayInputStream("a,b\n1,2\n".getBytes())), "data.csv"));
+        assertEquals("application/octet-stream", ContentTypeResolver.detectContentType(
+                new BufferedInputStream(new ByteArrayInputStream(new byte[]{1, 2, 3})), null));
+    }
+
+    @Test
+    public void testParseContentType() {
+        assertEquals(MediaType.IMAGE_PNG, ContentTypeResolver.parseContentType("image/png"));
+        assertNull(ContentTypeResolver.parseContentType(null));
+        assertNull(ContentTypeResolver.parseContentType("invalid"));
+    }
 }
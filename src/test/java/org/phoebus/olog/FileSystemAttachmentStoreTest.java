@@ -0,0 +1,127 @@
+package org.phoebus.olog;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.phoebus.olog.entity.Attachment;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileSystemAttachmentStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileSystemAttachmentStore store;
+
+    @Before
+    public void setup() {
+        store = new FileSystemAttachmentStore(folder.getRoot().getAbsolutePath());
+        store.init();
+    }
+
+    private long countBlobs() throws Exception {
+        try (Stream<Path> files = Files.walk(folder.getRoot().toPath().resolve("blobs"))) {
+            return files.filter(Files::isRegularFile).filter(f -> !f.getParent().toString().endsWith(".refs")).count();
+        }
+    }
+
+    @Test
+    public void testSaveAndFind() throws Exception {
+        Attachment saved = store.save(new Attachment(new ByteArrayResource("content".getBytes()), "file.txt", "text/plain"));
+        assertNotNull(saved.getId());
+
+        Attachment found = store.findById(saved.getId()).get();
+        assertEquals("file.txt", found.getFilename());
+        assertEquals("text/plain", found.getFileMetadataDescription());
+        assertEquals("text/plain", found.getContentType());
+        assertEquals("content", new String(found.getAttachment().getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+        assertNotNull(((HashedResource) found.getAttachment()).getContentHash());
+        // Nothing left behind
+        assertEquals(0, Files.list(folder.getRoot().toPath().resolve("tmp")).count());
+
+        assertTrue(store.findById("unknown").isEmpty());
+        // Ids are unique
+        assertNull(store.save(new Attachment(saved.getId(), new ByteArrayResource("other".getBytes()), "other.txt", null)));
+    }
+
+    @Test
+    public void testDeduplicateAndDelete() throws Exception {
+        store.save(new Attachment("a", new InputStreamResource(new ByteArrayInputStream("content".getBytes())), "a.txt", null));
+        store.save(new Attachment("b/../c", new ByteArrayResource("content".getBytes()), "b.txt", null));
+        assertEquals(1, countBlobs());
+
+        Set<String> ids = new HashSet<>();
+        store.forEachId(ids::add);
+        assertEquals(Set.of("a", "b/../c"), ids);
+        Map<String, Long> lengths = new HashMap<>();
+        store.forEachIdStoredBefore(Instant.now().plusSeconds(1), lengths::put);
+        assertEquals(Map.of("a", 7L, "b/../c", 7L), lengths);
+        lengths.clear();
+        store.forEachIdStoredBefore(Instant.now().minusSeconds(60), lengths::put);
+        assertTrue(lengths.isEmpty());
+
+        store.deleteById("a");
+        assertTrue(store.findById("a").isEmpty());
+        assertEquals("b.txt", store.findById("b/../c").get().getFilename());
+        assertEquals(1, countBlobs());
+
+        store.deleteById("b/../c");
+        assertFalse(store.findById("b/../c").isPresent());
+        assertEquals(0, countBlobs());
+    }
+
+    @Test
+    public void testFailedSaveRemovesReference() throws Exception {
+        store.save(new Attachment("a", new ByteArrayResource("content".getBytes()), "a.txt", null));
+        // A file in place of the directory of the attachment description fails the save after the content is stored
+        Path recordDirectory = FileSystemAttachmentStore.shard(folder.getRoot().toPath().resolve("attachments"),
+                FileSystemAttachmentStore.key("b") + ".json").getParent();
+        Files.createDirectories(recordDirectory.getParent());
+        Files.createFile(recordDirectory);
+        assertNull(store.save(new Attachment("b", new ByteArrayResource("content".getBytes()), "b.txt", null)));
+        assertNull(store.save(new Attachment("b", new ByteArrayResource("other".getBytes()), "b.txt", null)));
+        assertEquals(0, Files.list(folder.getRoot().toPath().resolve("tmp")).count());
+        assertEquals(1, countBlobs());
+
+        // The content is deleted with its last reference
+        store.deleteById("a");
+        assertEquals(0, countBlobs());
+    }
+
+    @Test
+    public void testWriteWithFileChannel() throws Exception {
+        byte[] content = new byte[100_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        Attachment saved = store.save(new Attachment(new ByteArrayResource(content), "file.bin", null));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        new FileChannelResourceHttpMessageConverter().write((Resource) store.findById(saved.getId()).get().getAttachment(),
+                null, new ServletServerHttpResponse(response));
+        assertEquals(content.length, response.getContentLength());
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+}
@@ -0,0 +1,50 @@
+package org.phoebus.olog;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSDownloadStream;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.Date;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GridFsAttachmentResourceTest {
+
+    @Test
+    public void testDownloadContinuesLookupSession() throws Exception {
+        GridFSFile gridFSFile = new GridFSFile(new BsonObjectId(), "file.txt", 10, 255 * 1024, new Date(), new Document());
+        BsonDocument clusterTime = new BsonDocument("clusterTime", new BsonTimestamp(2, 1));
+        BsonTimestamp operationTime = new BsonTimestamp(2, 1);
+        ClientSession lookupSession = mock(ClientSession.class);
+        when(lookupSession.getClusterTime()).thenReturn(clusterTime);
+        when(lookupSession.getOperationTime()).thenReturn(operationTime);
+
+        ClientSession downloadSession = mock(ClientSession.class);
+        MongoClient mongoClient = mock(MongoClient.class);
+        when(mongoClient.startSession(any(ClientSessionOptions.class))).thenReturn(downloadSession);
+        GridFSDownloadStream downloadStream = mock(GridFSDownloadStream.class);
+        GridFSBucket gridFSBucket = mock(GridFSBucket.class);
+        when(gridFSBucket.openDownloadStream(eq(downloadSession), eq(gridFSFile.getId()))).thenReturn(downloadStream);
+
+        GridFsAttachmentResource resource = new GridFsAttachmentResource(gridFSBucket, gridFSFile, mongoClient, lookupSession);
+        try (InputStream inputStream = resource.getInputStream()) {
+            verify(downloadSession).advanceClusterTime(clusterTime);
+            verify(downloadSession).advanceOperationTime(operationTime);
+        }
+        verify(downloadStream).close();
+        verify(downloadSession).close();
+    }
+}
@@ -0,0 +1,62 @@
+package org.phoebus.olog;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LogIndexPartitioningTest {
+
+    @Test
+    public void testNoPartitioning() {
+        LogIndexPartitioning partitioning =
+                new LogIndexPartitioning("olog_logs", LogIndexPartitioning.Scheme.NONE, "olog_logs_read", "olog_logs_write", 36);
+        assertFalse(partitioning.isPartitioned());
+        assertEquals("olog_logs", partitioning.indexFor(Instant.now()));
+        assertEquals("olog_logs", partitioning.readTarget());
+        assertEquals(List.of("olog_logs"), partitioning.searchTargets(ZonedDateTime.now().minusYears(10), ZonedDateTime.now()));
+    }
+
+    @Test
+    public void testMonthlyPartitioning() {
+        LogIndexPartitioning partitioning =
+                new LogIndexPartitioning("olog_logs", LogIndexPartitioning.Scheme.of("month"), "olog_logs_read", "olog_logs_write", 36);
+        assertTrue(partitioning.isPartitioned());
+        assertEquals("olog_logs-2022.05", partitioning.indexFor(Instant.parse("2022-05-31T23:59:59Z")));
+        assertEquals("olog_logs-2022.06", partitioning.indexFor(Instant.parse("2022-06-01T00:00:00Z")));
+        assertEquals("olog_logs_read", partitioning.readTarget());
+
+        ZonedDateTime start = ZonedDateTime.of(2021, 11, 15, 12, 0, 0, 0, ZoneOffset.UTC);
+        ZonedDateTime end = ZonedDateTime.of(2022, 2, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        assertEquals(List.of("olog_logs-2021.11", "olog_logs-2021.12", "olog_logs-2022.01", "olog_logs-2022.02", "olog_logs"),
+                partitioning.searchTargets(start, end));
+
+        // Too many partitions, use the read alias
+        assertEquals(List.of("olog_logs_read"), partitioning.searchTargets(start.minusYears(5), end));
+    }
+
+    @Test
+    public void testYearlyPartitioning() {
+        LogIndexPartitioning partitioning =
+                new LogIndexPartitioning("olog_logs", LogIndexPartitioning.Scheme.YEAR, "olog_logs_read", "olog_logs_write", 36);
+        assertEquals("olog_logs-2022", partitioning.indexFor(Instant.parse("2022-05-31T23:59:59Z")));
+
+        ZonedDateTime start = ZonedDateTime.of(2020, 12, 31, 12, 0, 0, 0, ZoneOffset.UTC);
+        ZonedDateTime end = ZonedDateTime.of(2021, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        assertEquals(List.of("olog_logs-2020", "olog_logs-2021", "olog_logs"), partitioning.searchTargets(start, end));
+    }
+
+    @Test
+    public void testRolloverPartitioning() {
+        LogIndexPartitioning partitioning =
+                new LogIndexPartitioning("olog_logs", LogIndexPartitioning.Scheme.of("rollover"), "olog_logs_read", "olog_logs_write", 36);
+        assertEquals("olog_logs_write", partitioning.indexFor(Instant.now()));
+        assertEquals(List.of("olog_logs_read"), partitioning.searchTargets(ZonedDateTime.now().minusDays(1), ZonedDateTime.now()));
+    }
+}
@@ -12,9 +12,12 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.gridfs.GridFsOperations;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
@@ -76,7 +79,8 @@ public class LogResourceIT {
             Log createdLog = logRepository.save(log);
 
             String attachmentId = createdLog.getAttachments().iterator().next().getId();
-            Resource a = logResource.findResources(createdLog.getId().toString(), testFile.getName()).getBody();
+            Resource a = logResource.findResources(createdLog.getId().toString(), testFile.getName(), new HttpHeaders(),
+                    new MockHttpServletRequest(), new MockHttpServletResponse()).getBody();
 
             File foundTestFile = new File("LogResourceIT_attachment_" + testAttachment.getId() + "_" + testAttachment.getFilename());
             Files.copy(a.getInputStream(), foundTestFile.toPath());
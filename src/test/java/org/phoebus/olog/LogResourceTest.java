@@ -18,13 +18,17 @@
 
 package org.phoebus.olog;
 
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
 import com.fasterxml.jackson.core.type.TypeReference;
+import jakarta.json.stream.JsonGenerator;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Mockito;
 import org.mockito.internal.util.collections.Sets;
+import org.phoebus.olog.entity.AsyncSearchResult;
+import org.phoebus.olog.entity.Attachment;
 import org.phoebus.olog.entity.Attribute;
 import org.phoebus.olog.entity.Log;
 import org.phoebus.olog.entity.Log.LogBuilder;
@@ -37,6 +41,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockAsyncContext;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.ContextHierarchy;
@@ -49,21 +54,32 @@ import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.server.ResponseStatusException;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import java.io.StringWriter;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.argThat;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.phoebus.util.time.TimestampFormats.MILLI_FORMAT;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -79,6 +95,9 @@ public class LogResourceTest extends ResourcesTestBase {
     @Autowired
     private LogRepository logRepository;
 
+    @Autowired
+    private AttachmentRepository attachmentRepository;
+
     @Autowired
     private LogbookRepository logbookRepository;
 
@@ -131,24 +150,39 @@ public class LogResourceTest extends ResourcesTestBase {
 
     @Test
     public void testGetLogById() throws Exception {
-        when(logRepository.findById("1")).thenAnswer(invocationOnMock -> Optional.of(log1));
+        when(logRepository.findByIdAsync("1")).thenAnswer(invocationOnMock -> CompletableFuture.completedFuture(Optional.of(log1)));
 
         MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/1");
-        MvcResult result = mockMvc.perform(request).andExpect(status().isOk())
+        MvcResult result = mockMvc.perform(request).andExpect(request().asyncStarted()).andReturn();
+        result = mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
                 .andReturn();
         Log log = objectMapper.readValue(result.getResponse().getContentAsString(), Log.class);
         assertEquals("description1", log.getDescription());
-        verify(logRepository, times(1)).findById("1");
+        // The flattened search fields are only written to the Elasticsearch document
+        String json = result.getResponse().getContentAsString();
+        assertFalse(json.contains("tagNames"));
+        assertFalse(json.contains("logbookNames"));
+        assertFalse(json.contains("flattenedProperties"));
+        JacksonJsonpMapper jsonpMapper = ElasticConfig.createJsonpMapper();
+        StringWriter document = new StringWriter();
+        try (JsonGenerator generator = jsonpMapper.jsonProvider().createGenerator(document)) {
+            jsonpMapper.serialize(log1, generator);
+        }
+        assertTrue(document.toString().contains("\"tagNames\""));
+        assertTrue(document.toString().contains("\"logbookNames\""));
+        assertTrue(document.toString().contains("\"flattenedProperties\""));
+        verify(logRepository, times(1)).findByIdAsync("1");
         reset(logRepository);
     }
 
     @Test
     public void testGetLogByIdRepositoryThrowsException() throws Exception {
-        when(logRepository.findById("1")).thenThrow(new ResponseStatusException(HttpStatus.NOT_FOUND, ""));
+        when(logRepository.findByIdAsync("1")).thenReturn(CompletableFuture.failedFuture(new ResponseStatusException(HttpStatus.NOT_FOUND, "")));
 
         MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/1");
-        mockMvc.perform(request).andExpect(status().isNotFound());
-        verify(logRepository, times(1)).findById("1");
+        MvcResult result = mockMvc.perform(request).andExpect(request().asyncStarted()).andReturn();
+        mockMvc.perform(asyncDispatch(result)).andExpect(status().isNotFound());
+        verify(logRepository, times(1)).findByIdAsync("1");
         reset(logRepository);
     }
 
@@ -157,12 +191,13 @@ public class LogResourceTest extends ResourcesTestBase {
         MultiValueMap<String, String> map = new LinkedMultiValueMap<>();
         map.put("a", Arrays.asList("b"));
 
-        when(logRepository.search(map)).thenAnswer(invocationOnMock -> new SearchResult(2, Arrays.asList(log1, log2)));
+        when(logRepository.searchAsync(map)).thenAnswer(invocationOnMock -> CompletableFuture.completedFuture(new SearchResult(2, Arrays.asList(log1, log2))));
 
         MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI)
                 .params(map)
                 .contentType(JSON);
-        MvcResult result = mockMvc.perform(request).andExpect(status().isOk())
+        MvcResult result = mockMvc.perform(request).andExpect(request().asyncStarted()).andReturn();
+        result = mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
                 .andReturn();
 
         Iterable<Log> logs = objectMapper.readValue(result.getResponse().getContentAsString(),
@@ -170,7 +205,7 @@ public class LogResourceTest extends ResourcesTestBase {
                 });
         assertEquals(Long.valueOf(1L), logs.iterator().next().getId());
 
-        verify(logRepository, times(1)).search(map);
+        verify(logRepository, times(1)).searchAsync(map);
         reset(logRepository);
     }
 
@@ -179,12 +214,13 @@ public class LogResourceTest extends ResourcesTestBase {
         MultiValueMap<String, String> map = new LinkedMultiValueMap<>();
         map.put("a", Arrays.asList("b"));
 
-        when(logRepository.search(map)).thenAnswer(invocationOnMock -> new SearchResult(2, Arrays.asList(log1, log2)));
+        when(logRepository.searchAsync(map)).thenAnswer(invocationOnMock -> CompletableFuture.completedFuture(new SearchResult(2, Arrays.asList(log1, log2))));
 
         MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/search")
                 .params(map)
                 .contentType(JSON);
-        MvcResult result = mockMvc.perform(request).andExpect(status().isOk())
+        MvcResult result = mockMvc.perform(request).andExpect(request().asyncStarted()).andReturn();
+        result = mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
                 .andReturn();
 
         SearchResult searchResult = objectMapper.readValue(result.getResponse().getContentAsString(), SearchResult.class);
@@ -192,6 +228,88 @@ public class LogResourceTest extends ResourcesTestBase {
         assertEquals(2, searchResult.getLogs().size());
     }
 
+    @Test
+    public void testSearchLogsTimeout() throws Exception {
+        MultiValueMap<String, String> map = new LinkedMultiValueMap<>();
+        map.put("a", Arrays.asList("b"));
+        CompletableFuture<SearchResult> searchFuture = new CompletableFuture<>();
+        when(logRepository.searchAsync(map)).thenReturn(searchFuture);
+
+        MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/search")
+                .params(map)
+                .contentType(JSON);
+        MvcResult result = mockMvc.perform(request).andExpect(request().asyncStarted()).andReturn();
+        MockAsyncContext asyncContext = (MockAsyncContext) result.getRequest().getAsyncContext();
+        for (AsyncListener listener : asyncContext.getListeners()) {
+            listener.onTimeout(new AsyncEvent(asyncContext));
+        }
+        mockMvc.perform(asyncDispatch(result)).andExpect(status().isGatewayTimeout());
+        assertTrue(searchFuture.isCancelled());
+        reset(logRepository);
+    }
+
+    @Test
+    public void testExportAttachmentsZipWithRelativeStart() throws Exception {
+        LogScroll scroll = Mockito.mock(LogScroll.class);
+        when(scroll.nextPage()).thenReturn(Collections.emptyList());
+        when(logRepository.scroll(Mockito.any())).thenReturn(scroll);
+
+        MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/export/attachments.zip")
+                .param("start", "8 hours");
+        mockMvc.perform(request).andExpect(status().isOk());
+
+        verify(scroll).close();
+        verify(logRepository).scroll(argThat(searchParameters -> {
+            Instant start = Instant.from(MILLI_FORMAT.parse(searchParameters.getFirst("start")));
+            Instant expected = Instant.now().minus(Duration.ofHours(8));
+            return Math.abs(Duration.between(start, expected).toSeconds()) < 60;
+        }));
+        reset(logRepository);
+    }
+
+    @Test
+    public void testAsyncSearch() throws Exception {
+        MultiValueMap<String, String> map = new LinkedMultiValueMap<>();
+        map.put("a", Arrays.asList("b"));
+
+        when(logRepository.submitAsyncSearch(map)).thenAnswer(invocationOnMock ->
+                CompletableFuture.completedFuture(new AsyncSearchResult("searchId", true, true, 0, new SearchResult(0, Collections.emptyList()))));
+        MockHttpServletRequestBuilder request = post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/search/async")
+                .params(map)
+                .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                .contentType(JSON);
+        MvcResult result = mockMvc.perform(request).andExpect(request().asyncStarted()).andReturn();
+        result = mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk()).andReturn();
+        AsyncSearchResult asyncSearchResult = objectMapper.readValue(result.getResponse().getContentAsString(), AsyncSearchResult.class);
+        assertEquals("searchId", asyncSearchResult.getId());
+        assertTrue(asyncSearchResult.isRunning());
+
+        when(logRepository.getAsyncSearch("searchId")).thenAnswer(invocationOnMock ->
+                CompletableFuture.completedFuture(new AsyncSearchResult("searchId", false, false, 0, new SearchResult(2, Arrays.asList(log1, log2)))));
+        request = get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/search/async/searchId");
+        result = mockMvc.perform(request).andExpect(request().asyncStarted()).andReturn();
+        result = mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk()).andReturn();
+        asyncSearchResult = objectMapper.readValue(result.getResponse().getContentAsString(), AsyncSearchResult.class);
+        assertFalse(asyncSearchResult.isRunning());
+        assertEquals(2, asyncSearchResult.getSearchResult().getHitCount());
+    }
+
+    @Test
+    public void testAsyncSearchUnauthorized() throws Exception {
+        MockHttpServletRequestBuilder request = post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/search/async")
+                .contentType(JSON);
+        mockMvc.perform(request).andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    public void testAsyncSearchExpired() throws Exception {
+        when(logRepository.getAsyncSearch("expired")).thenAnswer(invocationOnMock ->
+                CompletableFuture.failedFuture(new ResponseStatusException(HttpStatus.NOT_FOUND)));
+        MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/search/async/expired");
+        MvcResult result = mockMvc.perform(request).andExpect(request().asyncStarted()).andReturn();
+        mockMvc.perform(asyncDispatch(result)).andExpect(status().isNotFound());
+    }
+
     @Test
     public void testSearchLogsUnsupportedTemporals() throws Exception {
         MultiValueMap<String, String> map = new LinkedMultiValueMap<>();
@@ -219,6 +337,12 @@ public class LogResourceTest extends ResourcesTestBase {
         mockMvc.perform(request).andExpect(status().isUnauthorized());
     }
 
+    @Test
+    public void testGetUploadUnauthorized() throws Exception {
+        MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/1/uploads/u1");
+        mockMvc.perform(request).andExpect(status().isUnauthorized());
+    }
+
     @Test
     public void testCreateLog() throws Exception {
 
@@ -247,6 +371,34 @@ public class LogResourceTest extends ResourcesTestBase {
         reset(logRepository);
     }
 
+    @Test
+    public void testCreateLogWithAttachments() throws Exception {
+        when(logbookRepository.findAll()).thenReturn(Arrays.asList(logbook1, logbook2));
+        when(tagRepository.findAll()).thenReturn(Arrays.asList(tag1, tag2));
+        when(logRepository.save(argThat(new LogMatcher(log1)))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        Log log = LogBuilder.createLog(log1).build();
+        log.setAttachments(Set.of(new Attachment("clientId", null, "screenshot1.png", "image/png")));
+        MockMultipartFile logEntry = new MockMultipartFile("logEntry", "", "application/json", objectMapper.writeValueAsBytes(log));
+        MockMultipartFile file1 = new MockMultipartFile("files", "screenshot1.png", "image/png", "png".getBytes());
+        MockMultipartFile file2 = new MockMultipartFile("files", "screenshot2.png", "image/png", "png".getBytes());
+        MockHttpServletRequestBuilder request = MockMvcRequestBuilders.multipart("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/multipart")
+                .file(logEntry)
+                .file(file1)
+                .file(file2)
+                .with(r -> {
+                    r.setMethod("PUT");
+                    return r;
+                })
+                .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION);
+        mockMvc.perform(request).andExpect(status().isOk());
+
+        // Log entry saved once, with both files
+        verify(logRepository, times(1)).save(argThat((Log saved) -> saved.getAttachments().size() == 2 &&
+                saved.getAttachments().stream().anyMatch(a -> "clientId".equals(a.getId()) && a.getAttachment() != null)));
+        reset(logRepository);
+    }
+
     /**
      * Basically only test the endpoint...
      *
@@ -339,7 +491,9 @@ public class LogResourceTest extends ResourcesTestBase {
     @Test
     public void testCreateAttachment() throws Exception {
 
-        when(logRepository.findById("1")).thenReturn(Optional.of(log1));
+        when(logRepository.existsById("1")).thenReturn(true);
+        when(attachmentRepository.save(Mockito.any(Attachment.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        when(logRepository.addAttachments(Mockito.eq("1"), Mockito.anyCollection())).thenReturn(log1);
         MockMultipartFile file =
                 new MockMultipartFile("file", "filename.txt", "text/plain", "some xml".getBytes());
         MockMultipartFile filename =
@@ -362,7 +516,9 @@ public class LogResourceTest extends ResourcesTestBase {
      */
     @Test
     public void testCreateMultipleAttachments() throws Exception {
-        when(logRepository.findById("1")).thenReturn(Optional.of(log1));
+        when(logRepository.existsById("1")).thenReturn(true);
+        when(attachmentRepository.save(Mockito.any(Attachment.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        when(logRepository.addAttachments(Mockito.eq("1"), Mockito.anyCollection())).thenReturn(log1);
         MockMultipartFile file1 =
                 new MockMultipartFile("file", "filename1.txt", "text/plain", "some xml".getBytes());
         MockMultipartFile file2 =
@@ -372,7 +528,12 @@ public class LogResourceTest extends ResourcesTestBase {
                         .file(file2)
                         .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION))
                 .andExpect(status().is(200));
+        // Both files stored, and added to the log entry with a single update
+        verify(attachmentRepository, times(2)).save(Mockito.any(Attachment.class));
+        verify(logRepository, times(1)).addAttachments(Mockito.eq("1"), argThat(attachments -> attachments.size() == 2));
+        verify(logRepository, Mockito.never()).update(Mockito.any(Log.class));
         reset(logRepository);
+        reset(attachmentRepository);
     }
 
 
@@ -427,6 +588,30 @@ public class LogResourceTest extends ResourcesTestBase {
                 .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
                 .contentType(JSON);
         mockMvc.perform(request).andExpect(status().isOk());
+        // The original entry must not be re-indexed, the reply is added to the group identified by its id
+        verify(logRepository, times(0)).update(Mockito.any(Log.class));
+        verify(logRepository).save(argThat(reply -> "7".equals(reply.getGroupId())));
+        reset(logRepository);
+    }
+
+    @Test
+    public void testGetLogEntryGroup() throws Exception {
+        Log original = LogBuilder.createLog().id(7L).description("original").build();
+        Log reply = LogBuilder.createLog().id(9L).description("reply").groupId("7").build();
+        when(logRepository.findGroup("7")).thenReturn(Arrays.asList(original, reply));
+        MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/group/7");
+        MvcResult result = mockMvc.perform(request).andExpect(status().isOk()).andReturn();
+        List<Log> logs = objectMapper.readValue(result.getResponse().getContentAsString(), new TypeReference<List<Log>>() {
+        });
+        assertEquals(2, logs.size());
+
+        request = get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/group/8");
+        mockMvc.perform(request).andExpect(status().isNotFound());
+
+        // A log entry without replies is not a group
+        when(logRepository.findGroup("7")).thenReturn(Arrays.asList(original));
+        request = get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/group/7");
+        mockMvc.perform(request).andExpect(status().isNotFound());
         reset(logRepository);
     }
 
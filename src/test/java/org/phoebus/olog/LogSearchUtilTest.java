@@ -18,7 +18,11 @@
 
 package org.phoebus.olog;
 
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
 import org.junit.Test;
+import org.phoebus.olog.entity.Attribute;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.Property;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
@@ -27,6 +31,7 @@ import org.springframework.web.server.ResponseStatusException;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -138,4 +143,43 @@ public class LogSearchUtilTest {
 
     }
 
+    @Test
+    public void testParseTimeout() {
+        assertEquals(500, LogSearchUtil.parseTimeout("500"));
+        assertEquals(500, LogSearchUtil.parseTimeout("500ms"));
+        assertEquals(10000, LogSearchUtil.parseTimeout("10s"));
+        assertEquals(120000, LogSearchUtil.parseTimeout(" 2M "));
+        assertThrows(ResponseStatusException.class, () -> LogSearchUtil.parseTimeout("0s"));
+        assertThrows(ResponseStatusException.class, () -> LogSearchUtil.parseTimeout("10h"));
+        assertThrows(ResponseStatusException.class, () -> LogSearchUtil.parseTimeout("-1"));
+    }
+
+    @Test
+    public void testFlattenedPropertyPattern() {
+        assertEquals("prop*", LogSearchUtil.flattenedPropertyPattern(new String[]{"prop*", null, null}));
+        assertEquals("prop.attr", LogSearchUtil.flattenedPropertyPattern(new String[]{"prop", "attr", null}));
+        assertEquals("prop.attr=val*", LogSearchUtil.flattenedPropertyPattern(new String[]{"prop", "attr", "val*"}));
+        assertEquals("*.attr=val", LogSearchUtil.flattenedPropertyPattern(new String[]{"", "attr", "val"}));
+        // Value is ignored unless attribute is specified
+        assertEquals("prop", LogSearchUtil.flattenedPropertyPattern(new String[]{"prop", "", "val"}));
+    }
+
+    @Test
+    public void testFlattenedLongPropertyValue() {
+        String longValue = "x".repeat(Log.FLATTENED_PROPERTY_MAX_LENGTH);
+        Log log = Log.LogBuilder.createLog()
+                .setProperties(Set.of(new Property("prop", Set.of(new Attribute("attr", longValue)))))
+                .build();
+        assertEquals(List.of("prop", "prop.attr", "prop.attr#long"), log.getFlattenedProperties());
+
+        // Values too long for the flattened field are matched by a nested query
+        Query query = LogSearchUtil.flattenedPropertyQuery(new String[]{"prop", "attr", "x*"});
+        assertTrue(query.isBool());
+        List<Query> should = query.bool().should();
+        assertEquals("prop.attr=x*", should.get(0).wildcard().value());
+        assertEquals("prop.attr#long", should.get(1).bool().filter().get(0).wildcard().value());
+        assertTrue(should.get(1).bool().must().get(0).isNested());
+
+        assertTrue(LogSearchUtil.flattenedPropertyQuery(new String[]{"prop", "attr", null}).isWildcard());
+    }
 }
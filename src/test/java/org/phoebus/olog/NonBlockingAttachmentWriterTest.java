@@ -0,0 +1,166 @@
+package org.phoebus.olog;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.unit.DataSize;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NonBlockingAttachmentWriterTest {
+
+    private NonBlockingAttachmentWriter writer;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private AsyncContext asyncContext;
+    private SlowOutputStream outputStream;
+
+    /**
+     * Takes one write each time the client is ready, like a slow connection.
+     */
+    private static class SlowOutputStream extends ServletOutputStream {
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private WriteListener writeListener;
+        private boolean ready;
+        private int writes;
+        private boolean broken;
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            this.writeListener = writeListener;
+        }
+
+        @Override
+        public void write(int b) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!ready) {
+                throw new IllegalStateException("Not ready");
+            }
+            if (broken) {
+                throw new IOException("Connection reset");
+            }
+            written.write(b, off, len);
+            writes++;
+            ready = false;
+        }
+
+        void clientReads() throws IOException {
+            ready = true;
+            writeListener.onWritePossible();
+        }
+    }
+
+    @Before
+    public void setup() throws Exception {
+        // Reads complete synchronously
+        writer = new NonBlockingAttachmentWriter(Runnable::run, DataSize.ofBytes(100), DataSize.ofBytes(64));
+        request = Mockito.mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.isAsyncSupported()).thenReturn(true);
+        asyncContext = Mockito.mock(AsyncContext.class);
+        when(request.startAsync()).thenReturn(asyncContext);
+        response = Mockito.mock(HttpServletResponse.class);
+        outputStream = new SlowOutputStream();
+        when(response.getOutputStream()).thenReturn(outputStream);
+    }
+
+    private static ResponseEntity<Resource> download(Resource resource, long length) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentLength(length);
+        return new ResponseEntity<>(resource, headers, HttpStatus.OK);
+    }
+
+    @Test
+    public void testWriteAtClientPace() throws Exception {
+        byte[] content = new byte[1000];
+        new Random(1).nextBytes(content);
+
+        assertTrue(writer.write(download(new ByteArrayResource(content), content.length), request, response));
+        verify(response).setStatus(200);
+        verify(response).addHeader(HttpHeaders.CONTENT_LENGTH, "1000");
+        assertEquals(1, writer.getActive());
+
+        int rounds = 0;
+        while (writer.getActive() > 0) {
+            outputStream.clientReads();
+            rounds++;
+        }
+        assertArrayEquals(content, outputStream.written.toByteArray());
+        // One chunk per round, nothing written while the client is not ready. Completes with the last, short chunk.
+        assertEquals(16, outputStream.writes);
+        assertEquals(16, rounds);
+        verify(asyncContext).complete();
+        assertEquals(1, writer.getCompleted());
+        assertEquals(0, writer.getFailed());
+    }
+
+    @Test
+    public void testClientDisconnects() throws Exception {
+        byte[] content = new byte[1000];
+        AtomicBoolean closed = new AtomicBoolean();
+        Resource resource = new InputStreamResource(new ByteArrayInputStream(content) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        });
+
+        assertTrue(writer.write(download(resource, content.length), request, response));
+        outputStream.clientReads();
+        outputStream.broken = true;
+        outputStream.clientReads();
+
+        assertTrue(closed.get());
+        verify(asyncContext).complete();
+        assertEquals(0, writer.getActive());
+        assertEquals(1, writer.getFailed());
+    }
+
+    @Test
+    public void testLeftToSpring() throws Exception {
+        // Small
+        assertFalse(writer.write(download(new ByteArrayResource(new byte[10]), 10), request, response));
+        // Served with sendfile
+        assertFalse(writer.write(download(Mockito.mock(FileAttachmentResource.class), 1000), request, response));
+        // Range request
+        when(request.getHeader(HttpHeaders.RANGE)).thenReturn("bytes=0-99");
+        assertFalse(writer.write(download(new ByteArrayResource(new byte[1000]), 1000), request, response));
+        when(request.getHeader(HttpHeaders.RANGE)).thenReturn(null);
+        // Not modified
+        assertFalse(writer.write(new ResponseEntity<>(HttpStatus.NOT_MODIFIED), request, response));
+
+        verify(request, never()).startAsync();
+    }
+}
@@ -61,6 +61,11 @@ public class ResourcesTestConfig {
         return Mockito.mock(AttachmentRepository.class);
     }
 
+    @Bean
+    public AttachmentRenditions attachmentRenditions() {
+        return Mockito.mock(AttachmentRenditions.class);
+    }
+
     //@Bean("indexClient")
     //public RestHighLevelClient client() {
     //    return Mockito.mock(RestHighLevelClient.class);
@@ -76,6 +81,11 @@ public class ResourcesTestConfig {
         return Mockito.mock(GridFsTemplate.class);
     }
 
+    @Bean
+    public NonBlockingAttachmentWriter nonBlockingAttachmentWriter() {
+        return Mockito.mock(NonBlockingAttachmentWriter.class);
+    }
+
     @Bean
     public LogSearchUtil logSearchUtil() {
         return Mockito.mock(LogSearchUtil.class);
@@ -0,0 +1,271 @@
+package org.phoebus.olog;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.phoebus.olog.entity.Attachment;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class S3AttachmentStoreTest {
+
+    private static final String BUCKET = "olog-test";
+
+    /**
+     * Stand-in for MinIO: keeps the objects of one bucket in memory, and lists them two at a time.
+     */
+    private static class FakeObjectStore {
+
+        static class StoredObject {
+            byte[] content;
+            String contentType;
+            Map<String, String> metadata = new HashMap<>();
+            Instant lastModified = Instant.now();
+        }
+
+        final HttpServer server;
+        final Map<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+        boolean bucketCreated;
+
+        FakeObjectStore() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/", exchange -> {
+                try {
+                    handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            });
+            server.start();
+        }
+
+        URI endpoint() {
+            return URI.create("http://localhost:" + server.getAddress().getPort());
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            if (authorization == null || !authorization.startsWith(SigV4Signer.ALGORITHM + " Credential=access/")) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            String path = exchange.getRequestURI().getPath().substring(1);
+            String method = exchange.getRequestMethod();
+            if (path.equals(BUCKET)) {
+                if (method.equals("HEAD")) {
+                    exchange.sendResponseHeaders(bucketCreated ? 200 : 404, -1);
+                } else if (method.equals("PUT")) {
+                    bucketCreated = true;
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    list(exchange);
+                }
+                return;
+            }
+            String key = path.substring(BUCKET.length() + 1);
+            StoredObject object = objects.get(key);
+            switch (method) {
+                case "PUT":
+                    byte[] content = exchange.getRequestBody().readAllBytes();
+                    if (!SigV4Signer.sha256(content).equals(exchange.getRequestHeaders().getFirst("x-amz-content-sha256"))) {
+                        exchange.sendResponseHeaders(400, -1);
+                        return;
+                    }
+                    if (object != null && "*".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                        exchange.sendResponseHeaders(412, -1);
+                        return;
+                    }
+                    StoredObject stored = new StoredObject();
+                    stored.content = content;
+                    stored.contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                    exchange.getRequestHeaders().forEach((name, values) -> {
+                        if (name.toLowerCase().startsWith("x-amz-meta-")) {
+                            stored.metadata.put(name.toLowerCase(), values.get(0));
+                        }
+                    });
+                    objects.put(key, stored);
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                case "DELETE":
+                    objects.remove(key);
+                    exchange.sendResponseHeaders(204, -1);
+                    return;
+                default:
+                    if (object == null) {
+                        exchange.sendResponseHeaders(404, -1);
+                        return;
+                    }
+                    if (object.contentType != null) {
+                        exchange.getResponseHeaders().set("Content-Type", object.contentType);
+                    }
+                    exchange.getResponseHeaders().set("Last-Modified",
+                            DateTimeFormatter.RFC_1123_DATE_TIME.format(object.lastModified.atZone(ZoneOffset.UTC)));
+                    object.metadata.forEach((name, value) -> exchange.getResponseHeaders().set(name, value));
+                    if (method.equals("HEAD")) {
+                        exchange.getResponseHeaders().set("Content-Length", Integer.toString(object.content.length));
+                        exchange.sendResponseHeaders(200, -1);
+                    } else {
+                        exchange.sendResponseHeaders(200, object.content.length);
+                        try (OutputStream body = exchange.getResponseBody()) {
+                            body.write(object.content);
+                        }
+                    }
+            }
+        }
+
+        private void list(HttpExchange exchange) throws IOException {
+            Map<String, String> query = Arrays.stream(exchange.getRequestURI().getRawQuery().split("&"))
+                    .map(parameter -> parameter.split("=", 2))
+                    .collect(Collectors.toMap(parameter -> parameter[0],
+                            parameter -> URLDecoder.decode(parameter[1], StandardCharsets.UTF_8)));
+            String after = query.getOrDefault("continuation-token", "");
+            StringBuilder result = new StringBuilder("<ListBucketResult>");
+            String last = null;
+            int count = 0;
+            boolean truncated = false;
+            for (Map.Entry<String, StoredObject> object : new TreeMap<>(objects).entrySet()) {
+                if (!object.getKey().startsWith(query.get("prefix")) || object.getKey().compareTo(after) <= 0) {
+                    continue;
+                }
+                if (count == 2) {
+                    truncated = true;
+                    break;
+                }
+                result.append("<Contents><Key>").append(object.getKey()).append("</Key><Size>")
+                        .append(object.getValue().content.length).append("</Size><LastModified>")
+                        .append(object.getValue().lastModified).append("</LastModified></Contents>");
+                last = object.getKey();
+                count++;
+            }
+            result.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+            if (truncated) {
+                result.append("<NextContinuationToken>").append(last).append("</NextContinuationToken>");
+            }
+            byte[] body = result.append("</ListBucketResult>").toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    private FakeObjectStore objectStore;
+    private ObjectStoreClient client;
+
+    @Before
+    public void setup() throws Exception {
+        objectStore = new FakeObjectStore();
+        client = new ObjectStoreClient(objectStore.endpoint(), "us-east-1", BUCKET, "access", "secret", true, Duration.ofSeconds(10));
+        client.createBucketIfMissing("us-east-1");
+        assertTrue(objectStore.bucketCreated);
+    }
+
+    @After
+    public void teardown() {
+        objectStore.server.stop(0);
+    }
+
+    @Test
+    public void testSaveAndFind() throws Exception {
+        S3AttachmentStore store = new S3AttachmentStore(client, null);
+        Attachment saved = store.save(new Attachment(new InputStreamResource(new ByteArrayInputStream("content".getBytes())),
+                "résumé 1.txt", "Notes, 100%"));
+        assertNotNull(saved.getId());
+
+        Attachment found = store.findById(saved.getId()).get();
+        assertEquals("résumé 1.txt", found.getFilename());
+        assertEquals("Notes, 100%", found.getFileMetadataDescription());
+        assertEquals("text/plain", found.getContentType());
+        assertEquals(SigV4Signer.sha256("content".getBytes()), ((HashedResource) found.getAttachment()).getContentHash());
+        assertEquals(7, ((Resource) found.getAttachment()).contentLength());
+        assertEquals("content", new String(found.getAttachment().getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+        assertFalse(((DirectDownloadResource) found.getAttachment()).isDirectDownload());
+
+        assertTrue(store.findById("unknown").isEmpty());
+        // Ids are unique
+        assertNull(store.save(new Attachment(saved.getId(), new ByteArrayResource("other".getBytes()), "other.txt", null)));
+    }
+
+    @Test
+    public void testListAndDelete() {
+        S3AttachmentStore store = new S3AttachmentStore(client, null);
+        for (String id : new String[]{"a", "b/../c", "d e", "f"}) {
+            assertNotNull(store.save(new Attachment(id, new ByteArrayResource(id.getBytes()), id + ".txt", null)));
+        }
+        // Ids do not escape the key prefix
+        assertTrue(objectStore.objects.keySet().stream().allMatch(key -> key.startsWith("attachments/") && key.indexOf('/', 12) < 0));
+
+        Set<String> ids = new HashSet<>();
+        store.forEachId(ids::add);
+        assertEquals(Set.of("a", "b/../c", "d e", "f"), ids);
+        Map<String, Long> lengths = new HashMap<>();
+        store.forEachIdStoredBefore(Instant.now().plusSeconds(1), lengths::put);
+        assertEquals(Map.of("a", 1L, "b/../c", 6L, "d e", 3L, "f", 1L), lengths);
+        lengths.clear();
+        store.forEachIdStoredBefore(Instant.now().minusSeconds(60), lengths::put);
+        assertTrue(lengths.isEmpty());
+
+        store.deleteById("b/../c");
+        store.deleteById("unknown");
+        assertTrue(store.findById("b/../c").isEmpty());
+        assertEquals(3, objectStore.objects.size());
+    }
+
+    @Test
+    public void testDirectDownload() throws Exception {
+        S3AttachmentStore store = new S3AttachmentStore(client, Duration.ofMinutes(10));
+        Attachment saved = store.save(new Attachment(new ByteArrayResource("content".getBytes()), "file.txt", null));
+        Attachment found = store.findById(saved.getId()).get();
+        assertTrue(((DirectDownloadResource) found.getAttachment()).isDirectDownload());
+
+        ResponseEntity<Resource> download = AttachmentResponses.download(found, found.getFilename(), new HttpHeaders(), "no-cache");
+        assertEquals(HttpStatus.TEMPORARY_REDIRECT, download.getStatusCode());
+        assertNull(download.getBody());
+        URI location = download.getHeaders().getLocation();
+        assertEquals(objectStore.endpoint().getAuthority(), location.getAuthority());
+        assertEquals("/" + BUCKET + "/attachments/" + saved.getId(), location.getPath());
+        Map<String, String> query = Arrays.stream(location.getRawQuery().split("&"))
+                .map(parameter -> parameter.split("=", 2))
+                .collect(Collectors.toMap(parameter -> parameter[0],
+                        parameter -> URLDecoder.decode(parameter[1], StandardCharsets.UTF_8)));
+        assertEquals("600", query.get("X-Amz-Expires"));
+        assertNotNull(query.get("X-Amz-Signature"));
+        assertEquals("attachment; filename=\"file.txt\"", query.get("response-content-disposition"));
+        assertEquals("text/plain", query.get("response-content-type"));
+        assertEquals("no-cache", query.get("response-cache-control"));
+        assertEquals("no-store", download.getHeaders().getCacheControl());
+        // Signed per time window, such that clients may cache the download
+        assertEquals(location, AttachmentResponses.download(found, found.getFilename(), new HttpHeaders(), "no-cache")
+                .getHeaders().getLocation());
+    }
+}
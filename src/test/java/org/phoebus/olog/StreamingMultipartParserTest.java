@@ -0,0 +1,87 @@
+package org.phoebus.olog;
+
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StreamingMultipartParserTest {
+
+    private static final String BOUNDARY = "----formBoundary";
+
+    private static MockHttpServletRequest request(String body) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/Olog/logs/attachments-stream/1");
+        request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+        request.setContent(body.getBytes(StandardCharsets.UTF_8));
+        return request;
+    }
+
+    private static final String BODY = "--" + BOUNDARY + "\r\n" +
+            "Content-Disposition: form-data; name=\"filename\"\r\n\r\n" +
+            "renamed.txt\r\n" +
+            "--" + BOUNDARY + "\r\n" +
+            "Content-Disposition: form-data; name=\"file\"; filename=\"file.txt\"\r\n" +
+            "Content-Type: text/plain\r\n\r\n" +
+            "0123456789\r\n" +
+            "--" + BOUNDARY + "--\r\n";
+
+    @Test
+    public void testParse() {
+        List<String> parts = new ArrayList<>();
+        new StreamingMultipartParser(-1, -1).parse(request(BODY), new StreamingMultipartParser.PartHandler() {
+            @Override
+            public void formField(String name, String value) {
+                parts.add(name + "=" + value);
+            }
+
+            @Override
+            public void file(String name, String filename, String contentType, InputStream content) throws IOException {
+                parts.add(name + ":" + filename + ":" + contentType + ":" + new String(content.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        });
+        assertEquals(List.of("filename=renamed.txt", "file:file.txt:text/plain:0123456789"), parts);
+    }
+
+    @Test
+    public void testFileSizeExceeded() {
+        try {
+            new StreamingMultipartParser(5, -1).parse(request(BODY), new StreamingMultipartParser.PartHandler() {
+                @Override
+                public void formField(String name, String value) {
+                }
+
+                @Override
+                public void file(String name, String filename, String contentType, InputStream content) {
+                    // Consumers such as the attachment repository may swallow the exception
+                    try {
+                        content.readAllBytes();
+                    } catch (IOException e) {
+                        // Ignore
+                    }
+                }
+            });
+            fail("Size limit not enforced");
+        } catch (ResponseStatusException e) {
+            assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, e.getStatus());
+        }
+    }
+
+    @Test
+    public void testIsStreaming() {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/Olog/logs/attachments-stream/1");
+        assertTrue(StreamingMultipartResolver.isStreaming(request));
+        request = new MockHttpServletRequest("POST", "/Olog/logs/attachments/1");
+        assertFalse(StreamingMultipartResolver.isStreaming(request));
+    }
+}
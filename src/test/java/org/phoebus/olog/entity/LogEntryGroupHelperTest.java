@@ -25,6 +25,7 @@ import org.phoebus.olog.entity.Log.LogBuilder;
 import java.time.Instant;
 import java.util.Set;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
@@ -113,4 +114,16 @@ public class LogEntryGroupHelperTest {
         Property prop = LogEntryGroupHelper.getLogEntryGroupProperty(originalLog);
         assertNotNull(prop);
     }
+
+    @Test
+    public void testGetGroupId(){
+        assertNull(LogEntryGroupHelper.getGroupId(log1));
+
+        Property logEntryGroupProperty = LogEntryGroupHelper.createLogEntryGroupProperty("legacyGroup");
+        log1.getProperties().add(logEntryGroupProperty);
+        assertEquals("legacyGroup", LogEntryGroupHelper.getGroupId(log1));
+
+        log2.setGroupId("1");
+        assertEquals("1", LogEntryGroupHelper.getGroupId(log2));
+    }
 }
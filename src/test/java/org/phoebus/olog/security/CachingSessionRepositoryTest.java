@@ -0,0 +1,117 @@
+package org.phoebus.olog.security;
+
+import org.junit.Test;
+import org.phoebus.olog.WebSecurityConfig;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.MapSession;
+import org.springframework.session.Session;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CachingSessionRepositoryTest {
+
+    @SuppressWarnings("unchecked")
+    private final FindByIndexNameSessionRepository<Session> delegate = mock(FindByIndexNameSessionRepository.class);
+
+    private Session session(String id) {
+        Session session = new MapSession(id);
+        session.setAttribute(WebSecurityConfig.ROLES_ATTRIBUTE_NAME, Arrays.asList("role1"));
+        session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "user");
+        session.setLastAccessedTime(Instant.now().minusSeconds(10));
+        return session;
+    }
+
+    @Test
+    public void testFindByIdIsCached() {
+        Session session = session("a");
+        when(delegate.findById("a")).thenReturn(session);
+        CachingSessionRepository repository = new CachingSessionRepository(delegate, Duration.ofMinutes(1), Duration.ofHours(1));
+        try {
+            assertSame(session, repository.findById("a"));
+            assertSame(session, repository.findById("a"));
+            verify(delegate, times(1)).findById("a");
+
+            // Unknown sessions are not cached
+            assertNull(repository.findById("b"));
+            assertNull(repository.findById("b"));
+            verify(delegate, times(2)).findById("b");
+
+            // Logout takes effect immediately
+            repository.deleteById("a");
+            verify(delegate).deleteById("a");
+            when(delegate.findById("a")).thenReturn(null);
+            assertNull(repository.findById("a"));
+        } finally {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void testExpiredSessionIsNotCached() {
+        Session session = session("a");
+        session.setMaxInactiveInterval(Duration.ofSeconds(1));
+        when(delegate.findById("a")).thenReturn(session);
+        CachingSessionRepository repository = new CachingSessionRepository(delegate, Duration.ofMinutes(1), Duration.ofHours(1));
+        try {
+            repository.findById("a");
+            repository.findById("a");
+            verify(delegate, times(2)).findById("a");
+        } finally {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void testLastAccessWritesAreCoalesced() throws Exception {
+        Session session = session("a");
+        Instant lastAccessed = session.getLastAccessedTime();
+        when(delegate.findById("a")).thenReturn(session);
+        CachingSessionRepository repository = new CachingSessionRepository(delegate, Duration.ofMinutes(1), Duration.ofHours(1));
+        SessionFilter sessionFilter = new SessionFilter(null, repository);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getCookies()).thenReturn(new Cookie[]{new Cookie(WebSecurityConfig.SESSION_COOKIE_NAME, "a")});
+        try {
+            for (int i = 0; i < 10; i++) {
+                assertNotNull(sessionFilter.getAuthenticationFromCookie(request));
+            }
+            verify(delegate, times(1)).findById("a");
+            verify(delegate, never()).save(any());
+            assertTrue(session.getLastAccessedTime().isAfter(lastAccessed));
+
+            repository.flush();
+            verify(delegate, times(1)).save(session);
+            repository.flush();
+            verify(delegate, times(1)).save(session);
+        } finally {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void testWithoutFlusher() {
+        Session session = session("a");
+        when(delegate.findById("a")).thenReturn(session);
+        CachingSessionRepository repository = new CachingSessionRepository(delegate, Duration.ZERO, Duration.ZERO);
+        assertEquals(session, repository.findById("a"));
+        repository.touch(session);
+        repository.findById("a");
+        verify(delegate, times(2)).findById("a");
+        verify(delegate, times(1)).save(session);
+    }
+}